@@ -18,9 +18,13 @@ package com.google.maps.android;
 
 import com.google.android.gms.maps.model.LatLng;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Stack;
+import java.util.NoSuchElementException;
 
 import static com.google.maps.android.SphericalUtil.*;
 import static java.lang.Math.*;
@@ -51,7 +55,7 @@ public class PolyUtil {
      * (lat1, lng1) to (lat2, lng2).
      * Longitudes are offset by -lng1; the implicit lng1 becomes 0.
      */
-    private static boolean intersects(double lat1, double lat2, double lng2, double lat3, double lng3, boolean geodesic) {
+    static boolean intersects(double lat1, double lat2, double lng2, double lat3, double lng3, boolean geodesic) {
         // Both ends on the same side of lng3.
         if ((lng3 >= 0 && lng3 >= lng2) || (lng3 < 0 && lng3 < lng2)) {
             return false;
@@ -248,7 +252,7 @@ public class PolyUtil {
         return denom <= 0 ? 1 : (a * d - b * c) / sqrt(denom);
     }
 
-    private static boolean isOnSegmentGC(double lat1, double lng1, double lat2, double lng2, double lat3, double lng3, double havTolerance) {
+    static boolean isOnSegmentGC(double lat1, double lng1, double lat2, double lng2, double lat3, double lng3, double havTolerance) {
         double havDist13 = havDistance(lat1, lat3, lng1 - lng3);
         if (havDist13 <= havTolerance) {
             return true;
@@ -305,72 +309,401 @@ public class PolyUtil {
             throw new IllegalArgumentException("Tolerance must be greater than zero");
         }
 
-        boolean closedPolygon = isClosedPolygon(poly);
-        LatLng lastPoint = null;
+        final double[] lat = new double[n];
+        final double[] lng = new double[n];
+        for (int i = 0; i < n; i++) {
+            LatLng point = poly.get(i);
+            lat[i] = toRadians(point.latitude);
+            lng[i] = toRadians(point.longitude);
+        }
 
         // Check if the provided poly is a closed polygon
-        if (closedPolygon) {
-            // Add a small offset to the last point for Douglas-Peucker on polygons (see #201)
+        if (isClosedPolygon(poly)) {
+            // Add a small offset to the last point for Douglas-Peucker on polygons (see #201).
+            // Only the local copy is changed, the caller's list stays untouched.
             final double OFFSET = 0.00000000001;
-            lastPoint = poly.get(poly.size() - 1);
-            // LatLng.latitude and .longitude are immutable, so replace the last point
-            poly.remove(poly.size() - 1);
-            poly.add(new LatLng(lastPoint.latitude + OFFSET, lastPoint.longitude + OFFSET));
-        }
-
-        int idx;
-        int maxIdx = 0;
-        Stack<int[]> stack = new Stack<>();
-        double[] dists = new double[n];
-        dists[0] = 1;
-        dists[n - 1] = 1;
-        double maxDist;
-        double dist = 0.0;
-        int[] current;
+            LatLng lastPoint = poly.get(n - 1);
+            lat[n - 1] = toRadians(lastPoint.latitude + OFFSET);
+            lng[n - 1] = toRadians(lastPoint.longitude + OFFSET);
+        }
+
+        // Generate the simplified line
+        final int[] kept = new int[n];
+        final int count = simplify(lat, lng, n, tolerance, kept);
+        ArrayList<LatLng> simplifiedLine = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            simplifiedLine.add(poly.get(kept[i]));
+        }
+        return simplifiedLine;
+    }
+
+    /**
+     * Douglas-Peucker decimation on primitive coordinate arrays. This is the kernel of
+     * {@link #simplify(List, double)}, for callers which already have their points in
+     * arrays. Apart from a work stack, one flag per point and the sine and cosine of every
+     * latitude, nothing is allocated.
+     * <p/>
+     * Closed polygons need the same offset on the last point as applied by
+     * {@link #simplify(List, double)}, otherwise they may not be fully simplified.
+     *
+     * @param lat       the latitudes of the points, in radians
+     * @param lng       the longitudes of the points, in radians
+     * @param n         the number of points to use from the arrays, at least 1
+     * @param tolerance in meters
+     * @param result    array of at least n elements, receives the indices of the points to
+     *                  keep in ascending order
+     * @return the number of indices written to result
+     */
+    public static int simplify(double[] lat, double[] lng, int n, double tolerance,
+                               int[] result) {
+        return simplify(lat, lng, 0, n, tolerance, result);
+    }
+
+    /**
+     * Same as {@link #simplify(double[], double[], int, double, int[])}, but only simplifies
+     * the points from index {@code from} (inclusive) to {@code to} (exclusive) of the arrays.
+     * The indices written to result are indices into the arrays, not relative to from.
+     *
+     * @param lat       the latitudes of the points, in radians
+     * @param lng       the longitudes of the points, in radians
+     * @param from      the index of the first point to use
+     * @param to        the index after the last point to use, greater than from
+     * @param tolerance in meters
+     * @param result    array of at least to - from elements, receives the indices of the
+     *                  points to keep in ascending order
+     * @return the number of indices written to result
+     */
+    public static int simplify(double[] lat, double[] lng, int from, int to, double tolerance,
+                               int[] result) {
+        final int n = to - from;
+        if (n < 1) {
+            throw new IllegalArgumentException("Polyline must have at least 1 point");
+        }
+        if (tolerance <= 0) {
+            throw new IllegalArgumentException("Tolerance must be greater than zero");
+        }
+        // all local arrays are indexed relative to from
+        final boolean[] keep = new boolean[n];
+        keep[0] = true;
+        keep[n - 1] = true;
 
         if (n > 2) {
-            int[] stackVal = new int[]{0, (n - 1)};
-            stack.push(stackVal);
-            while (stack.size() > 0) {
-                current = stack.pop();
-                maxDist = 0;
-                for (idx = current[0] + 1; idx < current[1]; ++idx) {
-                    dist = distanceToLine(poly.get(idx), poly.get(current[0]),
-                            poly.get(current[1]));
-                    if (dist > maxDist) {
-                        maxDist = dist;
+            final double[] cosLat = new double[n];
+            final double[] sinLat = new double[n];
+            for (int i = 0; i < n; i++) {
+                cosLat[i] = cos(lat[from + i]);
+                sinLat[i] = sin(lat[from + i]);
+            }
+            // the ranges on the stack never overlap, so there are at most n - 1 of them
+            final int[] stack = new int[2 * (n - 1)];
+            int top = 0;
+            stack[top++] = from;
+            stack[top++] = to - 1;
+            while (top > 0) {
+                final int last = stack[--top];
+                final int first = stack[--top];
+                // hav() is monotonic, so the farthest point can be found without converting
+                // every distance to meters
+                double maxHav = -1;
+                int maxIdx = 0;
+                final double s2s1lat = lat[last] - lat[first];
+                final double s2s1lng = wrapDifference(lng[last] - lng[first]);
+                final double invLength2 = 1 / (s2s1lat * s2s1lat + s2s1lng * s2s1lng);
+                for (int idx = first + 1; idx < last; ++idx) {
+                    double hav = havDistanceToLine(lat, lng, cosLat, sinLat, from, idx, first,
+                            last, s2s1lat, s2s1lng, invLength2);
+                    if (hav > maxHav) {
+                        maxHav = hav;
                         maxIdx = idx;
                     }
                 }
-                if (maxDist > tolerance) {
-                    dists[maxIdx] = maxDist;
-                    int[] stackValCurMax = {current[0], maxIdx};
-                    stack.push(stackValCurMax);
-                    int[] stackValMaxCur = {maxIdx, current[1]};
-                    stack.push(stackValMaxCur);
+                if (maxHav >= 0 && havToMeters(maxHav) > tolerance) {
+                    keep[maxIdx - from] = true;
+                    stack[top++] = first;
+                    stack[top++] = maxIdx;
+                    stack[top++] = maxIdx;
+                    stack[top++] = last;
                 }
             }
         }
 
-        if (closedPolygon) {
-            // Replace last point w/ offset with the original last point to re-close the polygon
-            poly.remove(poly.size() - 1);
-            poly.add(lastPoint);
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                result[count++] = from + i;
+            }
         }
+        return count;
+    }
 
-        // Generate the simplified line
-        idx = 0;
-        ArrayList<LatLng> simplifiedLine = new ArrayList<>();
-        for (LatLng l : poly) {
-            if (dists[idx] != 0) {
-                simplifiedLine.add(l);
-            }
-            idx++;
+    /**
+     * Same as {@link #distanceToLine(double, double, double, double, double, double)}, but
+     * returns hav() of the distance on the unit sphere and takes the points as indices into
+     * arrays with precomputed cosine and sine of the latitudes, which start at index offset
+     * of the coordinate arrays. The differences between end and start and the inverse of
+     * their squared length are also precomputed, as they are the same for all points tested
+     * against one segment.
+     */
+    private static double havDistanceToLine(double[] lat, double[] lng, double[] cosLat,
+                                            double[] sinLat, int offset, int p, int start,
+                                            int end, double s2s1lat, double s2s1lng,
+                                            double invLength2) {
+        final double lat0 = lat[p], lng0 = lng[p];
+        final double lat1 = lat[start], lng1 = lng[start];
+        final double lat2 = lat[end], lng2 = lng[end];
+        final double cos0 = cosLat[p - offset], cos1 = cosLat[start - offset];
+        if (lat1 == lat2 && lng1 == lng2) {
+            return fastHav(lat0 - lat2) + fastHav(lng0 - lng2) * cos0 * cosLat[end - offset];
+        }
+
+        final double lngA = wrapDifference(lng0 - lng1);
+        final double u = ((lat0 - lat1) * s2s1lat + lngA * s2s1lng) * invLength2;
+        if (u <= 0) {
+            return fastHav(lat0 - lat1) + fastHav(lng0 - lng1) * cos0 * cos1;
+        }
+        if (u >= 1) {
+            return fastHav(lat0 - lat2) + fastHav(lng0 - lng2) * cos0 * cosLat[end - offset];
         }
+        double latA = lat0 - lat1;
+        // cos(lat0 - lat1), without another call to cos()
+        double cosA = cos0 * cos1 + sinLat[p - offset] * sinLat[start - offset];
+        if (latA > PI / 2 || latA < -PI / 2) {
+            latA = clamp(latA, -PI / 2, PI / 2);
+            cosA = cos(latA);
+        }
+        final double latB = clamp(u * s2s1lat, -PI / 2, PI / 2);
+        final double lngDiff = lngA - u * s2s1lng;
+        return fastHav(latA - latB) + fastHav(lngDiff) * cosA * fastCos(latB);
+    }
 
+    // below this angle (about 127 km on Earth), the truncated Taylor series are exact to the
+    // last bit of a double, but much cheaper than sin() and cos()
+    private static final double SMALL_ANGLE = 0.02;
+
+    /**
+     * Same as {@link MathUtil#hav(double)}, but faster for small angles
+     */
+    static double fastHav(double x) {
+        if (x > SMALL_ANGLE || x < -SMALL_ANGLE) {
+            return hav(x);
+        }
+        double y = x * 0.5;
+        double y2 = y * y;
+        double sinHalf = y + y * y2 * (-1.0 / 6 + y2 * (1.0 / 120 + y2 * (-1.0 / 5040 +
+                y2 * (1.0 / 362880))));
+        return sinHalf * sinHalf;
+    }
+
+    /**
+     * Same as {@link Math#cos(double)}, but faster for small angles
+     */
+    static double fastCos(double x) {
+        if (x > SMALL_ANGLE || x < -SMALL_ANGLE) {
+            return cos(x);
+        }
+        double x2 = x * x;
+        return 1 + x2 * (-1.0 / 2 + x2 * (1.0 / 24 + x2 * (-1.0 / 720 + x2 * (1.0 / 40320))));
+    }
+
+    /**
+     * Simplifies the given poly (polyline or polygon) using the Visvalingam-Whyatt algorithm:
+     * the point which forms the triangle with the smallest area with its two neighbours is
+     * removed, until all remaining triangles are at least as large as the given tolerance.
+     * <p/>
+     * Unlike Douglas-Peucker, this runs in O(n log n) in all cases. The first and the last
+     * point are always kept.
+     *
+     * @param poly      polyline or polygon to be simplified
+     * @param tolerance minimum area in square meters of the triangle formed by a point and its
+     *                  neighbours. Increasing the tolerance will result in fewer points in the
+     *                  simplified poly.
+     * @return a simplified poly produced by the Visvalingam-Whyatt algorithm
+     */
+    public static List<LatLng> simplifyByArea(List<LatLng> poly, double tolerance) {
+        if (tolerance <= 0) {
+            throw new IllegalArgumentException("Tolerance must be greater than zero");
+        }
+        return simplifyByArea(poly, tolerance, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Simplifies the given poly (polyline or polygon) using the Visvalingam-Whyatt algorithm,
+     * until it has at most the given number of points.
+     *
+     * @param poly      polyline or polygon to be simplified
+     * @param maxPoints the maximum number of points of the result, at least 2
+     * @return a simplified poly produced by the Visvalingam-Whyatt algorithm
+     * @see #simplifyByArea(List, double)
+     */
+    public static List<LatLng> simplifyToSize(List<LatLng> poly, int maxPoints) {
+        return simplifyByArea(poly, 0, maxPoints);
+    }
+
+    private static List<LatLng> simplifyByArea(List<LatLng> poly, double tolerance,
+                                               int maxPoints) {
+        final int n = poly.size();
+        if (n < 1) {
+            throw new IllegalArgumentException("Polyline must have at least 1 point");
+        }
+        final double[] lat = new double[n];
+        final double[] lng = new double[n];
+        for (int i = 0; i < n; i++) {
+            LatLng point = poly.get(i);
+            lat[i] = toRadians(point.latitude);
+            lng[i] = toRadians(point.longitude);
+        }
+        final int[] kept = new int[n];
+        final int count = simplifyByArea(lat, lng, n, tolerance, maxPoints, kept);
+        ArrayList<LatLng> simplifiedLine = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            simplifiedLine.add(poly.get(kept[i]));
+        }
         return simplifiedLine;
     }
 
+    /**
+     * Visvalingam-Whyatt simplification on primitive coordinate arrays: points are removed
+     * in the order of their effective area, as long as it is smaller than the tolerance or
+     * there are more than maxPoints points left.
+     * <p/>
+     * The effective areas are kept in an indexed binary min-heap and the remaining points in
+     * a doubly linked list (as arrays of indices), so removing a point and updating its two
+     * neighbours costs O(log n). As in the original algorithm, the area of a neighbour never
+     * becomes smaller than the area of a point removed before it, so the points are removed
+     * in a consistent order.
+     *
+     * @param lat       the latitudes of the points, in radians
+     * @param lng       the longitudes of the points, in radians
+     * @param n         the number of points to use from the arrays, at least 1
+     * @param tolerance in square meters, use 0 to only limit the number of points
+     * @param maxPoints the maximum number of points to keep, at least 2. Use
+     *                  Integer.MAX_VALUE to only apply the tolerance.
+     * @param result    array of at least n elements, receives the indices of the points to
+     *                  keep in ascending order
+     * @return the number of indices written to result
+     */
+    public static int simplifyByArea(double[] lat, double[] lng, int n, double tolerance,
+                                     int maxPoints, int[] result) {
+        if (n < 1) {
+            throw new IllegalArgumentException("Polyline must have at least 1 point");
+        }
+        if (maxPoints < 2) {
+            throw new IllegalArgumentException("At least 2 points must be kept");
+        }
+        final int[] prev = new int[n];
+        final int[] next = new int[n];
+        for (int i = 0; i < n; i++) {
+            prev[i] = i - 1;
+            next[i] = i + 1;
+        }
+
+        // heap[] holds point indices ordered by area[], pos[] is the index of a point in heap[]
+        final double[] area = new double[n];
+        final int[] heap = new int[Math.max(0, n - 2)];
+        final int[] pos = new int[n];
+        int heapSize = 0;
+        for (int i = 1; i < n - 1; i++) {
+            area[i] = triangleArea(lat, lng, i - 1, i, i + 1);
+            heap[heapSize] = i;
+            pos[i] = heapSize++;
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(heap, pos, area, heapSize, i);
+        }
+
+        int remaining = n;
+        while (heapSize > 0 && (remaining > maxPoints || area[heap[0]] < tolerance)) {
+            final int p = heap[0];
+            final double removedArea = area[p];
+            heap[0] = heap[--heapSize];
+            pos[heap[0]] = 0;
+            siftDown(heap, pos, area, heapSize, 0);
+            pos[p] = -1;
+            remaining--;
+
+            final int before = prev[p];
+            final int after = next[p];
+            next[before] = after;
+            prev[after] = before;
+            // the new triangles of the neighbours
+            if (prev[before] >= 0) {
+                updateArea(heap, pos, area, heapSize, before, Math.max(removedArea,
+                        triangleArea(lat, lng, prev[before], before, after)));
+            }
+            if (next[after] < n) {
+                updateArea(heap, pos, area, heapSize, after, Math.max(removedArea,
+                        triangleArea(lat, lng, before, after, next[after])));
+            }
+        }
+
+        int count = 0;
+        for (int i = 0; i < n; i = next[i]) {
+            result[count++] = i;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the area in square meters of the triangle formed by the given points, computed
+     * in a local equirectangular projection around the middle point b.
+     */
+    static double triangleArea(double[] lat, double[] lng, int a, int b, int c) {
+        final double scale = cos(lat[b]);
+        final double ax = wrap(lng[a] - lng[b], -PI, PI) * scale, ay = lat[a] - lat[b];
+        final double cx = wrap(lng[c] - lng[b], -PI, PI) * scale, cy = lat[c] - lat[b];
+        return abs(ax * cy - ay * cx) * 0.5 * EARTH_RADIUS * EARTH_RADIUS;
+    }
+
+    private static void updateArea(int[] heap, int[] pos, double[] area, int heapSize,
+                                   int point, double newArea) {
+        final double oldArea = area[point];
+        area[point] = newArea;
+        if (newArea < oldArea) {
+            siftUp(heap, pos, area, pos[point]);
+        } else if (newArea > oldArea) {
+            siftDown(heap, pos, area, heapSize, pos[point]);
+        }
+    }
+
+    /**
+     * Returns true if point a comes before point b in the heap: if it has the smaller area or,
+     * for equal areas, the lower index. So the result does not depend on the heap layout.
+     */
+    private static boolean removedBefore(int a, int b, double[] area) {
+        return area[a] < area[b] || (area[a] == area[b] && a < b);
+    }
+
+    private static void siftUp(int[] heap, int[] pos, double[] area, int i) {
+        final int point = heap[i];
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (removedBefore(heap[parent], point, area)) break;
+            heap[i] = heap[parent];
+            pos[heap[i]] = i;
+            i = parent;
+        }
+        heap[i] = point;
+        pos[point] = i;
+    }
+
+    private static void siftDown(int[] heap, int[] pos, double[] area, int heapSize, int i) {
+        if (heapSize == 0) return;
+        final int point = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && removedBefore(heap[child + 1], heap[child], area)) {
+                child++;
+            }
+            if (removedBefore(point, heap[child], area)) break;
+            heap[i] = heap[child];
+            pos[heap[i]] = i;
+            i = child;
+        }
+        heap[i] = point;
+        pos[point] = i;
+    }
+
     /**
      * Returns true if the provided list of points is a closed polygon (i.e., the first and last
      * points are the same), and false if it is not
@@ -398,47 +731,198 @@ public class PolyUtil {
      * @return the distance in meters (assuming spherical earth)
      */
     public static double distanceToLine(final LatLng p, final LatLng start, final LatLng end) {
-        if (start.equals(end)) {
-            computeDistanceBetween(end, p);
-        }
+        return distanceToLine(toRadians(p.latitude), toRadians(p.longitude),
+                toRadians(start.latitude), toRadians(start.longitude),
+                toRadians(end.latitude), toRadians(end.longitude));
+    }
 
-        final double s0lat = toRadians(p.latitude);
-        final double s0lng = toRadians(p.longitude);
-        final double s1lat = toRadians(start.latitude);
-        final double s1lng = toRadians(start.longitude);
-        final double s2lat = toRadians(end.latitude);
-        final double s2lng = toRadians(end.longitude);
+    /**
+     * Computes the distance on the sphere between the point (lat0, lng0) and the line segment
+     * (lat1, lng1) to (lat2, lng2). All arguments are in radians.
+     *
+     * @return the distance in meters (assuming spherical earth)
+     */
+    static double distanceToLine(double lat0, double lng0, double lat1, double lng1,
+                                 double lat2, double lng2) {
+        if (lat1 == lat2 && lng1 == lng2) {
+            return computeDistanceBetweenRadians(lat2, lng2, lat0, lng0);
+        }
 
-        double s2s1lat = s2lat - s1lat;
-        double s2s1lng = s2lng - s1lng;
-        final double u = ((s0lat - s1lat) * s2s1lat + (s0lng - s1lng) * s2s1lng) /
+        // across the antimeridian, the segment and the offset go the short way
+        double s2s1lat = lat2 - lat1;
+        double s2s1lng = wrapDifference(lng2 - lng1);
+        double lngA = wrapDifference(lng0 - lng1);
+        final double u = ((lat0 - lat1) * s2s1lat + lngA * s2s1lng) /
                 (s2s1lat * s2s1lat + s2s1lng * s2s1lng);
         if (u <= 0) {
-            return computeDistanceBetween(p, start);
+            return computeDistanceBetweenRadians(lat0, lng0, lat1, lng1);
         }
         if (u >= 1) {
-            return computeDistanceBetween(p, end);
+            return computeDistanceBetweenRadians(lat0, lng0, lat2, lng2);
         }
-        LatLng sa = new LatLng(p.latitude - start.latitude, p.longitude - start.longitude);
-        LatLng sb = new LatLng(u * (end.latitude - start.latitude),
-                u * (end.longitude - start.longitude));
-        return computeDistanceBetween(sa, sb);
+        // the offsets are normalized like LatLng does it with coordinates
+        return computeDistanceBetweenRadians(
+                clamp(lat0 - lat1, -PI / 2, PI / 2), lngA,
+                clamp(u * s2s1lat, -PI / 2, PI / 2), u * s2s1lng);
+    }
+
+    /**
+     * @param difference the difference of two longitudes in [-PI, PI], in radians
+     * @return the same difference in [-PI, PI], going the short way around
+     */
+    private static double wrapDifference(double difference) {
+        if (difference > PI) return difference - 2 * PI;
+        if (difference < -PI) return difference + 2 * PI;
+        return difference;
     }
 
     /**
      * Decodes an encoded path string into a sequence of LatLngs.
      */
     public static List<LatLng> decode(final String encodedPath) {
-        int len = encodedPath.length();
-
-        // For speed we preallocate to an upper bound on the final length, then
-        // truncate the array before returning.
+        final PathDecoder decoder = new PathDecoder(encodedPath);
         final List<LatLng> path = new ArrayList<LatLng>();
-        int index = 0;
-        int lat = 0;
-        int lng = 0;
+        while (decoder.hasNext()) {
+            path.add(decoder.next());
+        }
+        return path;
+    }
 
-        while (index < len) {
+    /**
+     * Returns the number of points in an encoded path string, without decoding them.
+     */
+    public static int countPoints(final CharSequence encodedPath) {
+        int values = 0;
+        for (int i = 0, len = encodedPath.length(); i < len; i++) {
+            // the last character of every value has the continuation bit cleared
+            if (encodedPath.charAt(i) - 63 < 0x20) {
+                values++;
+            }
+        }
+        return values / 2;
+    }
+
+    /**
+     * Decodes an encoded path string into arrays of latitudes and longitudes in degrees.
+     *
+     * @param lat receives the latitudes, must have room for {@link #countPoints(CharSequence)}
+     *            points
+     * @param lng receives the longitudes, same size as lat
+     * @return the number of decoded points
+     */
+    public static int decode(final CharSequence encodedPath, final double[] lat,
+                             final double[] lng) {
+        final PathDecoder decoder = new PathDecoder(encodedPath);
+        int n = 0;
+        while (decoder.hasNext()) {
+            decoder.advance();
+            lat[n] = decoder.getLatitude();
+            lng[n] = decoder.getLongitude();
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Decodes an encoded path string into arrays of coordinates in the fixed point format of
+     * the encoding (degrees * 1e5).
+     *
+     * @param latE5 receives the latitudes, must have room for
+     *              {@link #countPoints(CharSequence)} points
+     * @param lngE5 receives the longitudes, same size as latE5
+     * @return the number of decoded points
+     */
+    public static int decodeE5(final CharSequence encodedPath, final int[] latE5,
+                               final int[] lngE5) {
+        final PathDecoder decoder = new PathDecoder(encodedPath);
+        int n = 0;
+        while (decoder.hasNext()) {
+            decoder.advance();
+            latE5[n] = decoder.getLatE5();
+            lngE5[n] = decoder.getLngE5();
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Decodes an encoded path string lazily, one point at a time, so even very long paths
+     * never have to be held as a list of points.
+     * <p/>
+     * Use it as an Iterator&lt;LatLng&gt; or, to not create any objects, call
+     * {@link #advance()} and read the coordinates of the current point with the getters.
+     */
+    public static class PathDecoder implements Iterator<LatLng> {
+
+        private final CharSequence encodedPath;
+        private final int len;
+        private int index;
+        private int lat;
+        private int lng;
+
+        public PathDecoder(final CharSequence encodedPath) {
+            this.encodedPath = encodedPath;
+            this.len = encodedPath.length();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < len;
+        }
+
+        /**
+         * Decodes the next point without creating a LatLng for it.
+         *
+         * @throws NoSuchElementException if there are no more points
+         */
+        public void advance() {
+            if (index >= len) {
+                throw new NoSuchElementException();
+            }
+            lat += nextValue();
+            lng += nextValue();
+        }
+
+        @Override
+        public LatLng next() {
+            advance();
+            return new LatLng(getLatitude(), getLongitude());
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * @return the latitude of the current point in degrees
+         */
+        public double getLatitude() {
+            return lat * 1e-5;
+        }
+
+        /**
+         * @return the longitude of the current point in degrees
+         */
+        public double getLongitude() {
+            return lng * 1e-5;
+        }
+
+        /**
+         * @return the latitude of the current point in degrees * 1e5
+         */
+        public int getLatE5() {
+            return lat;
+        }
+
+        /**
+         * @return the longitude of the current point in degrees * 1e5
+         */
+        public int getLngE5() {
+            return lng;
+        }
+
+        private int nextValue() {
             int result = 1;
             int shift = 0;
             int b;
@@ -447,23 +931,18 @@ public class PolyUtil {
                 result += b << shift;
                 shift += 5;
             } while (b >= 0x1f);
-            lat += (result & 1) != 0 ? ~(result >> 1) : (result >> 1);
-
-            result = 1;
-            shift = 0;
-            do {
-                b = encodedPath.charAt(index++) - 63 - 1;
-                result += b << shift;
-                shift += 5;
-            } while (b >= 0x1f);
-            lng += (result & 1) != 0 ? ~(result >> 1) : (result >> 1);
-
-            path.add(new LatLng(lat * 1e-5, lng * 1e-5));
+            return (result & 1) != 0 ? ~(result >> 1) : (result >> 1);
         }
-
-        return path;
     }
 
+    /**
+     * The maximum number of characters needed to encode one point given in degrees * 1e5.
+     */
+    public static final int MAX_ENCODED_POINT_LENGTH = 14;
+
+    // the number of characters encoded at once before appending them to a sink
+    private static final int ENCODE_BUFFER_SIZE = 1024;
+
     /**
      * Encodes a sequence of LatLngs into an encoded path string.
      */
@@ -471,17 +950,17 @@ public class PolyUtil {
         long lastLat = 0;
         long lastLng = 0;
 
-        final StringBuffer result = new StringBuffer();
+        // typical points need 4 to 8 characters
+        final StringBuilder result = new StringBuilder(path.size() * 8);
+        final char[] point = new char[MAX_ENCODED_POINT_LENGTH];
 
-        for (final LatLng point : path) {
-            long lat = Math.round(point.latitude * 1e5);
-            long lng = Math.round(point.longitude * 1e5);
+        for (final LatLng p : path) {
+            long lat = Math.round(p.latitude * 1e5);
+            long lng = Math.round(p.longitude * 1e5);
 
-            long dLat = lat - lastLat;
-            long dLng = lng - lastLng;
-
-            encode(dLat, result);
-            encode(dLng, result);
+            int length = encodeValue(lat - lastLat, point, 0);
+            length = encodeValue(lng - lastLng, point, length);
+            result.append(point, 0, length);
 
             lastLat = lat;
             lastLng = lng;
@@ -489,12 +968,129 @@ public class PolyUtil {
         return result.toString();
     }
 
-    private static void encode(long v, StringBuffer result) {
+    /**
+     * Encodes arrays of latitudes and longitudes in degrees into an encoded path string.
+     *
+     * @param n the number of points to encode from the arrays
+     */
+    public static String encode(final double[] lat, final double[] lng, final int n) {
+        final StringBuilder result = new StringBuilder(n * 8);
+        try {
+            encode(lat, lng, n, result);
+        } catch (IOException e) {
+            // a StringBuilder does not throw
+            throw new IllegalStateException(e);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Encodes arrays of latitudes and longitudes in degrees and appends the encoded path to
+     * the given sink, for example a Writer to stream very long paths.
+     *
+     * @param n   the number of points to encode from the arrays
+     * @param out the sink
+     * @throws IOException if the sink throws it
+     */
+    public static void encode(final double[] lat, final double[] lng, final int n,
+                              final Appendable out) throws IOException {
+        final char[] buffer = new char[ENCODE_BUFFER_SIZE];
+        int length = 0;
+        long lastLat = 0;
+        long lastLng = 0;
+        for (int i = 0; i < n; i++) {
+            if (length > buffer.length - MAX_ENCODED_POINT_LENGTH) {
+                append(out, buffer, length);
+                length = 0;
+            }
+            long la = Math.round(lat[i] * 1e5);
+            long ln = Math.round(lng[i] * 1e5);
+            length = encodeValue(la - lastLat, buffer, length);
+            length = encodeValue(ln - lastLng, buffer, length);
+            lastLat = la;
+            lastLng = ln;
+        }
+        append(out, buffer, length);
+    }
+
+    /**
+     * Encodes arrays of coordinates in degrees * 1e5 and appends the encoded path to the
+     * given sink.
+     *
+     * @param n   the number of points to encode from the arrays
+     * @param out the sink
+     * @throws IOException if the sink throws it
+     */
+    public static void encodeE5(final int[] latE5, final int[] lngE5, final int n,
+                                final Appendable out) throws IOException {
+        final char[] buffer = new char[ENCODE_BUFFER_SIZE];
+        final int pointsPerBuffer = ENCODE_BUFFER_SIZE / MAX_ENCODED_POINT_LENGTH;
+        for (int i = 0; i < n; i += pointsPerBuffer) {
+            int length = encodeE5(latE5, lngE5, i, Math.min(n, i + pointsPerBuffer),
+                    buffer, 0);
+            append(out, buffer, length);
+        }
+    }
+
+    /**
+     * Encodes arrays of coordinates in degrees * 1e5 into the given char array.
+     *
+     * @param n      the number of points to encode from the arrays
+     * @param out    the array to write to, must have room for n * MAX_ENCODED_POINT_LENGTH
+     *               characters after offset
+     * @param offset the index of the first character to write
+     * @return the index after the last written character
+     */
+    public static int encodeE5(final int[] latE5, final int[] lngE5, final int n,
+                               final char[] out, int offset) {
+        return encodeE5(latE5, lngE5, 0, n, out, offset);
+    }
+
+    /**
+     * Encodes the points from index start to end (exclusive), continuing an encoded path
+     * which already contains the points before start.
+     */
+    private static int encodeE5(final int[] latE5, final int[] lngE5, final int start,
+                                final int end, final char[] out, int offset) {
+        long lastLat = start == 0 ? 0 : latE5[start - 1];
+        long lastLng = start == 0 ? 0 : lngE5[start - 1];
+        for (int i = start; i < end; i++) {
+            offset = encodeValue(latE5[i] - lastLat, out, offset);
+            offset = encodeValue(lngE5[i] - lastLng, out, offset);
+            lastLat = latE5[i];
+            lastLng = lngE5[i];
+        }
+        return offset;
+    }
+
+    /**
+     * Encodes a single value, for example the difference of a coordinate in degrees * 1e5 to
+     * the one of the previous point, into the given char array.
+     *
+     * @param v      the value
+     * @param out    the array to write to, must have room for MAX_ENCODED_POINT_LENGTH / 2
+     *               characters after offset for a coordinate difference
+     * @param offset the index of the first character to write
+     * @return the index after the last written character
+     */
+    public static int encodeValue(long v, final char[] out, int offset) {
         v = v < 0 ? ~(v << 1) : v << 1;
         while (v >= 0x20) {
-            result.append(Character.toChars((int) ((0x20 | (v & 0x1f)) + 63)));
+            out[offset++] = (char) ((0x20 | (v & 0x1f)) + 63);
             v >>= 5;
         }
-        result.append(Character.toChars((int) (v + 63)));
+        out[offset++] = (char) (v + 63);
+        return offset;
+    }
+
+    private static void append(final Appendable out, final char[] buffer, int length)
+            throws IOException {
+        if (out instanceof Writer) {
+            ((Writer) out).write(buffer, 0, length);
+        } else if (out instanceof StringBuilder) {
+            ((StringBuilder) out).append(buffer, 0, length);
+        } else {
+            out.append(CharBuffer.wrap(buffer, 0, length));
+        }
     }
 }
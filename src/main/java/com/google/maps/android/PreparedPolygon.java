@@ -0,0 +1,360 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.maps.android;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.List;
+
+import static com.google.maps.android.MathUtil.*;
+import static java.lang.Math.*;
+
+/**
+ * A polygon prepared for many {@link PolyUtil#containsLocation(LatLng, List, boolean)} and
+ * {@link PolyUtil#isLocationOnEdge(LatLng, List, boolean, double)} queries.
+ * <p/>
+ * The vertices are converted to radians and mercator coordinates once and the edges are
+ * indexed in two bucket grids: by the longitude range they span (only those edges can cross
+ * the meridian through the tested point) and by their latitude range (only those edges can
+ * be close to the tested point). So a query only tests a few candidate edges instead of all
+ * of them. The candidates are tested with exactly the same code as in PolyUtil, so the
+ * results are the same as the ones of the PolyUtil methods.
+ */
+public class PreparedPolygon {
+
+    private static final double DEFAULT_TOLERANCE = 0.1;  // meters, same as PolyUtil
+    private static final int MAX_BUCKETS = 1 << 16;
+    // bucket bounds are extended by this many radians to be safe from rounding errors
+    private static final double EPSILON = 1e-9;
+    // polygons which leave a smaller range of longitudes uncovered are treated as covering all
+    private static final double MIN_GAP = 1e-6;
+
+    private final int size;
+    private final boolean geodesic;
+    // edge i goes from vertex i - 1 (the last vertex for i == 0) to vertex i
+    private final double[] lat, lng, mercatorLat;
+    // the longitude difference of every edge: wrap(lng[i] - lng[i - 1], -PI, PI)
+    private final double[] dLng;
+
+    // edges by longitude range
+    private boolean lngWraps;
+    private double lngStart, lngExtent, lngGap, lngBucketWidth;
+    private int[] lngBucketStart, lngBucketEdges;
+
+    // edges by latitude range
+    private double latStart, latBucketHeight;
+    private int[] latBucketStart, latBucketEdges;
+
+    /**
+     * @param polygon  the polygon, always considered closed
+     * @param geodesic true, if the polygon is formed of great circle segments, false for rhumb
+     *                 (loxodromic) segments
+     */
+    public PreparedPolygon(List<LatLng> polygon, boolean geodesic) {
+        this.geodesic = geodesic;
+        size = polygon.size();
+        lat = new double[size];
+        lng = new double[size];
+        mercatorLat = new double[size];
+        dLng = new double[size];
+        for (int i = 0; i < size; i++) {
+            LatLng point = polygon.get(i);
+            lat[i] = toRadians(point.latitude);
+            lng[i] = toRadians(point.longitude);
+            mercatorLat[i] = mercator(lat[i]);
+        }
+        for (int i = 0; i < size; i++) {
+            dLng[i] = wrap(lng[i] - lng[previous(i)], -PI, PI);
+        }
+        if (size > 0) {
+            buildLngIndex();
+            buildLatIndex();
+        }
+    }
+
+    /**
+     * Same as {@link PolyUtil#containsLocation(LatLng, List, boolean)} for this polygon
+     */
+    public boolean containsLocation(LatLng point) {
+        if (size == 0) {
+            return false;
+        }
+        final double lat3 = toRadians(point.latitude);
+        final double lng3 = toRadians(point.longitude);
+        final double r3 = relativeLng(lng3);
+        if (!lngWraps && (r3 < -EPSILON || r3 > lngExtent + EPSILON)) {
+            // no edge spans this meridian
+            return false;
+        }
+        final int bucket = max(0, min(lngBucketStart.length - 2, (int) floor(r3 / lngBucketWidth)));
+        int nIntersect = 0;
+        for (int j = lngBucketStart[bucket]; j < lngBucketStart[bucket + 1]; j++) {
+            final int i = lngBucketEdges[j];
+            final int p = previous(i);
+            double dLng3 = wrap(lng3 - lng[p], -PI, PI);
+            // Special case: point equal to vertex is inside.
+            if (lat3 == lat[p] && dLng3 == 0) {
+                return true;
+            }
+            if (PolyUtil.intersects(lat[p], lat[i], dLng[i], lat3, dLng3, geodesic)) {
+                ++nIntersect;
+            }
+        }
+        return (nIntersect & 1) != 0;
+    }
+
+    /**
+     * Tests many points at once
+     *
+     * @param points the points to test
+     * @return for every point, the result of {@link #containsLocation(LatLng)}
+     */
+    public boolean[] containsLocations(List<LatLng> points) {
+        boolean[] result = new boolean[points.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = containsLocation(points.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link PolyUtil#isLocationOnEdge(LatLng, List, boolean, double)} for this polygon
+     */
+    public boolean isLocationOnEdge(LatLng point, double tolerance) {
+        if (size == 0) {
+            return false;
+        }
+        final double toleranceRad = tolerance / EARTH_RADIUS;
+        final double havTolerance = hav(toleranceRad);
+        final double lat3 = toRadians(point.latitude);
+        final double lng3 = toRadians(point.longitude);
+        final int buckets = latBucketStart.length - 1;
+        final int first = (int) floor((lat3 - toleranceRad - latStart) / latBucketHeight);
+        final int last = (int) floor((lat3 + toleranceRad - latStart) / latBucketHeight);
+        if (last < 0 || first >= buckets) {
+            return false;
+        }
+        // an edge can be in more than one of the buckets, but testing it twice does no harm
+        for (int bucket = max(0, first); bucket <= min(buckets - 1, last); bucket++) {
+            for (int j = latBucketStart[bucket]; j < latBucketStart[bucket + 1]; j++) {
+                if (isOnEdge(latBucketEdges[j], lat3, lng3, toleranceRad, havTolerance)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Same as {@link #isLocationOnEdge(LatLng, double)} with a default tolerance of 0.1 meters.
+     */
+    public boolean isLocationOnEdge(LatLng point) {
+        return isLocationOnEdge(point, DEFAULT_TOLERANCE);
+    }
+
+    /**
+     * Tests many points at once
+     *
+     * @param points    the points to test
+     * @param tolerance the tolerance in meters
+     * @return for every point, the result of {@link #isLocationOnEdge(LatLng, double)}
+     */
+    public boolean[] areLocationsOnEdge(List<LatLng> points, double tolerance) {
+        boolean[] result = new boolean[points.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = isLocationOnEdge(points.get(i), tolerance);
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of vertices of this polygon
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Tests a single edge, in the same way as PolyUtil.isLocationOnEdgeOrPath
+     */
+    private boolean isOnEdge(int i, double lat3, double lng3, double tolerance,
+                             double havTolerance) {
+        final int p = previous(i);
+        final double lat1 = lat[p], lng1 = lng[p];
+        final double lat2 = lat[i], lng2 = lng[i];
+        if (geodesic) {
+            return PolyUtil.isOnSegmentGC(lat1, lng1, lat2, lng2, lat3, lng3, havTolerance);
+        }
+        if (max(lat1, lat2) >= lat3 - tolerance && min(lat1, lat2) <= lat3 + tolerance) {
+            final double y1 = mercatorLat[p];
+            final double y2 = mercatorLat[i];
+            final double y3 = mercator(lat3);
+            // We offset longitudes by -lng1; the implicit x1 is 0.
+            final double x2 = wrap(lng2 - lng1, -PI, PI);
+            final double x3Base = wrap(lng3 - lng1, -PI, PI);
+            for (int k = 0; k < 3; k++) {
+                // Also explore wrapping of x3Base around the world in both directions.
+                double x3 = k == 0 ? x3Base : k == 1 ? x3Base + 2 * PI : x3Base - 2 * PI;
+                double dy = y2 - y1;
+                double len2 = x2 * x2 + dy * dy;
+                double t = len2 <= 0 ? 0 : clamp((x3 * x2 + (y3 - y1) * dy) / len2, 0, 1);
+                double xClosest = t * x2;
+                double yClosest = y1 + t * dy;
+                double latClosest = inverseMercator(yClosest);
+                double havDist = havDistance(lat3, latClosest, x3 - xClosest);
+                if (havDist < havTolerance) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private int previous(int i) {
+        return i == 0 ? size - 1 : i - 1;
+    }
+
+    /**
+     * Returns the longitude relative to the start of the longitude index
+     */
+    private double relativeLng(double lng) {
+        // if the polygon does not wrap, the cut is in the middle of the range without edges
+        return lngWraps ? wrap(lng - lngStart, 0, 2 * PI) :
+                wrap(lng - lngStart, -lngGap, 2 * PI - lngGap);
+    }
+
+    private void buildLngIndex() {
+        // follow the edges to find the longitude range they cover
+        double u = 0, minU = 0, maxU = 0;
+        for (int i = 0; i < size; i++) {
+            u += dLng[i];
+            minU = min(minU, u);
+            maxU = max(maxU, u);
+        }
+        lngExtent = maxU - minU;
+        lngGap = (2 * PI - lngExtent) / 2;
+        // for example a polygon around a pole
+        lngWraps = lngGap < MIN_GAP;
+        if (lngWraps) {
+            lngStart = -PI;
+            lngExtent = 2 * PI;
+        } else {
+            lngStart = lng[size - 1] + minU;
+        }
+        double[] lo = new double[size];
+        double[] hi = new double[size];
+        for (int i = 0; i < size; i++) {
+            double r1 = relativeLng(lng[previous(i)]);
+            double r2 = r1 + dLng[i];
+            lo[i] = min(r1, r2) - EPSILON;
+            hi[i] = max(r1, r2) + EPSILON;
+        }
+        int buckets = getBucketCount(lo, hi, lngExtent);
+        lngBucketWidth = max(lngExtent / buckets, EPSILON);
+        int[][] index = buildIndex(lo, hi, lngBucketWidth, buckets, lngWraps);
+        lngBucketStart = index[0];
+        lngBucketEdges = index[1];
+    }
+
+    private void buildLatIndex() {
+        double[] lo = new double[size];
+        double[] hi = new double[size];
+        double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < size; i++) {
+            int p = previous(i);
+            // a point close to a great circle segment is at most as far from its end points
+            // as the segment is long (plus the tolerance), see PolyUtil.isOnSegmentGC
+            double expand = geodesic ?
+                    arcHav(min(1, havDistance(lat[p], lat[i], lng[p] - lng[i]))) : 0;
+            lo[i] = min(lat[p], lat[i]) - expand - EPSILON;
+            hi[i] = max(lat[p], lat[i]) + expand + EPSILON;
+            minLat = min(minLat, lo[i]);
+            maxLat = max(maxLat, hi[i]);
+        }
+        int buckets = getBucketCount(lo, hi, maxLat - minLat);
+        latStart = minLat;
+        latBucketHeight = max((maxLat - minLat) / buckets, EPSILON);
+        for (int i = 0; i < size; i++) {
+            lo[i] -= latStart;
+            hi[i] -= latStart;
+        }
+        int[][] index = buildIndex(lo, hi, latBucketHeight, buckets, false);
+        latBucketStart = index[0];
+        latBucketEdges = index[1];
+    }
+
+    /**
+     * Returns the number of buckets for the given edge ranges: about as many as the range
+     * can hold edges of average length, so most edges are in only one or two buckets
+     */
+    private int getBucketCount(double[] lo, double[] hi, double range) {
+        double spans = 0;
+        for (int i = 0; i < size; i++) {
+            spans += hi[i] - lo[i];
+        }
+        return (int) max(1, min(min(size, MAX_BUCKETS), range / (spans / size)));
+    }
+
+    /**
+     * Sorts the edges into buckets of the given width. Edge i is put into every bucket which
+     * overlaps the range lo[i] to hi[i].
+     *
+     * @param wraps true, if the buckets form a circle (so bucket 0 follows the last bucket)
+     * @return the index of the first edge of every bucket in the edge array (plus the end of
+     * the last bucket) and the edge array
+     */
+    private static int[][] buildIndex(double[] lo, double[] hi, double width, int buckets,
+                                      boolean wraps) {
+        final int n = lo.length;
+        final int[] first = new int[n];
+        final int[] last = new int[n];
+        final int[] start = new int[buckets + 1];
+        for (int i = 0; i < n; i++) {
+            int a = (int) floor(lo[i] / width);
+            int b = (int) floor(hi[i] / width);
+            if (!wraps) {
+                a = max(0, min(buckets - 1, a));
+                b = max(0, min(buckets - 1, b));
+            } else if (b - a + 1 >= buckets) {
+                a = 0;
+                b = buckets - 1;
+            }
+            first[i] = a;
+            last[i] = b;
+            for (int k = a; k <= b; k++) {
+                start[bucketOf(k, buckets) + 1]++;
+            }
+        }
+        for (int k = 0; k < buckets; k++) {
+            start[k + 1] += start[k];
+        }
+        final int[] edges = new int[start[buckets]];
+        final int[] fill = new int[buckets];
+        for (int i = 0; i < n; i++) {
+            for (int k = first[i]; k <= last[i]; k++) {
+                int bucket = bucketOf(k, buckets);
+                edges[start[bucket] + fill[bucket]++] = i;
+            }
+        }
+        return new int[][]{start, edges};
+    }
+
+    private static int bucketOf(int k, int buckets) {
+        int bucket = k % buckets;
+        return bucket < 0 ? bucket + buckets : bucket;
+    }
+}
@@ -27,7 +27,9 @@ import static java.lang.Math.abs;
 import static java.lang.Math.atan2;
 import static java.lang.Math.cos;
 import static java.lang.Math.sin;
+import static java.lang.Math.sqrt;
 import static java.lang.Math.tan;
+import static java.lang.Math.toDegrees;
 import static java.lang.Math.toRadians;
 
 public class SphericalUtil {
@@ -44,6 +46,22 @@ public class SphericalUtil {
         return arcHav(havDistance(lat1, lat2, lng1 - lng2));
     }
 
+    /**
+     * Returns the distance between two points in meters; the arguments are in radians.
+     */
+    static double computeDistanceBetweenRadians(double lat1, double lng1, double lat2,
+                                                double lng2) {
+        return distanceRadians(lat1, lng1, lat2, lng2) * EARTH_RADIUS;
+    }
+
+    /**
+     * Returns the distance in meters on Earth for the given hav() of a distance on the
+     * unit sphere.
+     */
+    static double havToMeters(double hav) {
+        return arcHav(hav) * EARTH_RADIUS;
+    }
+
     /**
      * Returns the angle between two LatLngs, in radians. This is the same as the distance
      * on the unit sphere.
@@ -60,6 +78,76 @@ public class SphericalUtil {
         return computeAngleBetween(from, to) * EARTH_RADIUS;
     }
 
+    /**
+     * Returns the distance between two points in meters; the arguments are in degrees.
+     */
+    public static double computeDistanceBetween(double lat1, double lng1, double lat2,
+                                                double lng2) {
+        return computeDistanceBetweenRadians(toRadians(lat1), toRadians(lng1), toRadians(lat2),
+                toRadians(lng2));
+    }
+
+    /**
+     * Returns the length of the given path, in meters, on Earth.
+     */
+    public static double computeLength(List<LatLng> path) {
+        if (path.size() < 2) {
+            return 0;
+        }
+        double length = 0;
+        LatLng prev = path.get(0);
+        double prevLat = toRadians(prev.latitude);
+        double prevLng = toRadians(prev.longitude);
+        for (LatLng point : path) {
+            double lat = toRadians(point.latitude);
+            double lng = toRadians(point.longitude);
+            length += distanceRadians(prevLat, prevLng, lat, lng);
+            prevLat = lat;
+            prevLng = lng;
+        }
+        return length * EARTH_RADIUS;
+    }
+
+    /**
+     * Returns the LatLng which lies the given fraction of the way between the
+     * origin LatLng and the destination LatLng.
+     *
+     * @param from     The LatLng from which to start.
+     * @param to       The LatLng toward which to travel.
+     * @param fraction A fraction of the distance to travel.
+     * @return The interpolated LatLng.
+     */
+    public static LatLng interpolate(LatLng from, LatLng to, double fraction) {
+        // http://en.wikipedia.org/wiki/Slerp
+        double fromLat = toRadians(from.latitude);
+        double fromLng = toRadians(from.longitude);
+        double toLat = toRadians(to.latitude);
+        double toLng = toRadians(to.longitude);
+        double cosFromLat = cos(fromLat);
+        double cosToLat = cos(toLat);
+
+        // Computes Spherical interpolation coefficients.
+        double angle = computeAngleBetween(from, to);
+        double sinAngle = sin(angle);
+        if (sinAngle < 1E-6) {
+            return new LatLng(
+                    from.latitude + fraction * (to.latitude - from.latitude),
+                    from.longitude + fraction * (to.longitude - from.longitude));
+        }
+        double a = sin((1 - fraction) * angle) / sinAngle;
+        double b = sin(fraction * angle) / sinAngle;
+
+        // Converts from polar to vector and interpolate.
+        double x = a * cosFromLat * cos(fromLng) + b * cosToLat * cos(toLng);
+        double y = a * cosFromLat * sin(fromLng) + b * cosToLat * sin(toLng);
+        double z = a * sin(fromLat) + b * sin(toLat);
+
+        // Converts interpolated vector back to polar.
+        double lat = atan2(z, sqrt(x * x + y * y));
+        double lng = atan2(y, x);
+        return new LatLng(toDegrees(lat), toDegrees(lng));
+    }
+
     /**
      * Returns the area of a closed path on Earth.
      *
@@ -96,6 +184,30 @@ public class SphericalUtil {
         return total * (EARTH_RADIUS * EARTH_RADIUS);
     }
 
+    /**
+     * Returns the signed area of the triangle formed by the North Pole and the edge from
+     * (lat1, lng1) to (lat2, lng2), in square meters. The arguments are in degrees.
+     * The signed area of a closed path is the sum of this value over all of its edges
+     * (including the closing edge), so it can be used to maintain the area of a path which
+     * grows or shrinks at its end without recomputing all edges.
+     */
+    public static double computeSignedEdgeArea(double lat1, double lng1, double lat2, double lng2) {
+        return computeSignedEdgeArea(lat1, lng1, lat2, lng2, EARTH_RADIUS);
+    }
+
+    /**
+     * Returns the signed area of the triangle formed by the North Pole and the edge from
+     * (lat1, lng1) to (lat2, lng2) on a sphere with the given radius, in square meters.
+     * The arguments are in degrees.
+     */
+    public static double computeSignedEdgeArea(double lat1, double lng1, double lat2, double lng2,
+                                               double radius) {
+        double tan1 = tan((PI / 2 - toRadians(lat1)) / 2);
+        double tan2 = tan((PI / 2 - toRadians(lat2)) / 2);
+        return polarTriangleArea(tan2, toRadians(lng2), tan1, toRadians(lng1)) *
+                (radius * radius);
+    }
+
     /**
      * Returns the signed area of a triangle which has North Pole as a vertex.
      * Formula derived from "Area of a spherical triangle given two edges and the included angle"
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Compact binary format for saved traces.
+ * <p/>
+ * Layout: the magic number "MMTR", a version byte, the number of points as a
+ * 4 byte integer and then, for every point, the difference of latitude and
+ * longitude to the previous point. Coordinates are stored as fixed point
+ * values with 7 decimal places (about 1 cm) and the differences are written
+ * as zig-zag encoded variable length integers - the same idea as the encoded
+ * polyline format, but with bytes instead of printable characters. Typical
+ * traces need 2 to 6 bytes per point instead of about 40 in CSV.
+ */
+abstract class BinaryTraceFormat {
+
+    final static String FILE_EXTENSION = ".mmtrace";
+    final static int MAGIC = 0x4D4D5452; // "MMTR"
+    final static int HEADER_SIZE = 9;
+    private final static byte VERSION = 1;
+    private final static double SCALE = 1e7;
+    private final static int BUFFER_SIZE = 64 * 1024;
+    // two varints of at most 10 bytes each
+    private final static int MAX_POINT_SIZE = 20;
+
+    /**
+     * Writes the given trace to the given file, replacing its content
+     *
+     * @param f     the file to write to
+     * @param trace the trace to write
+     * @throws IOException
+     */
+    static void write(final File f, final Trace trace) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            write(out.getChannel(), trace);
+        }
+    }
+
+    /**
+     * Writes the given trace to the given channel
+     *
+     * @param out   the channel to write to
+     * @param trace the trace to write
+     * @throws IOException
+     */
+    static void write(final WritableByteChannel out, final Trace trace) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        buffer.putInt(MAGIC).put(VERSION).putInt(trace.size());
+        long lastLat = 0, lastLng = 0;
+        for (int i = 0; i < trace.size(); i++) {
+            if (buffer.remaining() < MAX_POINT_SIZE) {
+                flush(out, buffer);
+            }
+            long lat = Math.round(trace.getLatitude(i) * SCALE);
+            long lng = Math.round(trace.getLongitude(i) * SCALE);
+            putVarLong(buffer, lat - lastLat);
+            putVarLong(buffer, lng - lastLng);
+            lastLat = lat;
+            lastLng = lng;
+        }
+        flush(out, buffer);
+    }
+
+    /**
+     * @param trace a trace
+     * @return the number of bytes write() writes for the given trace
+     */
+    static long getSize(final Trace trace) {
+        long size = HEADER_SIZE;
+        long lastLat = 0, lastLng = 0;
+        for (int i = 0; i < trace.size(); i++) {
+            long lat = Math.round(trace.getLatitude(i) * SCALE);
+            long lng = Math.round(trace.getLongitude(i) * SCALE);
+            size += getVarLongSize(lat - lastLat) + getVarLongSize(lng - lastLng);
+            lastLat = lat;
+            lastLng = lng;
+        }
+        return size;
+    }
+
+    /**
+     * Reads a trace from the given channel
+     *
+     * @param in the channel to read from, positioned at the beginning of the trace
+     * @return the trace
+     * @throws IOException if the channel does not contain a valid trace
+     */
+    static Trace read(final ReadableByteChannel in) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        fill(in, buffer, HEADER_SIZE);
+        int count = readHeader(buffer);
+        Trace trace = new Trace(Math.min(count, 1 << 20));
+        long lat = 0, lng = 0;
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < MAX_POINT_SIZE) {
+                buffer.compact();
+                fill(in, buffer, 0);
+            }
+            lat += getVarLong(buffer);
+            lng += getVarLong(buffer);
+            trace.push(toDegrees(lat), toDegrees(lng));
+        }
+        return trace;
+    }
+
+    /**
+     * Reads and validates the header of a binary trace
+     *
+     * @param buffer the buffer, positioned at the beginning of the header
+     * @return the number of points in the trace
+     * @throws IOException if the header is invalid
+     */
+    static int readHeader(final ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC)
+            throw new IOException("Not a binary trace");
+        byte version = buffer.get();
+        if (version != VERSION) throw new IOException("Unsupported trace version " + version);
+        int count = buffer.getInt();
+        if (count < 0) throw new IOException("Invalid number of points: " + count);
+        return count;
+    }
+
+    /**
+     * Reads the next point difference from the buffer
+     *
+     * @param buffer the buffer
+     * @return the decoded difference in fixed point format
+     * @throws IOException if the buffer ends in the middle of a value
+     */
+    static long getVarLong(final ByteBuffer buffer) throws IOException {
+        long result = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (!buffer.hasRemaining() || shift > 63) throw new EOFException("Truncated trace");
+            b = buffer.get();
+            result |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return (result >>> 1) ^ -(result & 1);
+    }
+
+    /**
+     * @param fixedPoint a coordinate in the fixed point format of this class
+     * @return the coordinate in degrees
+     */
+    static double toDegrees(long fixedPoint) {
+        return fixedPoint / SCALE;
+    }
+
+    private static void putVarLong(final ByteBuffer buffer, long v) {
+        v = (v << 1) ^ (v >> 63);
+        while ((v & ~0x7FL) != 0) {
+            buffer.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buffer.put((byte) v);
+    }
+
+    private static int getVarLongSize(long v) {
+        v = (v << 1) ^ (v >> 63);
+        int size = 1;
+        while ((v & ~0x7FL) != 0) {
+            size++;
+            v >>>= 7;
+        }
+        return size;
+    }
+
+    private static void flush(final WritableByteChannel out, final ByteBuffer buffer)
+            throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Reads from the channel until the buffer is full or the channel has no more data
+     * and flips the buffer afterwards
+     *
+     * @param min the minimum number of bytes which must be available afterwards
+     */
+    private static void fill(final ReadableByteChannel in, final ByteBuffer buffer, int min)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) break;
+        }
+        buffer.flip();
+        if (buffer.remaining() < min) throw new EOFException("Truncated trace");
+    }
+}
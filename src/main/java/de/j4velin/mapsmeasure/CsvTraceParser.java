@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+/**
+ * Streaming parser for traces in CSV format: one point per line, latitude and
+ * longitude separated by "," or ";".
+ * <p/>
+ * The input is scanned byte by byte and the numbers are parsed directly from
+ * the digits, so no Strings are created per line. Lines which are not a valid
+ * point are skipped and counted.
+ */
+class CsvTraceParser extends TraceParser {
+
+    private int malformedLines;
+
+    // state of the current line
+    private int field;
+    private double latitude;
+    private boolean lineHasContent, lineError;
+
+    // state of the current number
+    private final DecimalParser number = new DecimalParser();
+    private boolean numberEnded; // whitespace after the number
+
+    /**
+     * @param callback the callback to pass the points to
+     */
+    CsvTraceParser(final PointCallback callback) {
+        super(callback);
+    }
+
+    /**
+     * Processes the last line, if the input does not end with a line break.
+     * Must be called after all input has been passed to parse.
+     */
+    @Override
+    void finish() {
+        endLine();
+    }
+
+    /**
+     * @return the number of non-empty lines which could not be parsed as a point
+     */
+    int getMalformedLines() {
+        return malformedLines;
+    }
+
+    @Override
+    void accept(char c) {
+        if (c == '\n') {
+            endLine();
+            return;
+        }
+        if (lineError) return;
+        if (c == ' ' || c == '\t' || c == '\r') {
+            if (!number.isEmpty()) numberEnded = true;
+            return;
+        }
+        lineHasContent = true;
+        if (c == ',' || c == ';') {
+            endField();
+            return;
+        }
+        if (numberEnded || !number.accept(c)) lineError = true;
+    }
+
+    private void endField() {
+        if (lineError) return;
+        if (field != 0 || !number.isValid()) {
+            lineError = true;
+            return;
+        }
+        latitude = number.value();
+        field = 1;
+        resetNumber();
+    }
+
+    private void endLine() {
+        if (lineHasContent) {
+            if (!lineError && field == 1 && number.isValid()) {
+                point(latitude, number.value());
+            } else {
+                malformedLines++;
+            }
+        }
+        field = 0;
+        lineHasContent = false;
+        lineError = false;
+        resetNumber();
+    }
+
+    private void resetNumber() {
+        number.reset();
+        numberEnded = false;
+    }
+}
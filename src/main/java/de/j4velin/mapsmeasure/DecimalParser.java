@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+/**
+ * Parses a decimal number one character at a time, as used by the streaming
+ * trace parsers.
+ * <p/>
+ * The value is computed directly from the digits, so no String is created for
+ * the usual coordinates. Only numbers with too many digits or a huge exponent
+ * fall back to Double.parseDouble.
+ */
+class DecimalParser {
+
+    // longer numbers are not a coordinate anyway
+    private final static int MAX_NUMBER_LENGTH = 64;
+    // mantissas up to 2^53 and powers of ten up to 10^22 are exact doubles, so a
+    // single multiplication or division is correctly rounded
+    private final static long MAX_EXACT_MANTISSA = 1L << 53;
+    private final static double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8,
+            1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private final char[] number = new char[MAX_NUMBER_LENGTH];
+    private int length;
+    private boolean negative, seenDot, inExponent, exponentNegative, mantissaOverflow;
+    private int mantissaDigits, exponentDigits, decimalShift, exponent;
+    private long mantissa;
+
+    /**
+     * Adds the next character to the number
+     *
+     * @param c the character
+     * @return false, if the character can not be part of the number at this
+     * position - the number is invalid then and should be reset
+     */
+    boolean accept(char c) {
+        if (length == MAX_NUMBER_LENGTH) return false;
+        if (c >= '0' && c <= '9') {
+            int digit = c - '0';
+            if (inExponent) {
+                if (exponent < 10000) exponent = exponent * 10 + digit;
+                exponentDigits++;
+            } else {
+                if (mantissa <= (Long.MAX_VALUE - 9) / 10) {
+                    mantissa = mantissa * 10 + digit;
+                    if (seenDot) decimalShift--;
+                } else {
+                    // only the precise fallback can handle this many digits
+                    mantissaOverflow = true;
+                }
+                mantissaDigits++;
+            }
+        } else if (c == '.') {
+            if (seenDot || inExponent) return false;
+            seenDot = true;
+        } else if (c == '-' || c == '+') {
+            if (inExponent && exponentDigits == 0 && (number[length - 1] | 0x20) == 'e') {
+                exponentNegative = c == '-';
+            } else if (length == 0) {
+                negative = c == '-';
+            } else {
+                return false;
+            }
+        } else if (c == 'e' || c == 'E') {
+            if (inExponent || mantissaDigits == 0) return false;
+            inExponent = true;
+        } else {
+            return false;
+        }
+        number[length++] = c;
+        return true;
+    }
+
+    /**
+     * @return true, if no character was accepted since the last reset
+     */
+    boolean isEmpty() {
+        return length == 0;
+    }
+
+    /**
+     * @return true, if the accepted characters form a complete number
+     */
+    boolean isValid() {
+        return mantissaDigits > 0 && (!inExponent || exponentDigits > 0);
+    }
+
+    /**
+     * @return the value of the number, only defined if isValid()
+     */
+    double value() {
+        int exp10 = decimalShift + (exponentNegative ? -exponent : exponent);
+        double value;
+        if (!mantissaOverflow && mantissa <= MAX_EXACT_MANTISSA &&
+                exp10 >= -22 && exp10 <= 22) {
+            value = exp10 < 0 ? mantissa / POWERS_OF_TEN[-exp10] :
+                    mantissa * POWERS_OF_TEN[exp10];
+            return negative ? -value : value;
+        } else {
+            // rare case (very long or huge numbers): use the slower, but exact library method
+            return Double.parseDouble(new String(number, 0, length));
+        }
+    }
+
+    /**
+     * Starts a new number
+     */
+    void reset() {
+        length = 0;
+        negative = seenDot = inExponent = exponentNegative = mantissaOverflow = false;
+        mantissaDigits = exponentDigits = decimalShift = exponent = 0;
+        mantissa = 0;
+    }
+}
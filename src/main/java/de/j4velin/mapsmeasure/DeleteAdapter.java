@@ -16,6 +16,7 @@
 
 package de.j4velin.mapsmeasure;
 
+import android.os.Handler;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -23,58 +24,136 @@ import android.view.ViewGroup;
 import android.widget.BaseAdapter;
 import android.widget.TextView;
 
-import java.io.File;
+import java.text.DateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
 /**
  * Class for showing a list of saved traces and the ability to delete them
- * 
+ * <p/>
+ * The traces are read from the TraceLibrary one page at a time, the next
+ * page is loaded in the background when the list is scrolled near its end.
  */
 class DeleteAdapter extends BaseAdapter {
 
-	private final ArrayList<File> files;
+	private final static int PAGE_SIZE = 50;
+
+	private final ArrayList<TraceLibrary.Entry> entries = new ArrayList<>();
+	private final Map map;
 	private final LayoutInflater mInflater;
+	private final Handler handler = new Handler();
+	private final DateFormat dateFormat = DateFormat.getDateTimeInstance();
+	private String filter;
+	private int sort;
+	private int total;
+	private boolean loading;
+	// incremented on every new query, so that pages of an old query are dropped
+	private int generation;
 	private final OnClickListener deleteListener = new OnClickListener() {
 		@Override
 		public void onClick(final View v) {
-            int file = (Integer) v.getTag();
-            files.remove(file).delete();
+			final TraceLibrary.Entry entry = entries.remove((int) (Integer) v.getTag());
+			total--;
 			notifyDataSetChanged();
+			new Thread(() -> {
+				if (entry.file.delete() || !entry.file.exists()) {
+					TraceLibrary.getInstance(map).remove(entry.file);
+				}
+			}).start();
 		}
 	};
 
 	/**
-	 * @param f
-	 *            the files to show
 	 * @param c
 	 *            the calling activity
 	 */
-	public DeleteAdapter(final File[] f, final Map c) {
-		files = new ArrayList<>(Arrays.asList(f));
+	DeleteAdapter(final Map c) {
+		map = c;
 		mInflater = c.getLayoutInflater();
 	}
 
 	/**
-	 * Gets a file from the list. Used to load the file when clicking on it.
+	 * Replaces the shown traces by the result of the given query
+	 * 
+	 * @param filter
+	 *            only show traces whose name contains this text, or null
+	 * @param sort
+	 *            one of the TraceLibrary.SORT_ constants
+	 */
+	void setQuery(final String filter, int sort) {
+		this.filter = filter;
+		this.sort = sort;
+		reload();
+	}
+
+	/**
+	 * Reads the first page of the current query again, for example after the
+	 * library changed
+	 */
+	void reload() {
+		final int query = ++generation;
+		final String filter = this.filter;
+		final int sort = this.sort;
+		loading = true;
+		new Thread(() -> {
+			TraceLibrary library = TraceLibrary.getInstance(map);
+			final int count = library.count(filter);
+			final List<TraceLibrary.Entry> page = library.query(filter, sort, 0, PAGE_SIZE);
+			handler.post(() -> {
+				if (query != generation) return;
+				entries.clear();
+				entries.addAll(page);
+				total = count;
+				loading = false;
+				notifyDataSetChanged();
+			});
+		}).start();
+	}
+
+	private void loadNextPage() {
+		final int query = generation;
+		final String filter = this.filter;
+		final int sort = this.sort;
+		final int offset = entries.size();
+		loading = true;
+		new Thread(() -> {
+			final List<TraceLibrary.Entry> page =
+					TraceLibrary.getInstance(map).query(filter, sort, offset, PAGE_SIZE);
+			handler.post(() -> {
+				// entries deleted meanwhile shift the offset, drop the page then
+				if (query != generation || offset != entries.size()) {
+					if (query == generation) loading = false;
+					return;
+				}
+				entries.addAll(page);
+				// the library changed, the list is complete anyway
+				if (page.size() < PAGE_SIZE) total = entries.size();
+				loading = false;
+				notifyDataSetChanged();
+			});
+		}).start();
+	}
+
+	/**
+	 * Gets a trace from the list. Used to load the file when clicking on it.
 	 * 
 	 * @param position
-	 *            of the file in the list
-	 * @return the corresponding file
+	 *            of the trace in the list
+	 * @return the corresponding trace
 	 */
-	File getFile(int position) {
-		return files.get(position);
+	TraceLibrary.Entry getEntry(int position) {
+		return entries.get(position);
 	}
 
 	@Override
 	public int getCount() {
-		return files.size();
+		return entries.size();
 	}
 
 	@Override
 	public Object getItem(int position) {
-		return files.get(position);
+		return entries.get(position);
 	}
 
 	@Override
@@ -82,7 +161,6 @@ class DeleteAdapter extends BaseAdapter {
 		return position;
 	}
 
-	@SuppressWarnings("deprecation")
 	@Override
 	public View getView(int position, View convertView, final ViewGroup parent) {
 		ViewHolder holder;
@@ -96,17 +174,21 @@ class DeleteAdapter extends BaseAdapter {
 		} else {
 			holder = (ViewHolder) convertView.getTag();
 		}
-		String filename = files.get(position).getName();
+		if (!loading && entries.size() < total && position >= entries.size() - PAGE_SIZE / 2) {
+			loadNextPage();
+		}
+		TraceLibrary.Entry entry = entries.get(position);
+		String filename = entry.name;
 		if (filename.startsWith("MapsMeasure_")) {
 			try {
-				Date date = new Date(Long.parseLong(filename.substring(filename.lastIndexOf("_") + 1, filename.lastIndexOf("."))));
-				filename = date.toLocaleString();
+				Date date = new Date(Long.parseLong(filename.substring(filename.lastIndexOf("_") + 1)));
+				filename = dateFormat.format(date);
 			} catch (NumberFormatException nfe) {
 			}
-		} else {
-			filename = filename.substring(0, filename.lastIndexOf("."));
 		}
-		holder.tv.setText(filename);
+		String length = Map.metric ? Map.formatter_two_dec.format(entry.length / 1000) + " km" :
+				Map.formatter_two_dec.format(entry.length / 1609.344f) + " mi";
+		holder.tv.setText(filename + "\n" + map.getString(R.string.trace_details, entry.points, length));
 		holder.iv.setTag(position);
 		return convertView;
 	}
@@ -22,28 +22,31 @@ import android.app.Dialog;
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.Uri;
 import android.os.Environment;
 import android.os.Handler;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.text.method.LinkMovementMethod;
 import android.view.View;
 import android.view.Window;
 import android.view.inputmethod.InputMethodManager;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.CheckBox;
 import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.RadioGroup;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import androidx.core.content.FileProvider;
-
-import com.google.android.gms.maps.model.LatLng;
-
 import java.io.File;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.Stack;
 
 abstract class Dialogs {
 
@@ -78,7 +81,7 @@ abstract class Dialogs {
      * @param trace the current trace of points
      * @return the "save & share" dialog
      */
-    public static Dialog getSaveNShare(final Activity c, final Stack<LatLng> trace) {
+    public static Dialog getSaveNShare(final Activity c, final Trace trace) {
         final Dialog d = new Dialog(c);
         d.requestWindowFeature(Window.FEATURE_NO_TITLE);
         d.setContentView(R.layout.dialog_save);
@@ -106,111 +109,146 @@ abstract class Dialogs {
                     c.getString(R.string.file_path, destination.getAbsolutePath() + "/"));
             b.setView(layout);
             b.setPositiveButton(R.string.save, (dialog, which) -> {
-                try {
-                    String fname = ((EditText) layout.findViewById(R.id.filename)).getText()
-                            .toString();
-                    if (fname.length() < 1) {
-                        fname = "MapsMeasure_" + System.currentTimeMillis();
-                    }
-                    final File f = new File(destination, fname + ".csv");
-                    Util.saveToFile(f, trace);
-                    d.dismiss();
-                    Toast.makeText(c, R.string.file_saved, Toast.LENGTH_SHORT).show();
-                } catch (Exception e) {
-                    if (BuildConfig.DEBUG) Logger.log(e);
-                    Toast.makeText(c, c.getString(R.string.error,
-                                    e.getClass().getSimpleName() + "\n" + e.getMessage()),
-                            Toast.LENGTH_LONG).show();
+                String fname = ((EditText) layout.findViewById(R.id.filename)).getText()
+                        .toString();
+                if (fname.length() < 1) {
+                    fname = "MapsMeasure_" + System.currentTimeMillis();
                 }
+                final File f = new File(destination, fname + BinaryTraceFormat.FILE_EXTENSION);
+                final Trace snapshot = trace.copy();
+                d.dismiss();
+                TraceIO.run(c, R.string.saving_trace, task -> {
+                    TraceIO.write(f, snapshot, TraceFormat.BINARY, task);
+                    TraceLibrary.getInstance(c).put(f, snapshot);
+                    return f;
+                }, result -> Toast.makeText(c, R.string.file_saved, Toast.LENGTH_SHORT).show());
             });
             b.create().show();
         });
         d.findViewById(R.id.load).setOnClickListener(v -> {
-
-            File[] files = c.getDir("traces", Context.MODE_PRIVATE).listFiles();
-
-            if (files == null) {
-                Toast.makeText(c, c.getString(R.string.dir_read_error,
-                                c.getDir("traces", Context.MODE_PRIVATE).getAbsolutePath()),
-                        Toast.LENGTH_SHORT).show();
-                return;
-            }
-
-            if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
-                File ext = c.getExternalFilesDir(null);
-                // even though we checked the external storage state, ext is still sometimes null, accoring to Play Store crash reports
-                if (ext != null && ext.listFiles() != null) {
-                    File[] filesExtern = ext.listFiles();
-                    File[] allFiles = new File[files.length + filesExtern.length];
-                    System.arraycopy(files, 0, allFiles, 0, files.length);
-                    System.arraycopy(filesExtern, 0, allFiles, files.length,
-                            filesExtern.length);
-                    files = allFiles;
-                }
-            }
-
-            if (files.length == 0) {
-                Toast.makeText(c, c.getString(R.string.no_files_found,
-                                c.getDir("traces", Context.MODE_PRIVATE).getAbsolutePath()),
-                        Toast.LENGTH_SHORT).show();
-            } else if (files.length == 1) {
-                try {
-                    Util.loadFromFile(Uri.fromFile(files[0]), (Map) c);
-                    d.dismiss();
-                } catch (IOException e) {
-                    if (BuildConfig.DEBUG) Logger.log(e);
-                    Toast.makeText(c, c.getString(R.string.error,
-                                    e.getClass().getSimpleName() + "\n" + e.getMessage()),
-                            Toast.LENGTH_LONG).show();
-                }
-            } else {
-                d.dismiss();
-                AlertDialog.Builder b = new AlertDialog.Builder(c);
-                b.setTitle(R.string.select_file);
-                final DeleteAdapter da = new DeleteAdapter(files, (Map) c);
-                b.setAdapter(da, (dialog, which) -> {
-                    try {
-                        Util.loadFromFile(Uri.fromFile(da.getFile(which)), (Map) c);
-                        dialog.dismiss();
-                    } catch (IOException e) {
-                        if (BuildConfig.DEBUG) Logger.log(e);
-                        Toast.makeText(c, c.getString(R.string.error,
-                                        e.getClass().getSimpleName() + "\n" + e.getMessage()),
-                                Toast.LENGTH_LONG).show();
+            d.dismiss();
+            final Handler h = new Handler();
+            new Thread(() -> {
+                final TraceLibrary library = TraceLibrary.getInstance(c);
+                // builds the index on first use and makes sure a single file still exists
+                if (!library.isScanned() && library.count(null) <= 1) library.rescan();
+                final int count = library.count(null);
+                final File single = count == 1 ?
+                        library.query(null, TraceLibrary.SORT_DATE, 0, 1).get(0).file : null;
+                h.post(() -> {
+                    if (c.isFinishing()) return;
+                    if (count == 0) {
+                        Toast.makeText(c, c.getString(R.string.no_files_found,
+                                        c.getDir("traces", Context.MODE_PRIVATE).getAbsolutePath()),
+                                Toast.LENGTH_SHORT).show();
+                    } else if (count == 1) {
+                        ((Map) c).loadTrace(Uri.fromFile(single));
+                    } else {
+                        getLoad((Map) c).show();
                     }
                 });
-                b.create().show();
-            }
+            }).start();
         });
         d.findViewById(R.id.share).setOnClickListener(v -> {
-            try {
-                final File f = new File(c.getCacheDir(), "MapsMeasure.csv");
-                Util.saveToFile(f, trace);
+            d.dismiss();
+            final TraceFormat[] formats = {TraceFormat.CSV, TraceFormat.GPX, TraceFormat.KML,
+                    TraceFormat.GEOJSON, TraceFormat.POLYLINE};
+            final SharedPreferences prefs =
+                    c.getSharedPreferences("settings", Context.MODE_PRIVATE);
+            final CheckBox gzip = new CheckBox(c);
+            gzip.setText(R.string.share_gzip);
+            gzip.setChecked(prefs.getBoolean("shareGzip", false));
+            AlertDialog.Builder b = new AlertDialog.Builder(c);
+            b.setTitle(R.string.share);
+            b.setView(gzip);
+            b.setItems(new String[]{"CSV", "GPX", "KML", "GeoJSON",
+                    c.getString(R.string.encoded_polyline)}, (dialog, which) -> {
+                prefs.edit().putBoolean("shareGzip", gzip.isChecked()).apply();
+                // the trace is only written once the receiving app reads it
+                Uri uri = ShareProvider.share(trace.copy(), formats[which], gzip.isChecked());
                 Intent shareIntent = new Intent();
                 shareIntent.setAction(Intent.ACTION_SEND);
-                shareIntent.putExtra(Intent.EXTRA_STREAM, FileProvider
-                        .getUriForFile(c, "de.j4velin.mapsmeasure.fileprovider", f));
+                shareIntent.putExtra(Intent.EXTRA_STREAM, uri);
                 shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-                shareIntent.setType("text/comma-separated-values");
-                d.dismiss();
+                shareIntent.setType(ShareProvider.getMimeType(uri));
                 c.startActivity(Intent.createChooser(shareIntent, null));
-            } catch (IOException e) {
-                if (BuildConfig.DEBUG) Logger.log(e);
-                Toast.makeText(c, c.getString(R.string.error,
-                                e.getClass().getSimpleName() + "\n" + e.getMessage()),
-                        Toast.LENGTH_LONG).show();
-            }
+            });
+            b.create().show();
         });
         return d;
     }
 
     /**
-     * @param m        the Map
-     * @param distance the current distance
-     * @param area     the current area
+     * @param m the Map
+     * @return the dialog to select a saved trace to load
+     */
+    private static Dialog getLoad(final Map m) {
+        final SharedPreferences prefs = m.getSharedPreferences("settings", Context.MODE_PRIVATE);
+        AlertDialog.Builder b = new AlertDialog.Builder(m);
+        b.setTitle(R.string.select_file);
+        final View layout = m.getLayoutInflater().inflate(R.layout.dialog_load, null);
+        final DeleteAdapter da = new DeleteAdapter(m);
+        ListView list = layout.findViewById(R.id.list);
+        list.setAdapter(da);
+        final EditText filter = layout.findViewById(R.id.filter);
+        final Spinner sort = layout.findViewById(R.id.sort);
+        sort.setAdapter(new ArrayAdapter<>(m, android.R.layout.simple_spinner_dropdown_item,
+                new String[]{m.getString(R.string.sort_date), m.getString(R.string.sort_name),
+                        m.getString(R.string.sort_length), m.getString(R.string.sort_area)}));
+        // the listener is also called for the initial selection, which runs the first query
+        sort.setSelection(prefs.getInt("traceSort", TraceLibrary.SORT_DATE));
+        sort.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                prefs.edit().putInt("traceSort", position).apply();
+                da.setQuery(getFilter(filter), position);
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+        filter.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                da.setQuery(getFilter(filter), sort.getSelectedItemPosition());
+            }
+        });
+        b.setView(layout);
+        final Dialog dialog = b.create();
+        list.setOnItemClickListener((parent, view, position, id) -> {
+            m.loadTrace(Uri.fromFile(da.getEntry(position).file));
+            dialog.dismiss();
+        });
+        // pick up files which were added or changed outside of the app
+        final Handler h = new Handler();
+        new Thread(() -> {
+            if (TraceLibrary.getInstance(m).rescan()) {
+                h.post(da::reload);
+            }
+        }).start();
+        return dialog;
+    }
+
+    private static String getFilter(final EditText filter) {
+        String text = filter.getText().toString().trim();
+        return text.isEmpty() ? null : text;
+    }
+
+    /**
+     * @param m     the Map
+     * @param trace the current trace
      * @return the units dialog
      */
-    public static Dialog getUnits(final Map m, float distance, double area) {
+    public static Dialog getUnits(final Map m, final Trace trace) {
         final Dialog d = new Dialog(m);
         d.requestWindowFeature(Window.FEATURE_NO_TITLE);
         d.setContentView(R.layout.dialog_unit);
@@ -222,6 +260,33 @@ abstract class Dialogs {
                     .putBoolean("metric", isChecked).apply();
             m.updateValueText();
         });
+        RadioGroup engine = d.findViewById(R.id.engine);
+        final String[] engines = {Map.ENGINE_AUTO, Map.ENGINE_ELLIPSOIDAL, Map.ENGINE_SPHERICAL,
+                Map.ENGINE_PLANAR};
+        final int[] buttons = {R.id.engine_auto, R.id.engine_ellipsoidal, R.id.engine_spherical,
+                R.id.engine_planar};
+        for (int i = 0; i < engines.length; i++) {
+            if (engines[i].equals(m.getMeasurementEngine())) engine.check(buttons[i]);
+        }
+        engine.setOnCheckedChangeListener((group, checkedId) -> {
+            for (int i = 0; i < buttons.length; i++) {
+                if (buttons[i] == checkedId) m.setMeasurementEngine(engines[i]);
+            }
+            showUnits(d, trace.getLength(), trace.getArea());
+        });
+        showUnits(d, trace.getLength(), trace.getArea());
+        d.findViewById(R.id.close).setOnClickListener(v -> d.dismiss());
+        return d;
+    }
+
+    /**
+     * Shows the given distance and area in all units in the units dialog
+     *
+     * @param d        the units dialog
+     * @param distance the distance in meters
+     * @param area     the area in square meters
+     */
+    private static void showUnits(final Dialog d, double distance, double area) {
         ((TextView) d.findViewById(R.id.distance)).setText(
                 Map.formatter_two_dec.format(Math.max(0, distance)) + " m\n" +
                         Map.formatter_two_dec.format(distance / 1000) + " km\n\n" +
@@ -237,8 +302,6 @@ abstract class Dialogs {
                         Map.formatter_two_dec.format(Math.max(0, area / 0.09290304d)) + " ft²\n" +
                         Map.formatter_two_dec.format(area / 4046.8726099d) + " ac (U.S. Survey)\n" +
                         Map.formatter_two_dec.format(area / 2589988.110336d) + " mi²");
-        d.findViewById(R.id.close).setOnClickListener(v -> d.dismiss());
-        return d;
     }
 
     /**
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * Cache for elevation data, so that measuring the same terrain again does not
+ * require any requests to the elevation API.
+ * <p/>
+ * Locations are quantised to cells of CELL_SIZE degrees (about 11 m at the
+ * equator) and the elevation of a cell is the last value received for any
+ * location within it. The cache holds at most MAX_ENTRIES cells and evicts the
+ * least recently used ones. Its content is stored in the app's cache directory,
+ * so it survives restarts of the app.
+ */
+class ElevationCache {
+
+    private final static String FILE_NAME = "elevation.cache";
+    private final static int FILE_VERSION = 1;
+    private final static double CELL_SIZE = 1e-4;
+    private final static int MAX_ENTRIES = 20000;
+
+    private static ElevationCache instance;
+
+    private final File file;
+    private final LinkedHashMap<Long, Float> entries =
+            new LinkedHashMap<Long, Float>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Entry<Long, Float> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    private int hits, misses;
+    private boolean dirty;
+
+    /**
+     * @param file the file to store the cache in, use getInstance instead to
+     *             get the app's cache
+     */
+    ElevationCache(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the cache, reading it from disk on first use - so this should
+     * not be called on the UI thread
+     *
+     * @param c the Context
+     * @return the cache
+     */
+    static synchronized ElevationCache getInstance(final Context c) {
+        if (instance == null) {
+            instance = new ElevationCache(new File(c.getCacheDir(), FILE_NAME));
+            instance.load();
+        }
+        return instance;
+    }
+
+    /**
+     * @param latitude  the latitude in degrees
+     * @param longitude the longitude in degrees
+     * @return the cached elevation in meters or null, if the cell of the given
+     * location is not in the cache
+     */
+    synchronized Float get(double latitude, double longitude) {
+        Float elevation = entries.get(key(latitude, longitude));
+        if (elevation == null) misses++;
+        else hits++;
+        return elevation;
+    }
+
+    /**
+     * Sets the elevation of the cell containing the given location, replacing
+     * any value received for it before
+     *
+     * @param latitude  the latitude in degrees
+     * @param longitude the longitude in degrees
+     * @param elevation the elevation in meters
+     */
+    synchronized void put(double latitude, double longitude, float elevation) {
+        entries.put(key(latitude, longitude), elevation);
+        dirty = true;
+    }
+
+    /**
+     * @return the number of lookups which were answered from the cache
+     */
+    synchronized int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups which were not in the cache
+     */
+    synchronized int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Writes the cache to disk, if it has changed since it was last written
+     */
+    synchronized void save() {
+        if (!dirty) return;
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(FILE_VERSION);
+            out.writeInt(entries.size());
+            // iteration order is least recently used first, which restores the same order
+            for (Entry<Long, Float> e : entries.entrySet()) {
+                out.writeLong(e.getKey());
+                out.writeFloat(e.getValue());
+            }
+        } catch (IOException e) {
+            if (BuildConfig.DEBUG) Logger.log(e);
+            tmp.delete();
+            return;
+        }
+        if (tmp.renameTo(file)) {
+            dirty = false;
+        } else {
+            tmp.delete();
+        }
+    }
+
+    private void load() {
+        if (!file.exists()) return;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_VERSION) return;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                entries.put(in.readLong(), in.readFloat());
+            }
+        } catch (IOException e) {
+            if (BuildConfig.DEBUG) Logger.log(e);
+        }
+        if (BuildConfig.DEBUG) Logger.log("elevation cache loaded: " + entries.size());
+    }
+
+    /**
+     * @return the key of the cell containing the given location
+     */
+    static long key(double latitude, double longitude) {
+        long lat = Math.round((latitude + 90) / CELL_SIZE);
+        long lng = Math.round((longitude + 180) / CELL_SIZE);
+        return (lat << 32) | lng;
+    }
+}
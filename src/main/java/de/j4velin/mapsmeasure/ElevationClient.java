@@ -0,0 +1,278 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.PolyUtil;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Client for the elevation API.
+ * <p/>
+ * Lookups are first deduplicated (locations in the same cache cell are only
+ * queried once) and answered from the ElevationCache where possible. All
+ * remaining locations are sent as encoded polylines in as few multi-location
+ * requests as possible, each one staying below the URL length and the
+ * locations-per-request limit of the API. If more than one request is needed,
+ * up to MAX_PARALLEL_REQUESTS of them run at the same time. The results are
+ * then distributed back to the positions of the original lookups.
+ */
+class ElevationClient {
+
+    final static String DEFAULT_BASE_URL = "https://maps.googleapis.com/maps/api/elevation/xml";
+
+    private static final String TAG_OPEN = "<elevation>";
+    private static final String TAG_CLOSE = "</elevation>";
+    private static final String ERROR_OPEN = "<error_message>";
+    private static final String ERROR_CLOSE = "</error_message>";
+    private static final String STATUS_OPEN = "<status>";
+    private static final String STATUS_OVER_LIMIT = "OVER_QUERY_LIMIT";
+
+    private final static int MAX_URL_LENGTH = 8192;
+    private final static int MAX_LOCATIONS_PER_REQUEST = 512;
+    // an encoded coordinate difference needs at most 6 characters, each of
+    // which can take up to 3 characters once URL encoded
+    private final static int MAX_ENCODED_POINT_LENGTH = 36;
+    private final static int MAX_RETRIES = 2;
+    private final static long RETRY_DELAY = 1000; // ms, doubled on every retry
+    private final static int MAX_PARALLEL_REQUESTS = 4;
+
+    private final ElevationCache cache;
+    private final String baseUrl;
+    private final String apiKey;
+    private final int locationsPerRequest;
+
+    /**
+     * @param cache  the cache to use
+     * @param apiKey the elevation API key
+     */
+    ElevationClient(final ElevationCache cache, final String apiKey) {
+        this(cache, apiKey, DEFAULT_BASE_URL);
+    }
+
+    /**
+     * @param cache   the cache to use
+     * @param apiKey  the elevation API key
+     * @param baseUrl the URL of the elevation API (XML output), for example a
+     *                local server replaying recorded responses
+     */
+    ElevationClient(final ElevationCache cache, final String apiKey, final String baseUrl) {
+        this.cache = cache;
+        this.apiKey = apiKey;
+        this.baseUrl = baseUrl;
+        int overhead = baseUrl.length() + "?locations=enc:&key=".length() + apiKey.length();
+        locationsPerRequest = Math.max(1, Math.min(MAX_LOCATIONS_PER_REQUEST,
+                (MAX_URL_LENGTH - overhead) / MAX_ENCODED_POINT_LENGTH));
+    }
+
+    /**
+     * @return the number of locations which can be looked up with a single
+     * round of parallel requests
+     */
+    int getMaxLocations() {
+        return locationsPerRequest * MAX_PARALLEL_REQUESTS;
+    }
+
+    /**
+     * Returns the elevations of the given locations
+     *
+     * @param locations the locations
+     * @return the elevations in meters, in the same order as the locations
+     * @throws IOException if the elevation API could not be queried
+     */
+    float[] getElevations(final List<LatLng> locations) throws IOException {
+        float[] result = new float[locations.size()];
+        // index of the unique cell for every requested location
+        int[] cellIndex = new int[locations.size()];
+        HashMap<Long, Integer> cells = new HashMap<>();
+        List<LatLng> unique = new ArrayList<>();
+        for (int i = 0; i < locations.size(); i++) {
+            LatLng loc = locations.get(i);
+            Long key = ElevationCache.key(loc.latitude, loc.longitude);
+            Integer index = cells.get(key);
+            if (index == null) {
+                index = unique.size();
+                cells.put(key, index);
+                unique.add(loc);
+            }
+            cellIndex[i] = index;
+        }
+
+        float[] elevations = new float[unique.size()];
+        List<LatLng> missing = new ArrayList<>();
+        int[] missingIndex = new int[unique.size()];
+        for (int i = 0; i < unique.size(); i++) {
+            LatLng loc = unique.get(i);
+            Float cached = cache.get(loc.latitude, loc.longitude);
+            if (cached != null) {
+                elevations[i] = cached;
+            } else {
+                missingIndex[missing.size()] = i;
+                missing.add(loc);
+            }
+        }
+
+        List<float[]> queried = queryAll(missing);
+        for (int b = 0; b < queried.size(); b++) {
+            int start = b * locationsPerRequest;
+            float[] batch = queried.get(b);
+            for (int i = 0; i < batch.length; i++) {
+                LatLng loc = missing.get(start + i);
+                elevations[missingIndex[start + i]] = batch[i];
+                cache.put(loc.latitude, loc.longitude, batch[i]);
+            }
+        }
+        if (!missing.isEmpty()) cache.save();
+
+        for (int i = 0; i < result.length; i++) {
+            result[i] = elevations[cellIndex[i]];
+        }
+        if (BuildConfig.DEBUG) Logger.log(
+                "elevations: " + locations.size() + " requested, " + unique.size() + " unique, " +
+                        missing.size() + " queried, cache: " + cache.getHits() + " hits, " +
+                        cache.getMisses() + " misses");
+        return result;
+    }
+
+    /**
+     * Queries the elevation API for the given locations, split into batches of
+     * locationsPerRequest locations which are requested in parallel
+     *
+     * @param locations the locations
+     * @return the elevations for each batch, in the order of the batches
+     * @throws IOException if any of the requests failed
+     */
+    private List<float[]> queryAll(final List<LatLng> locations) throws IOException {
+        int batches = (locations.size() + locationsPerRequest - 1) / locationsPerRequest;
+        List<float[]> result = new ArrayList<>(batches);
+        if (batches <= 1) {
+            if (batches == 1) result.add(query(locations));
+            return result;
+        }
+        ExecutorService executor =
+                Executors.newFixedThreadPool(Math.min(batches, MAX_PARALLEL_REQUESTS));
+        try {
+            List<Future<float[]>> futures = new ArrayList<>(batches);
+            for (int start = 0; start < locations.size(); start += locationsPerRequest) {
+                final List<LatLng> batch = locations
+                        .subList(start, Math.min(locations.size(), start + locationsPerRequest));
+                futures.add(executor.submit(() -> query(batch)));
+            }
+            for (Future<float[]> f : futures) {
+                result.add(f.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Queries the elevation API for the given locations, retrying if the query
+     * limit is reached
+     *
+     * @param locations the locations, at most locationsPerRequest
+     * @return the elevations in meters, in the same order as the locations
+     * @throws IOException if the elevation API could not be queried or returned an error
+     */
+    private float[] query(final List<LatLng> locations) throws IOException {
+        long delay = RETRY_DELAY;
+        for (int retry = 0; ; retry++) {
+            try {
+                return request(locations);
+            } catch (OverQueryLimitException e) {
+                if (retry >= MAX_RETRIES) throw e;
+                if (BuildConfig.DEBUG) Logger.log("over query limit, retrying in " + delay);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    throw e;
+                }
+                delay *= 2;
+            }
+        }
+    }
+
+    private float[] request(final List<LatLng> locations) throws IOException {
+        float[] result = new float[locations.size()];
+        int pos = 0;
+        HttpURLConnection urlConnection = null;
+        BufferedReader in = null;
+        try {
+            URL url = new URL(baseUrl + "?locations=enc:" +
+                    URLEncoder.encode(PolyUtil.encode(locations), "UTF-8") + "&key=" + apiKey);
+            if (BuildConfig.DEBUG) Logger.log("url " + url);
+            urlConnection = (HttpURLConnection) url.openConnection();
+            in = new BufferedReader(new InputStreamReader(urlConnection.getInputStream()));
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith(STATUS_OPEN) && line.contains(STATUS_OVER_LIMIT)) {
+                    throw new OverQueryLimitException();
+                } else if (line.startsWith(ERROR_OPEN)) {
+                    String error =
+                            line.substring(ERROR_OPEN.length(), line.indexOf(ERROR_CLOSE));
+                    if (BuildConfig.DEBUG) Logger.log("error: " + error);
+                    throw new IOException(error);
+                } else if (line.startsWith(TAG_OPEN) && pos < result.length) {
+                    result[pos] = Float.parseFloat(
+                            line.substring(TAG_OPEN.length(), line.indexOf(TAG_CLOSE)));
+                    pos++;
+                }
+            }
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    if (BuildConfig.DEBUG) Logger.log(e);
+                }
+            }
+            if (urlConnection != null) urlConnection.disconnect();
+        }
+        if (pos < result.length) {
+            throw new IOException(
+                    "Expected " + result.length + " elevations, but received only " + pos);
+        }
+        return result;
+    }
+
+    private static class OverQueryLimitException extends IOException {
+        private OverQueryLimitException() {
+            super(STATUS_OVER_LIMIT);
+        }
+    }
+}
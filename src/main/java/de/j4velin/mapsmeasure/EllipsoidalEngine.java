@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.mapsmeasure;
+
+import com.google.maps.android.SphericalUtil;
+
+/**
+ * Measures on the WGS84 ellipsoid.
+ * <p/>
+ * Distances are geodesic distances computed with Vincenty's inverse formula,
+ * which is accurate to well below a millimeter. Short segments, as in
+ * recorded tracks, use the local flat approximation with the radii of
+ * curvature at their mean latitude instead, which is several times faster and
+ * still accurate to 0.1 mm per km. For nearly antipodal points,
+ * where the iteration does not converge, the distance on a sphere with the
+ * mean radius is used instead. Areas are computed on the authalic sphere, the
+ * sphere with the same surface area as the ellipsoid, with every latitude
+ * replaced by its authalic latitude.
+ * <p/>
+ * The values which only depend on the latitude of a point are cached for the
+ * last point, so measuring along a trace computes them only once per point.
+ * The cache is a single immutable object, so an instance can be used by
+ * multiple threads, which then just compute the values more often.
+ */
+class EllipsoidalEngine implements MeasurementEngine {
+
+    private final static double A = 6378137;
+    private final static double F = 1 / 298.257223563;
+    private final static double B = A * (1 - F);
+    private final static double E2 = F * (2 - F);
+    private final static double E = Math.sqrt(E2);
+    private final static double MEAN_RADIUS = (2 * A + B) / 3;
+    private final static double QP = q(1);
+    final static double AUTHALIC_RADIUS = A * Math.sqrt(QP / 2);
+
+    // segments spanning less latitude and longitude, in degrees, are short
+    private final static double SHORT_SEGMENT = 0.01;
+    private final static int MAX_ITERATIONS = 100;
+    private final static double EPSILON = 1e-12;
+
+    // the values for the last latitude
+    private Latitude cached;
+
+    /**
+     * The values which only depend on a latitude
+     */
+    private final static class Latitude {
+        private final double lat;
+        // the sine and cosine of the reduced latitude
+        private final double sinU, cosU;
+        private final double authalicLat;
+
+        private Latitude(double lat) {
+            this.lat = lat;
+            double phi = Math.toRadians(lat);
+            if (Math.abs(lat) == 90) { // tan is not exact at the poles
+                cosU = 0;
+                sinU = Math.signum(lat);
+            } else {
+                double tanU = (1 - F) * Math.tan(phi);
+                cosU = 1 / Math.sqrt(1 + tanU * tanU);
+                sinU = tanU * cosU;
+            }
+            authalicLat = authalicLatitude(lat);
+        }
+    }
+
+    @Override
+    public double computeDistance(double lat1, double lng1, double lat2, double lng2) {
+        double dLng = lng2 - lng1;
+        if (dLng > 180) dLng -= 360;
+        else if (dLng < -180) dLng += 360;
+        if (Math.abs(lat2 - lat1) < SHORT_SEGMENT && Math.abs(dLng) < SHORT_SEGMENT) {
+            double phi = Math.toRadians((lat1 + lat2) / 2);
+            double sin = Math.sin(phi);
+            double w2 = 1 - E2 * sin * sin;
+            double normalRadius = A / Math.sqrt(w2);
+            double north = Math.toRadians(lat2 - lat1) * normalRadius * (1 - E2) / w2;
+            double east = Math.toRadians(dLng) * normalRadius * Math.cos(phi);
+            return Math.sqrt(north * north + east * east);
+        }
+        Latitude p1 = latitude(lat1);
+        double sinU1 = p1.sinU, cosU1 = p1.cosU;
+        Latitude p2 = latitude(lat2);
+        double sinU2 = p2.sinU, cosU2 = p2.cosU;
+
+        double l = Math.toRadians(dLng);
+        double lambda = l;
+        double sinSigma, cosSigma, sigma, cos2Alpha, cos2SigmaM;
+        int iterations = 0;
+        double previous;
+        do {
+            double sinLambda = Math.sin(lambda), cosLambda = Math.cos(lambda);
+            double a = cosU2 * sinLambda;
+            double b = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+            sinSigma = Math.sqrt(a * a + b * b);
+            if (sinSigma == 0) return 0; // same point
+            cosSigma = sinU1 * sinU2 + cosU1 * cosU2 * cosLambda;
+            sigma = Math.atan2(sinSigma, cosSigma);
+            double sinAlpha = cosU1 * cosU2 * sinLambda / sinSigma;
+            cos2Alpha = 1 - sinAlpha * sinAlpha;
+            // on the equator, cos2Alpha is 0
+            cos2SigmaM = cos2Alpha != 0 ? cosSigma - 2 * sinU1 * sinU2 / cos2Alpha : 0;
+            double c = F / 16 * cos2Alpha * (4 + F * (4 - 3 * cos2Alpha));
+            previous = lambda;
+            lambda = l + (1 - c) * F * sinAlpha * (sigma + c * sinSigma *
+                    (cos2SigmaM + c * cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM)));
+        } while (Math.abs(lambda - previous) > EPSILON && ++iterations < MAX_ITERATIONS);
+        if (iterations >= MAX_ITERATIONS || Double.isNaN(lambda)) {
+            double degrees = SphericalUtil.computeDistanceBetween(lat1, lng1, lat2, lng2) /
+                    SphericalUtil.computeDistanceBetween(0, 0, 0, 1);
+            return Math.toRadians(degrees) * MEAN_RADIUS;
+        }
+
+        double u2 = cos2Alpha * (A * A - B * B) / (B * B);
+        double a = 1 + u2 / 16384 * (4096 + u2 * (-768 + u2 * (320 - 175 * u2)));
+        double b = u2 / 1024 * (256 + u2 * (-128 + u2 * (74 - 47 * u2)));
+        double deltaSigma = b * sinSigma * (cos2SigmaM + b / 4 *
+                (cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM) - b / 6 * cos2SigmaM *
+                        (-3 + 4 * sinSigma * sinSigma) * (-3 + 4 * cos2SigmaM * cos2SigmaM)));
+        return B * a * (sigma - deltaSigma);
+    }
+
+    @Override
+    public double computeSignedEdgeArea(double lat1, double lng1, double lat2, double lng2) {
+        double authalic1 = latitude(lat1).authalicLat;
+        double authalic2 = latitude(lat2).authalicLat;
+        return SphericalUtil.computeSignedEdgeArea(authalic1, lng1, authalic2, lng2,
+                AUTHALIC_RADIUS);
+    }
+
+    @Override
+    public MeasurementEngine copy() {
+        return new EllipsoidalEngine();
+    }
+
+    /**
+     * @return the values for the given latitude, from the cache if possible
+     */
+    private Latitude latitude(double lat) {
+        Latitude result = cached;
+        if (result == null || result.lat != lat) {
+            result = new Latitude(lat);
+            cached = result;
+        }
+        return result;
+    }
+
+    /**
+     * @param lat the latitude in degrees
+     * @return the authalic latitude in degrees, the latitude on the authalic
+     * sphere which has the same area towards the equator
+     */
+    static double authalicLatitude(double lat) {
+        double sinPhi = Math.sin(Math.toRadians(lat));
+        return Math.toDegrees(Math.asin(Math.max(-1, Math.min(1, q(sinPhi) / QP))));
+    }
+
+    /**
+     * @return the authalic q function of the latitude with the given sine
+     */
+    private static double q(double sinPhi) {
+        double eSin = E * sinPhi;
+        return (1 - E2) * (sinPhi / (1 - eSin * eSin) -
+                1 / (2 * E) * Math.log((1 - eSin) / (1 + eSin)));
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of doubles which can return the sum of any prefix in
+ * O(log n) time (a Fenwick tree, also called binary indexed tree).
+ * <p/>
+ * Appending, removing the last value and changing a value take O(log n).
+ * Inserting and removing values in the middle shift all following values, so
+ * they take O(n), but only simple additions.
+ */
+class FenwickTree {
+
+    private double[] values;
+    // tree[i] is the sum of the values in (i - lowestBit(i), i], 1-based
+    private double[] tree;
+    private int size;
+
+    /**
+     * @param capacity the initial number of values this tree can hold without
+     *                 growing
+     */
+    FenwickTree(int capacity) {
+        capacity = Math.max(capacity, 1);
+        values = new double[capacity];
+        tree = new double[capacity + 1];
+    }
+
+    /**
+     * @return the number of values
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param index the index of the value
+     * @return the value at the given index
+     */
+    double get(int index) {
+        checkIndex(index);
+        return values[index];
+    }
+
+    /**
+     * Returns the sum of the first count values
+     *
+     * @param count the number of values to sum, between 0 and size()
+     * @return the sum
+     */
+    double sum(int count) {
+        if (count < 0 || count > size)
+            throw new IndexOutOfBoundsException("Count: " + count + ", Size: " + size);
+        double sum = 0;
+        for (int i = count; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Finds the number of values whose sum first reaches the given target,
+     * assuming all values are non-negative
+     *
+     * @param target the target sum
+     * @return the smallest count for which sum(count) >= target, or size() + 1
+     * if the sum of all values is smaller than the target
+     */
+    int search(double target) {
+        if (target <= 0) return 0;
+        int position = 0;
+        double remaining = target;
+        for (int step = Integer.highestOneBit(Math.max(size, 1)); step > 0; step >>= 1) {
+            int next = position + step;
+            if (next <= size && tree[next] < remaining) {
+                position = next;
+                remaining -= tree[next];
+            }
+        }
+        return position + 1;
+    }
+
+    /**
+     * Adds a value to the end
+     *
+     * @param value the value to add
+     */
+    void add(double value) {
+        ensureCapacity(size + 1);
+        values[size] = value;
+        size++;
+        // the node covers (size - lowestBit(size), size], which are its children plus the value
+        int i = size;
+        tree[i] = value;
+        for (int child = 1; child < (i & -i); child <<= 1) {
+            tree[i] += tree[i - child];
+        }
+    }
+
+    /**
+     * Removes the last value
+     */
+    void removeLast() {
+        if (size == 0) throw new IndexOutOfBoundsException("Size: 0");
+        // nodes never cover values after their own index, so no other node changes
+        size--;
+    }
+
+    /**
+     * Changes the value at the given index
+     *
+     * @param index the index of the value
+     * @param value the new value
+     */
+    void set(int index, double value) {
+        checkIndex(index);
+        double difference = value - values[index];
+        values[index] = value;
+        for (int i = index + 1; i <= size; i += i & -i) {
+            tree[i] += difference;
+        }
+    }
+
+    /**
+     * Inserts a value, moving the value at that index and all following values
+     * back by one
+     *
+     * @param index the index of the new value, between 0 and size()
+     * @param value the value to insert
+     */
+    void insert(int index, double value) {
+        if (index < 0 || index > size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        ensureCapacity(size + 1);
+        System.arraycopy(values, index, values, index + 1, size - index);
+        values[index] = value;
+        size++;
+        rebuild();
+    }
+
+    /**
+     * Removes the value at the given index, moving all following values forward
+     * by one
+     *
+     * @param index the index of the value to remove
+     */
+    void remove(int index) {
+        checkIndex(index);
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        size--;
+        rebuild();
+    }
+
+    /**
+     * Replaces all values with the values of the given tree
+     *
+     * @param other the tree to copy
+     */
+    void copyFrom(final FenwickTree other) {
+        ensureCapacity(other.size);
+        System.arraycopy(other.values, 0, values, 0, other.size);
+        System.arraycopy(other.tree, 0, tree, 0, other.size + 1);
+        size = other.size;
+    }
+
+    /**
+     * Removes all values
+     */
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Makes sure the tree can hold at least the given number of values without
+     * growing its arrays again
+     *
+     * @param capacity the required capacity
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity > values.length) {
+            int newCapacity = Math.max(capacity, values.length + (values.length >> 1));
+            values = Arrays.copyOf(values, newCapacity);
+            tree = Arrays.copyOf(tree, newCapacity + 1);
+        }
+    }
+
+    /**
+     * Rebuilds all nodes from the values in linear time
+     */
+    private void rebuild() {
+        for (int i = 1; i <= size; i++) {
+            tree[i] = values[i - 1];
+        }
+        for (int i = 1; i <= size; i++) {
+            int parent = i + (i & -i);
+            if (parent <= size) tree[parent] += tree[i];
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+/**
+ * Streaming parser for traces in GeoJSON files.
+ * <p/>
+ * Points are taken from every "coordinates" member, whatever the type of the
+ * geometry: each innermost array of numbers is a position [longitude,
+ * latitude, altitude]. All geometries of a file are joined into one trace in
+ * the order they appear.
+ * <p/>
+ * The JSON is only tokenized, no objects are created per value, and the
+ * parser never needs more than the state of the current token - so the size
+ * of the file and the nesting depth are not limited.
+ */
+class GeoJsonTraceParser extends TraceParser {
+
+    private final static String COORDINATES = "coordinates";
+
+    private final static int VALUE = 0; // between tokens
+    private final static int STRING = 1;
+    private final static int ESCAPE = 2; // after a backslash in a string
+    private final static int NUMBER = 3;
+    private final static int LITERAL = 4; // true, false or null
+
+    private int state = VALUE;
+
+    // number of characters of the current string matching "coordinates", -1 if it does not match
+    private int keyMatched;
+    // the last token was the string "coordinates"
+    private boolean coordinatesKey;
+    // the next value is the coordinates array
+    private boolean coordinatesValue;
+    // the depth of nested arrays within the coordinates, 0 if not within coordinates
+    private int depth;
+
+    // state of the current position
+    private final double[] position = new double[2];
+    private int components;
+    private boolean positionError;
+
+    private final DecimalParser number = new DecimalParser();
+
+    /**
+     * @param callback the callback to pass the points to
+     */
+    GeoJsonTraceParser(final PointCallback callback) {
+        super(callback);
+    }
+
+    @Override
+    void finish() {
+        if (state == NUMBER) endNumber();
+        state = VALUE;
+    }
+
+    @Override
+    void accept(char c) {
+        switch (state) {
+            case STRING:
+                if (c == '\\') {
+                    keyMatched = -1;
+                    state = ESCAPE;
+                } else if (c == '"') {
+                    coordinatesKey = keyMatched == COORDINATES.length();
+                    state = VALUE;
+                } else if (keyMatched >= 0 && keyMatched < COORDINATES.length() &&
+                        c == COORDINATES.charAt(keyMatched)) {
+                    keyMatched++;
+                } else {
+                    keyMatched = -1;
+                }
+                return;
+            case ESCAPE:
+                state = STRING;
+                return;
+            case NUMBER:
+                if (number.accept(c)) return;
+                endNumber();
+                break;
+            case LITERAL:
+                if (c >= 'a' && c <= 'z') return;
+                state = VALUE;
+                break;
+        }
+        value(c);
+    }
+
+    /**
+     * Handles a character between tokens
+     */
+    private void value(char c) {
+        if (c == ' ' || c == '\n' || c == '\r' || c == '\t') return;
+        if (c == ':') {
+            coordinatesValue = coordinatesKey && depth == 0;
+            coordinatesKey = false;
+            return;
+        }
+        coordinatesKey = false;
+        if (c == '[') {
+            if (depth > 0) {
+                depth++;
+            } else if (coordinatesValue) {
+                depth = 1;
+            }
+            coordinatesValue = false;
+            startPosition();
+        } else if (c == ']') {
+            if (depth > 0) {
+                if (components > 0) endPosition();
+                depth--;
+            }
+        } else if (c == '"') {
+            coordinatesValue = false;
+            keyMatched = 0;
+            state = STRING;
+        } else if (c == '-' || c >= '0' && c <= '9') {
+            coordinatesValue = false;
+            number.reset();
+            number.accept(c);
+            state = NUMBER;
+        } else if (c >= 'a' && c <= 'z') {
+            coordinatesValue = false;
+            state = LITERAL;
+        } else if (c != ',') {
+            // '{', '}' and anything invalid
+            coordinatesValue = false;
+        }
+    }
+
+    private void endNumber() {
+        state = VALUE;
+        if (depth == 0) return;
+        if (!number.isValid()) {
+            positionError = true;
+        } else if (components < 2) {
+            position[components] = number.value();
+        }
+        components++;
+    }
+
+    private void startPosition() {
+        components = 0;
+        positionError = false;
+    }
+
+    private void endPosition() {
+        if (!positionError && components >= 2) {
+            point(position[1], position[0]);
+        }
+        startPosition();
+    }
+}
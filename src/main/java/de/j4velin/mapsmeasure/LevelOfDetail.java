@@ -0,0 +1,200 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import com.google.maps.android.PolyUtil;
+
+import java.util.Arrays;
+
+/**
+ * Simplified versions of a trace for drawing it at different zoom levels.
+ * <p/>
+ * For every integer zoom level, the trace is simplified with the
+ * Douglas-Peucker algorithm and a tolerance of one pixel at that zoom, so the
+ * simplified trace looks the same on screen but has far fewer points when
+ * zoomed out. The levels are built lazily when first requested. They only
+ * contain the indices of the points to draw - all measurements still use the
+ * full trace.
+ * <p/>
+ * When the trace changes at some index, every dropped point before the last
+ * kept point in front of that index is still within the tolerance of the
+ * simplified line, so that part of each level is kept. Only the rest of the
+ * trace is simplified again, and only once the level is requested. So adding
+ * a point to a long trace does not simplify the whole trace again. While a
+ * point is dragged, the levels which contain it are kept unchanged, so the
+ * trace can be redrawn on every step of the drag without simplifying it.
+ */
+class LevelOfDetail {
+
+    // traces with fewer points are always drawn completely
+    final static int MIN_POINTS = 500;
+    private final static int MAX_ZOOM = 21;
+    // meters per pixel at zoom level 0 at the equator
+    private final static double METERS_PER_PIXEL = 156543.03392;
+    // below this tolerance, simplifying does not remove anything visible anymore
+    private final static double MIN_TOLERANCE = 0.01;
+
+    private final Trace trace;
+    private final int[][] levels = new int[MAX_ZOOM + 1][];
+    // the number of indices at the start of each level which are still valid
+    private final int[] valid = new int[MAX_ZOOM + 1];
+    private int[] all;
+    private double[] latRad = new double[0], lngRad = new double[0];
+    // the number of points at the start of latRad and lngRad which are up to date
+    private int prepared;
+    private double minCosLat = 1;
+
+    /**
+     * @param trace the full trace
+     */
+    LevelOfDetail(final Trace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Drops all levels, must be called after the whole trace was replaced
+     */
+    void invalidate() {
+        Arrays.fill(levels, null);
+        all = null;
+        prepared = 0;
+        minCosLat = 1;
+    }
+
+    /**
+     * Must be called after the trace was changed at the given index: a point
+     * was added, removed, inserted or moved there
+     *
+     * @param index the index of the changed point. For a removed point, its
+     *              index before the removal.
+     */
+    void pointChanged(int index) {
+        prepared = Math.min(prepared, index);
+        for (int level = 0; level < levels.length; level++) {
+            if (levels[level] != null) keepBefore(level, index);
+        }
+    }
+
+    /**
+     * Must be called after the point at the given index was moved. Keeps the
+     * levels which contain the point, even though they might not be exactly
+     * the simplification of the changed trace anymore - so pointChanged()
+     * should be called once the point is not moved anymore.
+     *
+     * @param index the index of the moved point
+     */
+    void pointMoved(int index) {
+        prepared = Math.min(prepared, index);
+        for (int level = 0; level < levels.length; level++) {
+            if (levels[level] != null &&
+                    Arrays.binarySearch(levels[level], 0, valid[level], index) < 0) {
+                keepBefore(level, index);
+            }
+        }
+    }
+
+    /**
+     * Marks the indices of the given level from the last one before the given
+     * index on as outdated
+     */
+    private void keepBefore(int level, int index) {
+        int[] kept = levels[level];
+        // the last point is only kept because it is the end of the trace
+        int end = Math.min(valid[level], kept.length - 1);
+        int pos = Arrays.binarySearch(kept, 0, end, index);
+        int count = pos >= 0 ? pos : -pos - 1;
+        if (count == 0) {
+            levels[level] = null;
+        } else {
+            valid[level] = count;
+        }
+    }
+
+    /**
+     * Returns the indices of the points to draw at the given zoom.
+     * <p/>
+     * The returned array is the same as long as the trace is not changed and the
+     * zoom stays within the same integer zoom level, so callers can use the
+     * reference to check if they have to redraw anything.
+     *
+     * @param zoom the camera zoom
+     * @return the indices of the points to draw, in ascending order. Must not
+     * be modified.
+     */
+    int[] getIndices(float zoom) {
+        int n = trace.size();
+        if (n < MIN_POINTS) return getAll();
+        int level = Math.max(0, Math.min(MAX_ZOOM, (int) zoom));
+        int[] kept = levels[level];
+        if (kept == null || valid[level] < kept.length) {
+            prepare();
+            // use the smallest pixel size within the trace, so no detail is lost
+            double tolerance = METERS_PER_PIXEL * minCosLat / (1 << level);
+            if (tolerance < MIN_TOLERANCE) {
+                kept = getAll();
+            } else {
+                // continue from the last point which is still valid
+                int count = kept == null ? 0 : valid[level] - 1;
+                int from = kept == null ? 0 : kept[count];
+                int[] tail = new int[n - from];
+                int tailCount = PolyUtil.simplify(latRad, lngRad, from, n, tolerance, tail);
+                if (count + tailCount == n) {
+                    kept = getAll();
+                } else {
+                    kept = count == 0 ? Arrays.copyOf(tail, tailCount) :
+                            Arrays.copyOf(kept, count + tailCount);
+                    System.arraycopy(tail, 0, kept, count, tailCount);
+                }
+            }
+            levels[level] = kept;
+            valid[level] = kept.length;
+            if (BuildConfig.DEBUG)
+                Logger.log("level of detail " + level + ": " + kept.length + " of " + n);
+        }
+        return kept;
+    }
+
+    private int[] getAll() {
+        int n = trace.size();
+        if (all == null || all.length != n) {
+            all = new int[n];
+            for (int i = 0; i < n; i++) {
+                all[i] = i;
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Updates the coordinates in radians of all points changed since the last
+     * call
+     */
+    private void prepare() {
+        int n = trace.size();
+        if (latRad.length < n) {
+            int capacity = Math.max(n, latRad.length * 3 / 2);
+            latRad = Arrays.copyOf(latRad, capacity);
+            lngRad = Arrays.copyOf(lngRad, capacity);
+        }
+        for (int i = prepared; i < n; i++) {
+            latRad[i] = Math.toRadians(trace.getLatitude(i));
+            lngRad[i] = Math.toRadians(trace.getLongitude(i));
+            minCosLat = Math.min(minCosLat, Math.cos(latRad[i]));
+        }
+        prepared = n;
+    }
+}
@@ -29,8 +29,10 @@ import android.os.BadParcelableException;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.util.DisplayMetrics;
 import android.util.Pair;
+import android.util.SparseArray;
 import android.view.Menu;
 import android.view.View;
 import android.widget.FrameLayout;
@@ -63,6 +65,7 @@ import com.google.android.gms.maps.model.BitmapDescriptor;
 import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
 import com.google.android.gms.maps.model.Polygon;
@@ -73,10 +76,10 @@ import com.google.maps.android.SphericalUtil;
 
 import java.io.IOException;
 import java.text.NumberFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
-import java.util.Stack;
 
 import de.j4velin.mapsmeasure.wrapper.API17Wrapper;
 
@@ -96,15 +99,62 @@ public class Map extends FragmentActivity implements OnMapReadyCallback {
     private GoogleMap mMap;
     private DrawerLayout mDrawerLayout;
 
-    // the stacks - everytime the user touches the map, an entry is pushed
-    private final Stack<LatLng> trace = new Stack<>();
-    private final Stack<Polyline> lines = new Stack<>();
-    private final Stack<Marker> points = new Stack<>();
+    // the stack - everytime the user touches the map, an entry is pushed
+    private final Trace trace = new Trace();
+    // the simplified trace for the current zoom, which is what is actually drawn
+    private final LevelOfDetail levelOfDetail = new LevelOfDetail(trace);
+    private int[] drawnIndices;
+    // the markers of the drawn points within the visible region, by index in the trace
+    private final SparseArray<Marker> markers = new SparseArray<>();
+
+    // one polyline for the whole trace, redrawn at most once per frame
+    private Polyline line;
+    private boolean redrawPending;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable redrawer = () -> {
+        redrawPending = false;
+        redraw();
+    };
 
     private Polygon areaOverlay;
 
+    // the points where the area polygon crosses itself, shown in AREA mode
+    private final SelfIntersections intersections = new SelfIntersections(trace);
+    private final List<Marker> intersectionMarkers = new ArrayList<>();
+    private boolean intersectionsChanged;
+    private final static int MAX_INTERSECTION_MARKERS = 100;
+
+    // to find the point or segment the user touched when editing the trace
+    private final SegmentIndex segmentIndex = new SegmentIndex(trace);
+    // the index of the point whose marker is currently dragged, or -1
+    private int draggedIndex = -1;
+    // how close a long press has to be to a segment to insert a point into it
+    private final static int TOUCH_RADIUS_DP = 24;
+
+    // records all edits, so that the trace survives the activity being recreated
+    // and the app being left or crashing
+    private TraceJournal journal;
+    // the trace read from the journal, until the map is ready to show it
+    private Trace restoredTrace;
+    // the activity was recreated, so its intent was already handled
+    private boolean recreated;
+
+    // loaded traces with more points are simplified to limit the memory usage
+    private final static int MAX_LOADED_POINTS = 100000;
+    // the trace file being loaded, started again if the activity is recreated meanwhile
+    private TraceIO.Task loadTask;
+    private Uri loadUri;
+    // the file whose loading was interrupted by recreating the activity
+    private Uri pendingLoad;
+    // set once a file was loaded, which replaces the trace restored from the journal
+    private boolean traceLoaded;
+
+    // values of the "measurementEngine" setting
+    final static String ENGINE_AUTO = "auto", ENGINE_SPHERICAL = "spherical",
+            ENGINE_ELLIPSOIDAL = "ellipsoidal", ENGINE_PLANAR = "planar";
+    private String engineSetting = ENGINE_AUTO;
+
     private Pair<Float, Float> altitude;
-    private float distance; // in meters
     private MeasureType type; // the currently selected measure type
     private TextView valueTv; // the view displaying the distance/area & unit
 
@@ -170,14 +220,14 @@ public class Map extends FragmentActivity implements OnMapReadyCallback {
      * Get the formatted string for the valueTextView.
      * <p/>
      * Depending on whether 'showArea' is set, the returned string shows the
-     * distance of the trace or the area between them. If 'showArea' is set,
-     * this call might be expensive as the area is computed here and not cached.
+     * distance of the trace or the area between them.
      *
      * @return the formatted text for the valueTextView
      */
     private String getFormattedString() {
         if (type == MeasureType.DISTANCE) {
             elevationView.setVisibility(View.GONE);
+            double distance = trace.getLength();
             if (metric) {
                 if (distance > 1000) return formatter_two_dec.format(distance / 1000) + " km";
                 else return formatter_two_dec.format(Math.max(0, distance)) + " m";
@@ -191,29 +241,42 @@ public class Map extends FragmentActivity implements OnMapReadyCallback {
         } else if (type == MeasureType.AREA) {
             elevationView.setVisibility(View.GONE);
             double area;
-            if (areaOverlay != null) areaOverlay.remove();
             if (trace.size() >= 3) {
-                area = SphericalUtil.computeArea(trace);
-                areaOverlay = mMap.addPolygon(
-                        new PolygonOptions().addAll(trace).strokeWidth(0).fillColor(COLOR_POINT));
+                area = trace.getArea();
+                if (areaOverlay == null) {
+                    // the points are set by the next redraw
+                    areaOverlay = mMap.addPolygon(new PolygonOptions()
+                            .addAll(Collections.singletonList(trace.peek())).strokeWidth(0)
+                            .fillColor(COLOR_POINT));
+                    drawnIndices = null;
+                    scheduleRedraw();
+                }
             } else {
                 area = 0;
+                removeAreaOverlay();
             }
+            String text;
             if (metric) {
                 if (area > 1000000)
-                    return formatter_two_dec.format(Math.max(0, area / 1000000d)) + " km²";
-                else return formatter_no_dec.format(Math.max(0, area)) + " m²";
+                    text = formatter_two_dec.format(Math.max(0, area / 1000000d)) + " km²";
+                else text = formatter_no_dec.format(Math.max(0, area)) + " m²";
             } else {
                 if (area >= 2589989)
-                    return formatter_two_dec.format(Math.max(0, area / 2589988.110336d)) + " mi²";
-                else return formatter_no_dec.format(Math.max(0, area / 0.09290304d)) + " ft²";
+                    text = formatter_two_dec.format(Math.max(0, area / 2589988.110336d)) + " mi²";
+                else text = formatter_no_dec.format(Math.max(0, area / 0.09290304d)) + " ft²";
             }
+            if (intersections.size() > 0) {
+                text += "\n" + getString(R.string.area_self_intersecting, intersections.size());
+            }
+            return text;
         } else if (type == MeasureType.ELEVATION) {
             if (altitude == null) {
                 final Handler h = new Handler();
+                // the trace might be changed on the UI thread while requesting
+                final Trace snapshot = trace.copy();
                 new Thread(() -> {
                     try {
-                        altitude = Util.updateElevationView(elevationView, trace);
+                        altitude = Util.updateElevationView(elevationView, snapshot);
                         h.post(() -> {
                             if (isFinishing()) return;
                             if (altitude == null) {
@@ -262,16 +325,6 @@ public class Map extends FragmentActivity implements OnMapReadyCallback {
         super.onRestoreInstanceState(savedInstanceState);
         try {
             metric = savedInstanceState.getBoolean("metric");
-            @SuppressWarnings("unchecked")
-            // Casting to Stack<LatLng> apparently results in
-            // "java.lang.ClassCastException: java.util.ArrayList cannot be cast to java.util.Stack"
-            // on some devices
-            List<LatLng> tmp = (List<LatLng>) savedInstanceState.getSerializable("trace");
-            if (tmp != null) {
-                for (LatLng latLng : tmp) {
-                    addPoint(latLng);
-                }
-            }
             mMap.moveCamera(CameraUpdateFactory.newLatLngZoom(
                     new LatLng(savedInstanceState.getDouble("position-lat"),
                             savedInstanceState.getDouble("position-lon")),
@@ -283,7 +336,11 @@ public class Map extends FragmentActivity implements OnMapReadyCallback {
 
     @Override
     protected void onSaveInstanceState(final Bundle outState) {
-        outState.putSerializable("trace", trace);
+        // only a reference, the points are in the journal
+        outState.putString("journal", journal.getId());
+        if (loadTask != null && !loadTask.isFinished() && !loadTask.isCancelled()) {
+            outState.putString("loading", loadUri.toString());
+        }
         outState.putBoolean("metric", metric);
         if (mMap != null) { // might be null if there is an issue with Google
             // Play Services
@@ -301,26 +358,112 @@ public class Map extends FragmentActivity implements OnMapReadyCallback {
      * @param p the new point
      */
     void addPoint(final LatLng p) {
-        if (!trace.isEmpty()) {
-            lines.push(mMap.addPolyline(
-                    new PolylineOptions().color(COLOR_LINE).width(LINE_WIDTH).add(trace.peek())
-                            .add(p)));
-            distance += SphericalUtil.computeDistanceBetween(p, trace.peek());
-        }
-        points.push(drawMarker(p));
         trace.push(p);
+        journal.pointAdded(trace);
+        updateMeasurementEngine(trace.size() - 1);
+        markers.put(trace.size() - 1, drawMarker(p));
+        levelOfDetail.pointChanged(trace.size() - 1);
+        intersections.pointAdded();
+        intersectionsChanged = true;
+        segmentIndex.pointAdded();
+        scheduleRedraw();
+        updateValueText();
+    }
+
+    /**
+     * Replaces the current trace with the given points.
+     * <p/>
+     * In contrast to calling addPoint for every point, the map and the value
+     * text are only updated once.
+     *
+     * @param newTrace the new points
+     */
+    void setTrace(final List<LatLng> newTrace) {
+        replaceTrace(newTrace);
+        journal.replaced(trace);
+    }
+
+    /**
+     * Replaces the current trace with the given points without recording it
+     * in the journal
+     *
+     * @param newTrace the new points
+     */
+    private void replaceTrace(final List<LatLng> newTrace) {
+        mMap.clear();
+        trace.clear();
+        // no crossings until the new trace was checked in the background
+        intersections.update();
+        line = null;
+        areaOverlay = null;
+        markers.clear();
+        if (newTrace instanceof Trace) {
+            // takes over the measurements instead of measuring every segment again
+            trace.copyFrom((Trace) newTrace);
+        } else {
+            trace.ensureCapacity(newTrace.size());
+            for (LatLng p : newTrace) {
+                trace.push(p);
+            }
+        }
+        updateMeasurementEngine(-1);
+        levelOfDetail.invalidate();
+        intersections.updateInBackground(handler, this::onIntersectionsUpdated);
+        intersectionMarkers.clear();
+        intersectionsChanged = true;
+        segmentIndex.update();
+        draggedIndex = -1;
+        redraw();
         updateValueText();
     }
 
+    /**
+     * Reads the trace from the given file in a background thread and replaces
+     * the current trace with it afterwards
+     *
+     * @param f the file to read from
+     */
+    void loadTrace(final Uri f) {
+        final String setting = engineSetting;
+        if (loadTask != null) loadTask.cancel();
+        loadUri = f;
+        loadTask = TraceIO.run(this, R.string.loading_trace, task -> {
+            Trace file = TraceIO.read(f, Map.this, task);
+            Trace simplified = file.simplify(MAX_LOADED_POINTS);
+            // so that setTrace does not have to measure it again on the UI thread
+            updateMeasurementEngine(setting, simplified, -1);
+            return new Pair<>(file.size(), simplified);
+        }, result -> {
+            final Trace loaded = result.second;
+            traceLoaded = true;
+            restoredTrace = null;
+            setTrace(loaded);
+            if (!loaded.isEmpty()) moveCamera(loaded.get(0));
+            if (loaded.size() != result.first) {
+                Toast.makeText(Map.this,
+                        getString(R.string.trace_simplified, result.first, loaded.size()),
+                        Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
     /**
      * Resets the map by removing all points, lines and setting the text to 0
      */
     void clear() {
         mMap.clear();
         trace.clear();
-        lines.clear();
-        points.clear();
-        distance = 0;
+        journal.replaced(trace);
+        levelOfDetail.invalidate();
+        drawnIndices = null;
+        line = null;
+        areaOverlay = null;
+        markers.clear();
+        intersections.update();
+        intersectionMarkers.clear();
+        intersectionsChanged = false;
+        segmentIndex.update();
+        draggedIndex = -1;
         updateValueText();
     }
 
@@ -328,15 +471,280 @@ public class Map extends FragmentActivity implements OnMapReadyCallback {
      * Removes the last added point, the line to it and updates the distance
      */
     private void removeLast() {
-        if (trace.isEmpty()) return;
-        points.pop().remove();
-        LatLng remove = trace.pop();
-        if (!trace.isEmpty())
-            distance -= SphericalUtil.computeDistanceBetween(remove, trace.peek());
-        if (!lines.isEmpty()) lines.pop().remove();
+        if (trace.isEmpty() || draggedIndex >= 0) return;
+        Marker m = markers.get(trace.size() - 1);
+        if (m != null) {
+            m.remove();
+            markers.remove(trace.size() - 1);
+        }
+        trace.removeLast();
+        journal.pointRemoved(trace);
+        levelOfDetail.pointChanged(trace.size());
+        intersections.pointRemoved();
+        intersectionsChanged = true;
+        segmentIndex.pointRemoved();
+        scheduleRedraw();
         updateValueText();
     }
 
+    /**
+     * Moves the point at the given index, for example while its marker is
+     * dragged
+     *
+     * @param index the index of the point
+     * @param p     the new position
+     */
+    private void movePoint(int index, final LatLng p) {
+        trace.set(index, p.latitude, p.longitude);
+        updateMeasurementEngine(index);
+        segmentIndex.pointMoved(index);
+        // simplified again once the drag ends
+        levelOfDetail.pointMoved(index);
+        scheduleRedraw();
+        updateValueText();
+    }
+
+    /**
+     * Inserts a point into the segment of the trace closest to the given
+     * position, if the position is close enough to the trace
+     *
+     * @param p the position of the new point
+     */
+    private void insertPoint(final LatLng p) {
+        if (trace.size() < 2) return;
+        double radius = getTouchRadius();
+        // close to an existing point, which can be dragged instead
+        if (segmentIndex.nearestVertex(p, radius) >= 0) return;
+        int segment = segmentIndex.nearestSegment(p, radius);
+        if (segment < 0) return;
+        int index = segment + 1;
+        trace.insert(index, p.latitude, p.longitude);
+        journal.pointInserted(trace, index);
+        updateMeasurementEngine(index);
+        // the markers of all following points have to move back by one
+        SparseArray<Marker> shifted = new SparseArray<>(markers.size() + 1);
+        for (int i = 0; i < markers.size(); i++) {
+            int key = markers.keyAt(i);
+            shifted.append(key < index ? key : key + 1, markers.valueAt(i));
+        }
+        markers.clear();
+        for (int i = 0; i < shifted.size(); i++) {
+            markers.append(shifted.keyAt(i), shifted.valueAt(i));
+        }
+        markers.put(index, drawMarker(p));
+        segmentIndex.pointInserted(index);
+        intersections.updateInBackground(handler, this::onIntersectionsUpdated);
+        levelOfDetail.pointChanged(index);
+        scheduleRedraw();
+        updateValueText();
+    }
+
+    /**
+     * @return the distance on the screen within which a touch hits the trace,
+     * in the units of SegmentIndex
+     */
+    private double getTouchRadius() {
+        // the whole map is 256 dp wide at zoom 0
+        return TOUCH_RADIUS_DP * 2 * Math.PI / 256 /
+                Math.pow(2, mMap.getCameraPosition().zoom);
+    }
+
+    /**
+     * Changes the measurement engine setting
+     *
+     * @param setting one of the ENGINE_ constants
+     */
+    void setMeasurementEngine(final String setting) {
+        engineSetting = setting;
+        getSharedPreferences("settings", Context.MODE_PRIVATE).edit()
+                .putString("measurementEngine", setting).apply();
+        updateMeasurementEngine(-1);
+        updateValueText();
+    }
+
+    /**
+     * @return the measurement engine setting, one of the ENGINE_ constants
+     */
+    String getMeasurementEngine() {
+        return engineSetting;
+    }
+
+    /**
+     * Chooses the engine to measure the trace with, depending on the setting.
+     *
+     * @param changed the index of the only added or moved point, or -1 to check
+     *                the whole trace
+     */
+    private void updateMeasurementEngine(int changed) {
+        updateMeasurementEngine(engineSetting, trace, changed);
+    }
+
+    /**
+     * Chooses the engine to measure the given trace with, depending on the
+     * setting, and measures the trace again if the engine changed.
+     * <p/>
+     * In automatic mode, small traces are measured in a plane, which is fast
+     * and accurate enough. Once a point is too far from the first point, the
+     * trace is measured on the WGS84 ellipsoid instead. An engine which would
+     * measure the same as the current one is kept, so a trace which was
+     * measured in the background is not measured again when it is shown.
+     *
+     * @param setting the measurement engine setting, one of the ENGINE_ constants
+     * @param trace   the trace, which must not be used by another thread
+     * @param changed the index of the only added or moved point, or -1 to check
+     *                the whole trace
+     */
+    static void updateMeasurementEngine(final String setting, final Trace trace, int changed) {
+        MeasurementEngine current = trace.getEngine();
+        MeasurementEngine engine;
+        if (trace.size() <= 1) changed = -1;
+        if (ENGINE_SPHERICAL.equals(setting)) {
+            engine = current instanceof SphericalEngine ? current : new SphericalEngine();
+        } else if (ENGINE_ELLIPSOIDAL.equals(setting)) {
+            engine = current instanceof EllipsoidalEngine ? current : new EllipsoidalEngine();
+        } else if (trace.isEmpty()) {
+            return;
+        } else if (changed >= 0 && current instanceof PlanarEngine) {
+            engine = ENGINE_PLANAR.equals(setting) || ((PlanarEngine) current)
+                    .isInRange(trace.getLatitude(changed), trace.getLongitude(changed)) ?
+                    current : new EllipsoidalEngine();
+        } else if (changed >= 0 && current instanceof EllipsoidalEngine &&
+                ENGINE_AUTO.equals(setting)) {
+            engine = current;
+        } else {
+            double lat0 = trace.getLatitude(0), lng0 = trace.getLongitude(0);
+            PlanarEngine planar = current instanceof PlanarEngine &&
+                    ((PlanarEngine) current).hasReferencePoint(lat0, lng0) ?
+                    (PlanarEngine) current : new PlanarEngine(lat0, lng0);
+            engine = planar;
+            if (ENGINE_AUTO.equals(setting)) {
+                for (int i = 1; i < trace.size(); i++) {
+                    if (!planar.isInRange(trace.getLatitude(i), trace.getLongitude(i))) {
+                        engine = current instanceof EllipsoidalEngine ?
+                                current : new EllipsoidalEngine();
+                        break;
+                    }
+                }
+            }
+        }
+        if (engine != current) {
+            if (BuildConfig.DEBUG) Logger.log("measuring with " + engine.getClass().getSimpleName());
+            trace.setEngine(engine);
+        }
+    }
+
+    /**
+     * Schedules a redraw of the trace.
+     * <p/>
+     * Multiple calls before the next frame result in only one redraw, so adding
+     * many points in a row redraws the trace only once.
+     */
+    private void scheduleRedraw() {
+        if (!redrawPending) {
+            redrawPending = true;
+            handler.post(redrawer);
+        }
+    }
+
+    /**
+     * Draws the trace in the level of detail for the current zoom: the polyline
+     * and the area overlay get the simplified points and only the simplified
+     * points within the visible region get a marker. So the cost of a redraw
+     * does not depend on the length of the trace when zoomed out.
+     */
+    private void redraw() {
+        if (mMap == null) return;
+        int[] indices = levelOfDetail.getIndices(mMap.getCameraPosition().zoom);
+        // while dragging, the points change but the indices might not
+        if (indices != drawnIndices || draggedIndex >= 0) {
+            drawnIndices = indices;
+            List<LatLng> drawn = new ArrayList<>(indices.length);
+            for (int i : indices) {
+                drawn.add(trace.get(i));
+            }
+            if (trace.size() < 2) {
+                if (line != null) {
+                    line.remove();
+                    line = null;
+                }
+            } else if (line == null) {
+                line = mMap.addPolyline(
+                        new PolylineOptions().color(COLOR_LINE).width(LINE_WIDTH).addAll(drawn));
+            } else {
+                line.setPoints(drawn);
+            }
+            if (areaOverlay != null && trace.size() >= 3) areaOverlay.setPoints(drawn);
+        }
+        updateMarkers(indices, mMap.getProjection().getVisibleRegion().latLngBounds);
+        if (intersectionsChanged) {
+            intersectionsChanged = false;
+            updateIntersectionMarkers();
+        }
+    }
+
+    /**
+     * Called once the self-intersections were updated in the background
+     */
+    private void onIntersectionsUpdated() {
+        if (isFinishing()) return;
+        intersectionsChanged = true;
+        scheduleRedraw();
+        updateValueText();
+    }
+
+    /**
+     * Shows the points where the area polygon crosses itself, if in AREA mode
+     */
+    private void updateIntersectionMarkers() {
+        for (Marker m : intersectionMarkers) {
+            m.remove();
+        }
+        intersectionMarkers.clear();
+        if (type != MeasureType.AREA) return;
+        int count = Math.min(intersections.size(), MAX_INTERSECTION_MARKERS);
+        for (int i = 0; i < count; i++) {
+            intersectionMarkers.add(mMap.addMarker(
+                    new MarkerOptions().position(intersections.get(i)).icon(BitmapDescriptorFactory
+                            .defaultMarker(BitmapDescriptorFactory.HUE_RED))));
+        }
+    }
+
+    /**
+     * Makes sure there is a marker for exactly those of the given points which
+     * are within the given bounds, reusing the existing markers
+     *
+     * @param indices the indices of the drawn points
+     * @param bounds  the visible region of the map
+     */
+    private void updateMarkers(final int[] indices, final LatLngBounds bounds) {
+        SparseArray<Marker> visible = new SparseArray<>();
+        for (int i : indices) {
+            LatLng p = new LatLng(trace.getLatitude(i), trace.getLongitude(i));
+            if (!bounds.contains(p)) continue;
+            Marker m = markers.get(i);
+            if (m != null) {
+                markers.remove(i);
+            } else {
+                m = drawMarker(p);
+            }
+            visible.append(i, m);
+        }
+        // never remove the marker the user is dragging
+        if (draggedIndex >= 0 && visible.get(draggedIndex) == null &&
+                markers.get(draggedIndex) != null) {
+            visible.put(draggedIndex, markers.get(draggedIndex));
+            markers.remove(draggedIndex);
+        }
+        // whatever is left is no longer needed
+        for (int i = 0; i < markers.size(); i++) {
+            markers.valueAt(i).remove();
+        }
+        markers.clear();
+        for (int i = 0; i < visible.size(); i++) {
+            markers.append(visible.keyAt(i), visible.valueAt(i));
+        }
+    }
+
     @SuppressLint("NewApi")
     @Override
     public void onCreate(final Bundle savedInstanceState) {
@@ -354,6 +762,33 @@ public class Map extends FragmentActivity implements OnMapReadyCallback {
                 .setListener(purchasesUpdatedListener)
                 .enablePendingPurchases()
                 .build();
+        String journalId =
+                savedInstanceState != null ? savedInstanceState.getString("journal") : null;
+        String loading =
+                savedInstanceState != null ? savedInstanceState.getString("loading") : null;
+        if (loading != null) pendingLoad = Uri.parse(loading);
+        recreated = journalId != null;
+        // the trace of the last session, if the app crashed or was left before
+        if (journalId == null) journalId = TraceJournal.getLastId(this);
+        if (journalId != null) {
+            journal = TraceJournal.open(this, journalId);
+            final String setting = getSharedPreferences("settings", Context.MODE_PRIVATE)
+                    .getString("measurementEngine", ENGINE_AUTO);
+            journal.restore(handler::post,
+                    // measure it in the background, so that replaceTrace does not have to
+                    restored -> updateMeasurementEngine(setting, restored, -1),
+                    restored -> {
+                        // a loaded file was recorded in the journal, so it is the restored trace
+                        if (isFinishing() || traceLoaded) return;
+                        if (mMap != null) {
+                            replaceTrace(restored);
+                        } else {
+                            restoredTrace = restored;
+                        }
+                    });
+        } else {
+            journal = TraceJournal.create(this);
+        }
         init();
     }
 
@@ -375,6 +810,7 @@ public class Map extends FragmentActivity implements OnMapReadyCallback {
 
         // use metric a the default everywhere, except in the US
         metric = prefs.getBoolean("metric", !Locale.getDefault().equals(Locale.US));
+        engineSetting = prefs.getString("measurementEngine", ENGINE_AUTO);
 
         final View topCenterOverlay = findViewById(R.id.topCenterOverlay);
         mDrawerLayout = findViewById(R.id.drawer_layout);
@@ -469,8 +905,7 @@ public class Map extends FragmentActivity implements OnMapReadyCallback {
                     closeDrawer();
                     break;
                 case 2: // Units
-                    Dialogs.getUnits(Map.this, distance, SphericalUtil.computeArea(trace))
-                            .show();
+                    Dialogs.getUnits(Map.this, trace).show();
                     closeDrawer();
                     break;
                 case 3: // distance
@@ -632,10 +1067,41 @@ public class Map extends FragmentActivity implements OnMapReadyCallback {
                 .getInt("mapView", GoogleMap.MAP_TYPE_NORMAL));
 
         mMap.setOnMarkerClickListener(click -> {
+            // the markers of self-intersections are not part of the trace
+            if (intersectionMarkers.contains(click)) return true;
             addPoint(click.getPosition());
             return true;
         });
 
+        mMap.setOnMarkerDragListener(new GoogleMap.OnMarkerDragListener() {
+            @Override
+            public void onMarkerDragStart(final Marker m) {
+                int i = markers.indexOfValue(m);
+                draggedIndex = i >= 0 ? markers.keyAt(i) : -1;
+                if (draggedIndex >= 0) movePoint(draggedIndex, m.getPosition());
+            }
+
+            @Override
+            public void onMarkerDrag(final Marker m) {
+                if (draggedIndex >= 0) movePoint(draggedIndex, m.getPosition());
+            }
+
+            @Override
+            public void onMarkerDragEnd(final Marker m) {
+                if (draggedIndex < 0) return;
+                movePoint(draggedIndex, m.getPosition());
+                // only the final position, not every step of the drag
+                journal.pointMoved(trace, draggedIndex);
+                levelOfDetail.pointChanged(draggedIndex);
+                draggedIndex = -1;
+                // too slow to do on every move
+                intersections.updateInBackground(handler, Map.this::onIntersectionsUpdated);
+                scheduleRedraw();
+                updateValueText();
+            }
+        });
+        mMap.setOnMapLongClickListener(this::insertPoint);
+
         mMap.getUiSettings().setMyLocationButtonEnabled(true);
         mMap.setOnMyLocationButtonClickListener(() -> {
             getCurrentLocation(location -> {
@@ -661,6 +1127,7 @@ public class Map extends FragmentActivity implements OnMapReadyCallback {
         });
 
         mMap.setOnMapClickListener(this::addPoint);
+        mMap.setOnCameraIdleListener(this::redraw);
 
         if (hasLocationPermission()) {
             mMap.setMyLocationEnabled(true);
@@ -675,18 +1142,24 @@ public class Map extends FragmentActivity implements OnMapReadyCallback {
             mMap.setPadding(0, statusbar, 0, navBarHeight);
         }
 
-        // check if open with csv file
+        if (restoredTrace != null) {
+            replaceTrace(restoredTrace);
+            restoredTrace = null;
+        }
+
+        // the trace file of the intent was already loaded before the activity
+        // was recreated, and the map fragment keeps its camera position
+        if (recreated) {
+            if (pendingLoad != null) loadTrace(pendingLoad);
+            pendingLoad = null;
+            return;
+        }
+
+        // check if opened with a trace file
         if (Intent.ACTION_VIEW.equals(getIntent().getAction())) {
-            try {
-                Util.loadFromFile(getIntent().getData(), this);
-            } catch (IOException e) {
-                if (BuildConfig.DEBUG) Logger.log(e);
-                Toast.makeText(this, getString(R.string.error,
-                                e.getClass().getSimpleName() + "\n" + e.getMessage()), Toast.LENGTH_LONG)
-                        .show();
-            }
+            loadTrace(getIntent().getData());
         } else {
-            // dont move to current position if started with a csv file
+            // dont move to current position if started with a trace file
             getCurrentLocation(location -> {
                 if (location != null && mMap.getCameraPosition().zoom <= 5) {
                     moveCamera(new LatLng(location.getLatitude(), location.getLongitude()));
@@ -743,7 +1216,19 @@ public class Map extends FragmentActivity implements OnMapReadyCallback {
         updateValueText();
         if (mDrawerLayout != null) mDrawerLayout.closeDrawers();
         if (newType != MeasureType.AREA) {
-            if (areaOverlay != null) areaOverlay.remove();
+            removeAreaOverlay();
+        }
+        intersectionsChanged = true;
+        scheduleRedraw();
+    }
+
+    /**
+     * Removes the polygon showing the measured area from the map
+     */
+    private void removeAreaOverlay() {
+        if (areaOverlay != null) {
+            areaOverlay.remove();
+            areaOverlay = null;
         }
     }
 
@@ -772,7 +1257,8 @@ public class Map extends FragmentActivity implements OnMapReadyCallback {
      */
     private Marker drawMarker(final LatLng center) {
         return mMap.addMarker(
-                new MarkerOptions().position(center).flat(true).anchor(0.5f, 0.5f).icon(marker));
+                new MarkerOptions().position(center).flat(true).anchor(0.5f, 0.5f).icon(marker)
+                        .draggable(true));
     }
 
     /**
@@ -822,6 +1308,10 @@ public class Map extends FragmentActivity implements OnMapReadyCallback {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        // a recreated activity starts loading again, see onSaveInstanceState
+        if (loadTask != null) loadTask.cancel();
+        // the files are kept, to restore the trace when the app is started again
+        journal.close();
         if (mMap != null) {
             CameraPosition lastPosition = mMap.getCameraPosition();
             getSharedPreferences("settings", Context.MODE_PRIVATE).edit()
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2014 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads saved or imported traces (binary, CSV, GPX, KML or GeoJSON) through
+ * a memory mapping of the file.
+ * <p/>
+ * The points are decoded straight from the mapped pages and passed to a
+ * callback, so very large traces (for example from GPS loggers) can be
+ * counted, iterated or reduced to a preview without ever holding the whole
+ * file or all of its points on the heap. The file is mapped in windows of
+ * WINDOW_SIZE bytes, so files larger than 2 GB work as well.
+ */
+class MappedTraceReader implements Closeable {
+
+    private final static long WINDOW_SIZE = 64 * 1024 * 1024;
+    // two binary varints of at most 10 bytes each
+    private final static int MAX_POINT_SIZE = 20;
+    private final static int CHUNK_SIZE = 8192;
+
+    private final FileInputStream in;
+    private final FileChannel channel;
+    private final long size;
+    private final TraceFormat format;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    /**
+     * @param f the trace file to read
+     * @throws IOException if the file can not be opened or mapped
+     */
+    MappedTraceReader(final File f) throws IOException {
+        in = new FileInputStream(f);
+        try {
+            channel = in.getChannel();
+            size = channel.size();
+            format = TraceFormat.detect(channel);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true, if the file is in the binary trace format, false if it is
+     * in one of the text formats
+     */
+    boolean isBinary() {
+        return format == TraceFormat.BINARY;
+    }
+
+    /**
+     * @return the format of the file
+     */
+    TraceFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the size of the file in bytes
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return the number of bytes read so far, for example to show the
+     * progress from within the callback of forEach()
+     */
+    long getPosition() {
+        return window == null ? 0 : windowStart + window.position();
+    }
+
+    /**
+     * Returns the number of points in the trace. For binary traces, this only
+     * reads the header; text files have to be scanned completely.
+     *
+     * @return the number of points
+     * @throws IOException
+     */
+    int count() throws IOException {
+        if (isBinary()) {
+            map(0);
+            return BinaryTraceFormat.readHeader(window);
+        } else {
+            TraceParser parser = format.createParser((latitude, longitude) -> {
+            });
+            parseText(parser);
+            return parser.getPoints();
+        }
+    }
+
+    /**
+     * Passes all points of the trace to the given callback
+     *
+     * @param callback the callback
+     * @return the number of points
+     * @throws IOException if the file is corrupt
+     */
+    int forEach(final PointCallback callback) throws IOException {
+        if (isBinary()) {
+            map(0);
+            int count = BinaryTraceFormat.readHeader(window);
+            long lat = 0, lng = 0;
+            for (int i = 0; i < count; i++) {
+                if (window.remaining() < MAX_POINT_SIZE && windowStart + window.limit() < size) {
+                    map(windowStart + window.position());
+                }
+                lat += BinaryTraceFormat.getVarLong(window);
+                lng += BinaryTraceFormat.getVarLong(window);
+                callback.onPoint(BinaryTraceFormat.toDegrees(lat),
+                        BinaryTraceFormat.toDegrees(lng));
+            }
+            return count;
+        } else {
+            TraceParser parser = format.createParser(callback);
+            parseText(parser);
+            return parser.getPoints();
+        }
+    }
+
+    /**
+     * Reads a simplified version of the trace, which contains every n-th
+     * point and the last point, so that the result has at most maxPoints
+     * points (or maxPoints + 1, to include the last point).
+     * <p/>
+     * For binary traces, n is the smallest step which fits, as the number of
+     * points is in the header. Text files are read only once, so n starts at
+     * 1 and doubles whenever the kept points do not fit anymore - which keeps
+     * at least half of maxPoints for long traces.
+     * <p/>
+     * This is meant for previews - measurements on the result will not match
+     * the ones of the full trace.
+     *
+     * @param maxPoints the maximum number of points in the result, at least 2
+     * @return the decimated trace
+     * @throws IOException
+     */
+    Trace decimate(final int maxPoints) throws IOException {
+        if (maxPoints < 2) throw new IllegalArgumentException("maxPoints must be at least 2");
+        // kept[0..size) are the points with an index divisible by step
+        final double[] kept = new double[2 * maxPoints];
+        final double[] last = new double[2];
+        // index, step, size
+        final int[] state = {0, 1, 0};
+        if (isBinary()) {
+            int count = count();
+            state[1] = Math.max(1, (count + maxPoints - 1) / maxPoints);
+        }
+        forEach((latitude, longitude) -> {
+            int index = state[0]++;
+            if (index % state[1] == 0) {
+                if (state[2] == maxPoints) {
+                    // keep every second point and double the step
+                    int size = 0;
+                    for (int i = 0; i < state[2]; i += 2) {
+                        kept[2 * size] = kept[2 * i];
+                        kept[2 * size + 1] = kept[2 * i + 1];
+                        size++;
+                    }
+                    state[2] = size;
+                    state[1] *= 2;
+                }
+                if (index % state[1] == 0) {
+                    kept[2 * state[2]] = latitude;
+                    kept[2 * state[2] + 1] = longitude;
+                    state[2]++;
+                }
+            }
+            last[0] = latitude;
+            last[1] = longitude;
+        });
+        int count = state[0], step = state[1], size = state[2];
+        final Trace result = new Trace(size + 1);
+        for (int i = 0; i < size; i++) {
+            result.push(kept[2 * i], kept[2 * i + 1]);
+        }
+        if (count > 0 && (count - 1) % step != 0) result.push(last[0], last[1]);
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        in.close();
+    }
+
+    private void parseText(final TraceParser parser) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        for (long start = 0; start < size; start += WINDOW_SIZE) {
+            map(start);
+            while (window.hasRemaining()) {
+                int length = Math.min(chunk.length, window.remaining());
+                window.get(chunk, 0, length);
+                parser.parse(chunk, 0, length);
+            }
+        }
+        parser.finish();
+    }
+
+    private void map(long start) throws IOException {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                Math.min(WINDOW_SIZE, size - start));
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.mapsmeasure;
+
+/**
+ * Computes the lengths and areas of traces.
+ * <p/>
+ * The area of a closed trace is the sum of the signed edge areas of all its
+ * edges, including the edge from the last back to the first point. So both
+ * values only depend on the two points of an edge and can be maintained per
+ * segment while the trace is edited.
+ */
+interface MeasurementEngine {
+
+    /**
+     * @return the distance between the two points in meters, the arguments
+     * are in degrees
+     */
+    double computeDistance(double lat1, double lng1, double lat2, double lng2);
+
+    /**
+     * @return the signed area contribution of the edge between the two points
+     * in square meters, the arguments are in degrees
+     */
+    double computeSignedEdgeArea(double lat1, double lng1, double lat2, double lng2);
+
+    /**
+     * Engines may cache values between calls. They must still be safe to use
+     * from multiple threads, but every copy of a trace gets its own engine,
+     * so that traces measured at the same time do not replace each other's
+     * cached values.
+     *
+     * @return an engine which measures exactly like this one, but does not
+     * share any state with it
+     */
+    MeasurementEngine copy();
+}
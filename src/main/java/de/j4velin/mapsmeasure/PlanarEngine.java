@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.mapsmeasure;
+
+import com.google.maps.android.SphericalUtil;
+
+/**
+ * Measures in a plane tangent to the WGS84 ellipsoid at a reference point,
+ * which is only accurate for traces close to that point.
+ * <p/>
+ * For distances, the latitude and longitude differences are scaled by the
+ * radii of curvature of the ellipsoid at the reference point and the mean
+ * cosine of the two latitudes. For areas, points are projected from the
+ * center onto the plane tangent at the reference point to the authalic
+ * sphere, on which EllipsoidalEngine measures areas (a gnomonic projection).
+ * Great circles are straight lines in that projection, so the shoelace
+ * formula gives the area of the same polygon, enlarged by less than 0.001 %
+ * within MAX_DISTANCE. The projection of the last point is cached, so
+ * measuring along a trace projects every point only once. The cache is a
+ * single immutable object, so an instance can be used by multiple threads.
+ * <p/>
+ * Within MAX_DISTANCE of the reference point, distances and areas are within
+ * 0.1 % of the ellipsoidal values.
+ */
+class PlanarEngine implements MeasurementEngine {
+
+    // the distance from the reference point up to which this engine should be used
+    final static double MAX_DISTANCE = 10000;
+
+    private final static double A = 6378137;
+    private final static double E2 = 1 / 298.257223563 * (2 - 1 / 298.257223563);
+
+    private final double lat0, lng0;
+    // meters per radian in north and east direction at the reference point
+    private final double meridianRadius, normalRadius;
+    // the authalic latitude of the reference point
+    private final double sinAuthalic0, cosAuthalic0;
+
+    // the projection of the last point
+    private Projection cached;
+
+    /**
+     * The projection of a point
+     */
+    private final static class Projection {
+        private final double lat, lng;
+        // the longitude relative to the reference point in radians
+        private final double dLng;
+        private final double cos, y;
+        // the gnomonic projection on the authalic sphere
+        private final double areaX, areaY;
+
+        private Projection(final PlanarEngine engine, double lat, double lng) {
+            this.lat = lat;
+            this.lng = lng;
+            double dLng = lng - engine.lng0;
+            if (dLng > 180) dLng -= 360;
+            else if (dLng < -180) dLng += 360;
+            this.dLng = Math.toRadians(dLng);
+            cos = Math.cos(Math.toRadians(lat));
+            y = Math.toRadians(lat - engine.lat0) * engine.meridianRadius;
+
+            double authalic = Math.toRadians(EllipsoidalEngine.authalicLatitude(lat));
+            double sinAuthalic = Math.sin(authalic), cosAuthalic = Math.cos(authalic);
+            double cosDLng = Math.cos(this.dLng);
+            // the cosine of the angle to the reference point
+            double cosC = engine.sinAuthalic0 * sinAuthalic +
+                    engine.cosAuthalic0 * cosAuthalic * cosDLng;
+            double scale = EllipsoidalEngine.AUTHALIC_RADIUS / cosC;
+            areaX = scale * cosAuthalic * Math.sin(this.dLng);
+            areaY = scale * (engine.cosAuthalic0 * sinAuthalic -
+                    engine.sinAuthalic0 * cosAuthalic * cosDLng);
+        }
+    }
+
+    /**
+     * @param lat0 the latitude of the reference point in degrees
+     * @param lng0 the longitude of the reference point in degrees
+     */
+    PlanarEngine(double lat0, double lng0) {
+        this.lat0 = lat0;
+        this.lng0 = lng0;
+        double sin = Math.sin(Math.toRadians(lat0));
+        double w2 = 1 - E2 * sin * sin;
+        normalRadius = A / Math.sqrt(w2);
+        meridianRadius = normalRadius * (1 - E2) / w2;
+        double authalic0 = Math.toRadians(EllipsoidalEngine.authalicLatitude(lat0));
+        sinAuthalic0 = Math.sin(authalic0);
+        cosAuthalic0 = Math.cos(authalic0);
+    }
+
+    /**
+     * @return true, if the given point is close enough to the reference point
+     * for this engine to be accurate
+     */
+    boolean isInRange(double lat, double lng) {
+        return SphericalUtil.computeDistanceBetween(lat0, lng0, lat, lng) <= MAX_DISTANCE;
+    }
+
+    /**
+     * @return true, if the given point is the reference point of this engine
+     */
+    boolean hasReferencePoint(double lat, double lng) {
+        return lat == lat0 && lng == lng0;
+    }
+
+    @Override
+    public MeasurementEngine copy() {
+        return new PlanarEngine(lat0, lng0);
+    }
+
+    @Override
+    public double computeDistance(double lat1, double lng1, double lat2, double lng2) {
+        Projection p1 = project(lat1, lng1);
+        Projection p2 = project(lat2, lng2);
+        double dLng = p2.dLng - p1.dLng;
+        if (dLng > Math.PI) dLng -= 2 * Math.PI;
+        else if (dLng < -Math.PI) dLng += 2 * Math.PI;
+        double dx = dLng * normalRadius * (p1.cos + p2.cos) / 2, dy = p2.y - p1.y;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    @Override
+    public double computeSignedEdgeArea(double lat1, double lng1, double lat2, double lng2) {
+        Projection p1 = project(lat1, lng1);
+        Projection p2 = project(lat2, lng2);
+        // same orientation as SphericalUtil: counterclockwise polygons are negative
+        return (p1.areaX * p2.areaY - p2.areaX * p1.areaY) / 2;
+    }
+
+    /**
+     * @return the projection of the given point, from the cache if possible
+     */
+    private Projection project(double lat, double lng) {
+        Projection result = cached;
+        if (result == null || result.lat != lat || result.lng != lng) {
+            result = new Projection(this, lat, lng);
+            cached = result;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A uniform grid over the segments of a trace, to find the vertex or segment
+ * closest to a touched point without iterating over the whole trace.
+ * <p/>
+ * Distances are measured in the Mercator projection, so they correspond to
+ * distances on the screen: the whole map is 2 * PI wide. Each segment is
+ * stored in every grid cell its bounding box overlaps. Segments which would
+ * need too many cells are kept in a separate list instead, which is checked
+ * on every query. The cell size is the average segment size and chosen again
+ * whenever the index is rebuilt.
+ */
+class SegmentIndex {
+
+    // Mercator y of the latitude where the map ends
+    private final static double MAX_Y = Math.PI;
+    // segments covering more cells are not stored in the grid
+    private final static int MAX_CELLS_PER_SEGMENT = 16;
+    // queries covering more cells check all segments instead
+    private final static int MAX_CELLS_PER_QUERY = 256;
+    private final static double MIN_CELL_SIZE = 1e-8;
+
+    private final Trace trace;
+
+    // the projected points, x is the longitude in radians
+    private double[] x = new double[16], y = new double[16];
+    private int points;
+
+    private double cellSize;
+    private final HashMap<Long, Cell> cells = new HashMap<>();
+    private Cell large = new Cell();
+    // true if any segment reaches over the antimeridian
+    private boolean wraps;
+
+    private static class Cell {
+        private int[] segments = new int[4];
+        private int size;
+
+        private void add(int segment) {
+            if (size == segments.length) segments = Arrays.copyOf(segments, size * 2);
+            segments[size++] = segment;
+        }
+
+        /**
+         * Increases the index of all segments starting at or after the given
+         * index by one
+         */
+        private void shift(int index) {
+            for (int i = 0; i < size; i++) {
+                if (segments[i] >= index) segments[i]++;
+            }
+        }
+
+        private void remove(int segment) {
+            for (int i = 0; i < size; i++) {
+                if (segments[i] == segment) {
+                    segments[i] = segments[--size];
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param trace the trace to index, must be empty or followed by a call to
+     *              update()
+     */
+    SegmentIndex(final Trace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Rebuilds the whole index, must be called after any change to the trace
+     * which is not covered by the other methods
+     */
+    void update() {
+        int n = trace.size();
+        points = 0;
+        ensureCapacity(n);
+        for (int i = 0; i < n; i++) {
+            project(i);
+        }
+        points = n;
+        cells.clear();
+        large = new Cell();
+        wraps = false;
+        double sum = 0;
+        for (int i = 0; i < n - 1; i++) {
+            sum += Math.max(Math.abs(remainder(x[i + 1] - x[i])), Math.abs(y[i + 1] - y[i]));
+        }
+        // 0 until there is a segment to take the size from
+        cellSize = n > 1 ? Math.max(MIN_CELL_SIZE, sum / (n - 1)) : 0;
+        for (int i = 0; i < n - 1; i++) {
+            addSegment(i);
+        }
+    }
+
+    /**
+     * Must be called after a point was added to the end of the trace
+     */
+    void pointAdded() {
+        if (trace.size() != points + 1) {
+            update();
+            return;
+        }
+        ensureCapacity(points + 1);
+        project(points);
+        points++;
+        if (points == 2 && cellSize == 0) {
+            cellSize = Math.max(MIN_CELL_SIZE,
+                    Math.max(Math.abs(remainder(x[1] - x[0])), Math.abs(y[1] - y[0])));
+        }
+        if (points >= 2) addSegment(points - 2);
+        // the segments got a lot larger than the cells
+        if (large.size > MAX_CELLS_PER_SEGMENT && large.size > points / 4) update();
+    }
+
+    /**
+     * Must be called after a point was inserted into the trace. Only the
+     * segments next to the new point are added, the following segments just
+     * get their index increased by one.
+     *
+     * @param index the index of the new point
+     */
+    void pointInserted(int index) {
+        if (trace.size() != points + 1 || index < 0 || index > points || cellSize == 0) {
+            update();
+            return;
+        }
+        if (index == points) {
+            pointAdded();
+            return;
+        }
+        // the segment from the previous point to the point which is now after the new one
+        if (index > 0) removeSegment(index - 1);
+        ensureCapacity(points + 1);
+        System.arraycopy(x, index, x, index + 1, points - index);
+        System.arraycopy(y, index, y, index + 1, points - index);
+        project(index);
+        points++;
+        for (Cell cell : cells.values()) {
+            cell.shift(index);
+        }
+        large.shift(index);
+        if (index > 0) addSegment(index - 1);
+        addSegment(index);
+    }
+
+    /**
+     * Must be called after the last point of the trace was removed
+     */
+    void pointRemoved() {
+        if (trace.size() != points - 1) {
+            update();
+            return;
+        }
+        if (points >= 2) removeSegment(points - 2);
+        points--;
+    }
+
+    /**
+     * Must be called after the point at the given index was moved
+     *
+     * @param index the index of the moved point
+     */
+    void pointMoved(int index) {
+        if (trace.size() != points) {
+            update();
+            return;
+        }
+        if (index > 0) removeSegment(index - 1);
+        if (index < points - 1) removeSegment(index);
+        project(index);
+        if (index > 0) addSegment(index - 1);
+        if (index < points - 1) addSegment(index);
+    }
+
+    /**
+     * Returns the point of the trace closest to the given position
+     *
+     * @param p           the position
+     * @param maxDistance the maximum distance in the projection
+     * @return the index of the closest point or -1, if no point is within
+     * maxDistance
+     */
+    int nearestVertex(final LatLng p, double maxDistance) {
+        return nearest(p, maxDistance, true);
+    }
+
+    /**
+     * Returns the segment of the trace closest to the given position
+     *
+     * @param p           the position
+     * @param maxDistance the maximum distance in the projection
+     * @return the index of the closest segment, which goes from the point at
+     * this index to the next one, or -1, if no segment is within maxDistance
+     */
+    int nearestSegment(final LatLng p, double maxDistance) {
+        return nearest(p, maxDistance, false);
+    }
+
+    private int nearest(final LatLng p, double maxDistance, boolean vertex) {
+        if (points == 0) return -1;
+        double px = Math.toRadians(p.longitude);
+        double py = toY(p.latitude);
+        if (points == 1) {
+            if (!vertex) return -1;
+            return distance2(px, py, x[0], y[0]) <= maxDistance * maxDistance ? 0 : -1;
+        }
+        Result result = new Result(maxDistance * maxDistance);
+        search(px, py, maxDistance, vertex, result);
+        // also look on the other side of the antimeridian
+        if (wraps || px + maxDistance > Math.PI) {
+            search(px - 2 * Math.PI, py, maxDistance, vertex, result);
+        }
+        if (wraps || px - maxDistance < -Math.PI) {
+            search(px + 2 * Math.PI, py, maxDistance, vertex, result);
+        }
+        return result.index;
+    }
+
+    private static class Result {
+        private double distance2;
+        private int index = -1;
+
+        private Result(double maxDistance2) {
+            this.distance2 = maxDistance2;
+        }
+
+        private void offer(double distance2, int index) {
+            // prefer the lower index for equal distances, independent of the search order
+            if (distance2 < this.distance2 ||
+                    distance2 == this.distance2 && index < this.index) {
+                this.distance2 = distance2;
+                this.index = index;
+            }
+        }
+    }
+
+    private void search(double px, double py, double maxDistance, boolean vertex,
+                        final Result result) {
+        int x1 = cell(px - maxDistance), x2 = cell(px + maxDistance);
+        int y1 = cell(py - maxDistance), y2 = cell(py + maxDistance);
+        if (((long) x2 - x1 + 1) * ((long) y2 - y1 + 1) > Math.min(MAX_CELLS_PER_QUERY, cells.size())) {
+            for (int i = 0; i < points - 1; i++) {
+                test(i, px, py, vertex, result);
+            }
+            return;
+        }
+        for (int cx = x1; cx <= x2; cx++) {
+            for (int cy = y1; cy <= y2; cy++) {
+                Cell cell = cells.get(key(cx, cy));
+                if (cell == null) continue;
+                for (int i = 0; i < cell.size; i++) {
+                    test(cell.segments[i], px, py, vertex, result);
+                }
+            }
+        }
+        for (int i = 0; i < large.size; i++) {
+            test(large.segments[i], px, py, vertex, result);
+        }
+    }
+
+    private void test(int segment, double px, double py, boolean vertex, final Result result) {
+        double x1 = x[segment], y1 = y[segment];
+        double x2 = x1 + remainder(x[segment + 1] - x1), y2 = y[segment + 1];
+        if (vertex) {
+            result.offer(distance2(px, py, x1, y1), segment);
+            result.offer(distance2(px, py, x2, y2), segment + 1);
+        } else {
+            double dx = x2 - x1, dy = y2 - y1;
+            double length2 = dx * dx + dy * dy;
+            double t = length2 > 0 ? ((px - x1) * dx + (py - y1) * dy) / length2 : 0;
+            t = Math.max(0, Math.min(1, t));
+            result.offer(distance2(px, py, x1 + t * dx, y1 + t * dy), segment);
+        }
+    }
+
+    private static double distance2(double x1, double y1, double x2, double y2) {
+        double dx = x2 - x1, dy = y2 - y1;
+        return dx * dx + dy * dy;
+    }
+
+    private void addSegment(int segment) {
+        double x1 = x[segment], x2 = x1 + remainder(x[segment + 1] - x1);
+        if (Math.max(x1, x2) > Math.PI || Math.min(x1, x2) < -Math.PI) wraps = true;
+        double y1 = y[segment], y2 = y[segment + 1];
+        int cx1 = cell(Math.min(x1, x2)), cx2 = cell(Math.max(x1, x2));
+        int cy1 = cell(Math.min(y1, y2)), cy2 = cell(Math.max(y1, y2));
+        if (((long) cx2 - cx1 + 1) * ((long) cy2 - cy1 + 1) > MAX_CELLS_PER_SEGMENT) {
+            large.add(segment);
+            return;
+        }
+        for (int cx = cx1; cx <= cx2; cx++) {
+            for (int cy = cy1; cy <= cy2; cy++) {
+                Long key = key(cx, cy);
+                Cell cell = cells.get(key);
+                if (cell == null) {
+                    cell = new Cell();
+                    cells.put(key, cell);
+                }
+                cell.add(segment);
+            }
+        }
+    }
+
+    /**
+     * Removes the given segment, its points must not have been changed since
+     * it was added
+     */
+    private void removeSegment(int segment) {
+        double x1 = x[segment], x2 = x1 + remainder(x[segment + 1] - x1);
+        double y1 = y[segment], y2 = y[segment + 1];
+        int cx1 = cell(Math.min(x1, x2)), cx2 = cell(Math.max(x1, x2));
+        int cy1 = cell(Math.min(y1, y2)), cy2 = cell(Math.max(y1, y2));
+        if (((long) cx2 - cx1 + 1) * ((long) cy2 - cy1 + 1) > MAX_CELLS_PER_SEGMENT) {
+            large.remove(segment);
+            return;
+        }
+        for (int cx = cx1; cx <= cx2; cx++) {
+            for (int cy = cy1; cy <= cy2; cy++) {
+                Long key = key(cx, cy);
+                Cell cell = cells.get(key);
+                if (cell != null) {
+                    cell.remove(segment);
+                    if (cell.size == 0) cells.remove(key);
+                }
+            }
+        }
+    }
+
+    private int cell(double coordinate) {
+        return (int) Math.floor(coordinate / cellSize);
+    }
+
+    private static Long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+    private void project(int index) {
+        x[index] = Math.toRadians(trace.getLongitude(index));
+        y[index] = toY(trace.getLatitude(index));
+    }
+
+    private static double toY(double latitude) {
+        double sin = Math.sin(Math.toRadians(latitude));
+        return Math.max(-MAX_Y, Math.min(MAX_Y, 0.5 * Math.log((1 + sin) / (1 - sin))));
+    }
+
+    /**
+     * @return the given angle in radians wrapped to [-PI, PI)
+     */
+    private static double remainder(double angle) {
+        angle = (angle + Math.PI) % (2 * Math.PI);
+        if (angle < 0) angle += 2 * Math.PI;
+        return angle - Math.PI;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > x.length) {
+            int newCapacity = Math.max(capacity, x.length + (x.length >> 1));
+            x = Arrays.copyOf(x, newCapacity);
+            y = Arrays.copyOf(y, newCapacity);
+        }
+    }
+}
@@ -0,0 +1,610 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import android.os.Handler;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.Arrays;
+
+/**
+ * The points where the polygon of a trace crosses itself.
+ * <p/>
+ * The area of such a polygon is meaningless, so they are shown to the user
+ * in AREA mode. The edges are tested as they are drawn on the map: as
+ * straight lines in the Mercator projection. Only proper crossings are
+ * reported, edges which just touch or overlap are not.
+ * <p/>
+ * All edges of the trace are kept in a uniform grid, stored as a hash table
+ * from cell to the edges passing through it, and an edge is only tested
+ * against the edges in its cells. The cells are sized so that there are
+ * about as many of them within the bounding box of the trace as there are
+ * edges, so a test takes about constant time for traces of any shape -
+ * sorting the edges from west to east alone would not help for a trace which
+ * goes from north to south. The grid is built again with a new cell size
+ * whenever the number of edges doubled, or an edge would pass through too
+ * many cells.
+ * <p/>
+ * When a point is added or removed, only the changed edge and the closing
+ * edge are tested against the grid, so the polygon can be checked on every
+ * change even for long traces. A full update adds all edges one by one in
+ * the same way. Long traces should be updated with updateInBackground().
+ */
+class SelfIntersections {
+
+    // Mercator y of the latitude where the map ends
+    private final static double MAX_Y = Math.PI;
+    // a few centimeters, smaller cells would not separate any edges
+    private final static double MIN_CELL_SIZE = 1e-8;
+    // marks an unused slot of the hash table
+    private final static int FREE = -2;
+
+    private final Trace trace;
+
+    // the projected points, x is the longitude in radians unwrapped along the trace
+    private double[] x = new double[16], y = new double[16];
+    private int points;
+    // the bounding box of the points, only grows until the next full update
+    private double left, right, bottom, top;
+
+    // edge i goes from point i to point i + 1. The closing edge is not in the grid
+    private int edges;
+
+    // the grid: a hash table with open addressing from cell to the first
+    // entry of the list of edges in that cell, -1 if the list is empty
+    private double cellSize;
+    private long[] slotCell = new long[64];
+    private int[] slotHead = newSlots(64);
+    private int usedSlots;
+    // the entries of all lists, in the order the edges were added
+    private int[] entryEdge = new int[64], entryNext = new int[64];
+    private int entries;
+    // the first entry of every edge, so the last edge can be removed again
+    private int[] edgeEntries = new int[16];
+    // the number of edges the cell size was chosen for
+    private int gridEdges;
+    // the cells of an edge
+    private long[] cells = new long[16];
+
+    // the last query every edge was tested in, to test every edge only once per query
+    private int[] tested = new int[16];
+    private int query;
+
+    // crossings of the path without the closing edge, sorted by the higher edge
+    private int[] crossingEdge = new int[16];
+    private double[] crossingX = new double[16], crossingY = new double[16];
+    private int crossings;
+
+    // crossings of the closing edge, updated with every change
+    private double[] closingX = new double[4], closingY = new double[4];
+    private int closings;
+
+    // increased by every change, to drop the results of outdated background updates
+    private int generation;
+    private boolean pending;
+    private Handler handler;
+    private Runnable listener;
+
+    /**
+     * @param trace the trace to check, must be empty or followed by a call to
+     *              update()
+     */
+    SelfIntersections(final Trace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Must be called after a point was added to the end of the trace
+     */
+    void pointAdded() {
+        if (pending) {
+            updateInBackground(handler, listener);
+            return;
+        }
+        if (trace.size() != points + 1) {
+            update();
+            return;
+        }
+        addPoint(trace.getLatitude(points), trace.getLongitude(points));
+        if (points >= 2) addEdge(points - 2);
+        updateClosingEdge();
+    }
+
+    /**
+     * Must be called after the last point of the trace was removed
+     */
+    void pointRemoved() {
+        if (pending) {
+            updateInBackground(handler, listener);
+            return;
+        }
+        if (trace.size() != points - 1) {
+            update();
+            return;
+        }
+        points--;
+        if (points >= 1) {
+            int edge = points - 1;
+            removeEdge(edge);
+            while (crossings > 0 && crossingEdge[crossings - 1] == edge) {
+                crossings--;
+            }
+        }
+        updateClosingEdge();
+    }
+
+    /**
+     * Checks the whole trace again, must be called after any other change to
+     * the trace
+     */
+    void update() {
+        generation++;
+        pending = false;
+        build();
+    }
+
+    /**
+     * Checks the whole trace again in a background thread, must be called
+     * after any other change to the trace instead of update().
+     * <p/>
+     * Until the listener is called, the crossings from before the change are
+     * returned. If the trace is changed again in the meantime, the trace is
+     * checked again, also in the background.
+     *
+     * @param handler  the handler of the UI thread
+     * @param listener called on the UI thread once the crossings are up to date
+     */
+    void updateInBackground(final Handler handler, final Runnable listener) {
+        final int started = ++generation;
+        pending = true;
+        this.handler = handler;
+        this.listener = listener;
+        final SelfIntersections result = new SelfIntersections(trace.copy());
+        new Thread(() -> {
+            result.build();
+            handler.post(() -> {
+                if (started != generation) return; // outdated
+                pending = false;
+                adopt(result);
+                listener.run();
+            });
+        }).start();
+    }
+
+    /**
+     * Checks the whole trace
+     */
+    private void build() {
+        int n = trace.size();
+        points = 0;
+        ensurePointCapacity(n);
+        for (int i = 0; i < n; i++) {
+            addPoint(trace.getLatitude(i), trace.getLongitude(i));
+        }
+        // the bounding box is known already, so the grid does not have to grow
+        edges = 0;
+        crossings = 0;
+        ensureEdgeCapacity(n);
+        buildGrid(n - 1);
+        for (int edge = 0; edge < n - 1; edge++) {
+            addEdge(edge);
+        }
+        updateClosingEdge();
+    }
+
+    /**
+     * Takes over the state of another instance, which checked a copy of the
+     * trace
+     */
+    private void adopt(final SelfIntersections other) {
+        x = other.x;
+        y = other.y;
+        points = other.points;
+        left = other.left;
+        right = other.right;
+        bottom = other.bottom;
+        top = other.top;
+        edges = other.edges;
+        cellSize = other.cellSize;
+        slotCell = other.slotCell;
+        slotHead = other.slotHead;
+        usedSlots = other.usedSlots;
+        entryEdge = other.entryEdge;
+        entryNext = other.entryNext;
+        entries = other.entries;
+        edgeEntries = other.edgeEntries;
+        gridEdges = other.gridEdges;
+        tested = other.tested;
+        query = other.query;
+        crossingEdge = other.crossingEdge;
+        crossingX = other.crossingX;
+        crossingY = other.crossingY;
+        crossings = other.crossings;
+        closingX = other.closingX;
+        closingY = other.closingY;
+        closings = other.closings;
+    }
+
+    /**
+     * @return the number of crossings
+     */
+    int size() {
+        return crossings + closings;
+    }
+
+    /**
+     * @param index the index of the crossing, between 0 and size() - 1
+     * @return the position of the crossing
+     */
+    LatLng get(int index) {
+        if (index < crossings) return toLatLng(crossingX[index], crossingY[index]);
+        return toLatLng(closingX[index - crossings], closingY[index - crossings]);
+    }
+
+    /**
+     * Tests the given edge, whose points must be set already, against all
+     * edges before it and adds it to the grid
+     */
+    private void addEdge(int edge) {
+        ensureEdgeCapacity(edge + 1);
+        if (edge + 1 > 2 * gridEdges ||
+                cellCount(x[edge], y[edge], x[edge + 1], y[edge + 1]) > 2 * gridEdges + 16) {
+            buildGrid(edge + 1);
+        }
+        int first = crossings;
+        queryCrossings(x[edge], y[edge], x[edge + 1], y[edge + 1], edge - 1, edge - 1, true);
+        for (int i = first; i < crossings; i++) {
+            crossingEdge[i] = edge;
+        }
+        insertEdge(edge);
+    }
+
+    /**
+     * Adds the given edge, which must follow the last one, to the grid
+     */
+    private void insertEdge(int edge) {
+        edgeEntries[edge] = entries;
+        int count = rasterize(x[edge], y[edge], x[edge + 1], y[edge + 1]);
+        for (int i = 0; i < count; i++) {
+            int slot = findSlot(cells[i], true);
+            if (entries == entryEdge.length) {
+                entryEdge = Arrays.copyOf(entryEdge, entries * 2);
+                entryNext = Arrays.copyOf(entryNext, entries * 2);
+            }
+            entryEdge[entries] = edge;
+            entryNext[entries] = slotHead[slot];
+            slotHead[slot] = entries;
+            entries++;
+        }
+        edges = edge + 1;
+    }
+
+    /**
+     * Removes the given edge, which must be the last one, from the grid
+     */
+    private void removeEdge(int edge) {
+        // the entries of the last edge are the first ones in the lists of its cells
+        int count = rasterize(x[edge], y[edge], x[edge + 1], y[edge + 1]);
+        for (int i = 0; i < count; i++) {
+            int slot = findSlot(cells[i], false);
+            slotHead[slot] = entryNext[slotHead[slot]];
+        }
+        entries = edgeEntries[edge];
+        edges = edge;
+    }
+
+    /**
+     * Empties the grid and chooses a new cell size for the current bounding
+     * box, then adds all current edges to it again
+     *
+     * @param expectedEdges the number of edges to choose the cell size for
+     */
+    private void buildGrid(int expectedEdges) {
+        gridEdges = Math.max(1, expectedEdges);
+        double width = right - left, height = top - bottom;
+        // about one cell per edge, also if the trace is a thin line
+        cellSize = Math.max(MIN_CELL_SIZE, Math.max(Math.sqrt(width * height / gridEdges),
+                Math.max(width, height) / gridEdges));
+        int capacity = 64;
+        while (capacity < 4 * gridEdges) capacity *= 2;
+        slotCell = new long[capacity];
+        slotHead = newSlots(capacity);
+        usedSlots = 0;
+        int count = edges;
+        edges = 0;
+        entries = 0;
+        for (int edge = 0; edge < count; edge++) {
+            insertEdge(edge);
+        }
+    }
+
+    /**
+     * @param create true to add the cell to the hash table if it is not in it
+     * @return the slot of the given cell in the hash table, -1 if it is not in
+     * it and create is false
+     */
+    private int findSlot(long cell, boolean create) {
+        int mask = slotCell.length - 1;
+        int slot = hash(cell) & mask;
+        while (slotHead[slot] != FREE) {
+            if (slotCell[slot] == cell) return slot;
+            slot = (slot + 1) & mask;
+        }
+        if (!create) return -1;
+        if (2 * (usedSlots + 1) > slotCell.length) {
+            rehash();
+            return findSlot(cell, true);
+        }
+        slotCell[slot] = cell;
+        slotHead[slot] = -1;
+        usedSlots++;
+        return slot;
+    }
+
+    private void rehash() {
+        long[] oldCells = slotCell;
+        int[] oldHeads = slotHead;
+        slotCell = new long[oldCells.length * 2];
+        slotHead = newSlots(oldCells.length * 2);
+        for (int i = 0; i < oldCells.length; i++) {
+            if (oldHeads[i] != FREE) {
+                int mask = slotCell.length - 1;
+                int slot = hash(oldCells[i]) & mask;
+                while (slotHead[slot] != FREE) slot = (slot + 1) & mask;
+                slotCell[slot] = oldCells[i];
+                slotHead[slot] = oldHeads[i];
+            }
+        }
+    }
+
+    private static int hash(long cell) {
+        return (int) ((cell * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+
+    private static int[] newSlots(int capacity) {
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, FREE);
+        return slots;
+    }
+
+    /**
+     * @return an upper bound for the number of cells the given segment passes
+     * through
+     */
+    private long cellCount(double x1, double y1, double x2, double y2) {
+        return Math.abs(index(x2) - index(x1)) + Math.abs(index(y2) - index(y1)) + 1;
+    }
+
+    /**
+     * @return the column or row of the grid containing the given coordinate
+     */
+    private long index(double coordinate) {
+        return (long) Math.floor(coordinate / cellSize);
+    }
+
+    private static long cell(long column, long row) {
+        return column << 32 ^ row;
+    }
+
+    /**
+     * Puts the cells of the grid which the given segment passes through into
+     * cells, column by column
+     *
+     * @return the number of cells
+     */
+    private int rasterize(double x1, double y1, double x2, double y2) {
+        if (x1 > x2) {
+            double swap = x1;
+            x1 = x2;
+            x2 = swap;
+            swap = y1;
+            y1 = y2;
+            y2 = swap;
+        }
+        // so that rounding can not miss the cell of a crossing
+        double slack = cellSize * 1e-6;
+        long firstColumn = index(x1 - slack);
+        long lastColumn = index(x2 + slack);
+        int count = 0;
+        for (long column = firstColumn; column <= lastColumn; column++) {
+            double from = Math.min(x2, Math.max(x1, column * cellSize));
+            double to = Math.max(from, Math.min(x2, (column + 1) * cellSize));
+            double yFrom = y1, yTo = y2;
+            if (x2 > x1) {
+                yFrom = y1 + (y2 - y1) * ((from - x1) / (x2 - x1));
+                yTo = y1 + (y2 - y1) * ((to - x1) / (x2 - x1));
+            }
+            long firstRow = index(Math.min(yFrom, yTo) - slack);
+            long lastRow = index(Math.max(yFrom, yTo) + slack);
+            if (count + lastRow - firstRow + 1 > cells.length) {
+                cells = Arrays.copyOf(cells,
+                        (int) Math.max(count + lastRow - firstRow + 1, cells.length * 2));
+            }
+            for (long row = firstRow; row <= lastRow; row++) {
+                cells[count++] = cell(column, row);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Tests the edge from the last to the first point against the grid
+     */
+    private void updateClosingEdge() {
+        closings = 0;
+        if (points < 4) return; // a triangle can not cross itself
+        double x0 = x[0];
+        // the closing edge is drawn the short way around
+        while (x0 - x[points - 1] > Math.PI) x0 -= 2 * Math.PI;
+        while (x0 - x[points - 1] < -Math.PI) x0 += 2 * Math.PI;
+        queryCrossings(x[points - 1], y[points - 1], x0, y[0], 0, points - 2, false);
+    }
+
+    /**
+     * Tests the given segment against all edges in the grid and stores the
+     * found crossings
+     *
+     * @param skip1 an adjacent edge not to test against
+     * @param skip2 another adjacent edge not to test against
+     * @param path  true to store the crossings as path crossings, false to
+     *              store them as crossings of the closing edge
+     */
+    private void queryCrossings(double x1, double y1, double x2, double y2, int skip1, int skip2,
+                                boolean path) {
+        if (edges == 0) return;
+        double[] result = new double[2];
+        if (cellCount(x1, y1, x2, y2) > edges) {
+            // passes through more cells than there are edges
+            for (int b = 0; b < edges; b++) {
+                if (b != skip1 && b != skip2) test(x1, y1, x2, y2, b, path, result);
+            }
+            return;
+        }
+        if (++query == 0) { // wrapped around
+            Arrays.fill(tested, 0);
+            query = 1;
+        }
+        int count = rasterize(x1, y1, x2, y2);
+        for (int i = 0; i < count; i++) {
+            int slot = findSlot(cells[i], false);
+            if (slot < 0) continue;
+            for (int e = slotHead[slot]; e >= 0; e = entryNext[e]) {
+                int b = entryEdge[e];
+                if (b == skip1 || b == skip2 || tested[b] == query) continue;
+                tested[b] = query;
+                test(x1, y1, x2, y2, b, path, result);
+            }
+        }
+    }
+
+    /**
+     * Tests the given segment against the given edge and stores the crossing,
+     * if there is one
+     */
+    private void test(double x1, double y1, double x2, double y2, int b, boolean path,
+                      final double[] result) {
+        if (!intersect(x1, y1, x2, y2, x[b], y[b], x[b + 1], y[b + 1], result)) return;
+        if (path) {
+            ensureCrossingCapacity(crossings + 1);
+            crossingX[crossings] = result[0];
+            crossingY[crossings] = result[1];
+            crossings++;
+        } else {
+            if (closings == closingX.length) {
+                closingX = Arrays.copyOf(closingX, closings * 2);
+                closingY = Arrays.copyOf(closingY, closings * 2);
+            }
+            closingX[closings] = result[0];
+            closingY[closings] = result[1];
+            closings++;
+        }
+    }
+
+    /**
+     * Tests if the segment 1-2 properly crosses the segment 3-4
+     *
+     * @param result receives the x and y of the crossing
+     * @return true, if the segments cross
+     */
+    private static boolean intersect(double x1, double y1, double x2, double y2, double x3,
+                                     double y3, double x4, double y4, final double[] result) {
+        if (Math.max(y1, y2) < Math.min(y3, y4) || Math.max(y3, y4) < Math.min(y1, y2))
+            return false;
+        double d1 = orientation(x3, y3, x4, y4, x1, y1);
+        double d2 = orientation(x3, y3, x4, y4, x2, y2);
+        if (!(d1 > 0 && d2 < 0 || d1 < 0 && d2 > 0)) return false;
+        double d3 = orientation(x1, y1, x2, y2, x3, y3);
+        double d4 = orientation(x1, y1, x2, y2, x4, y4);
+        if (!(d3 > 0 && d4 < 0 || d3 < 0 && d4 > 0)) return false;
+        double t = d1 / (d1 - d2);
+        result[0] = x1 + t * (x2 - x1);
+        result[1] = y1 + t * (y2 - y1);
+        return true;
+    }
+
+    /**
+     * @return positive, if c is left of the line from a to b, negative if it is
+     * right of it and 0 if it is on it
+     */
+    private static double orientation(double ax, double ay, double bx, double by, double cx,
+                                      double cy) {
+        return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+    }
+
+    private void addPoint(double latitude, double longitude) {
+        ensurePointCapacity(points + 1);
+        double lngRad = Math.toRadians(longitude);
+        if (points > 0) {
+            // keep edges crossing the antimeridian continuous
+            double previous = x[points - 1];
+            lngRad = previous + remainder(lngRad - previous);
+        }
+        x[points] = lngRad;
+        double sin = Math.sin(Math.toRadians(latitude));
+        double mercator = 0.5 * Math.log((1 + sin) / (1 - sin));
+        y[points] = Math.max(-MAX_Y, Math.min(MAX_Y, mercator));
+        if (points == 0) {
+            left = right = x[0];
+            bottom = top = y[0];
+        } else {
+            left = Math.min(left, x[points]);
+            right = Math.max(right, x[points]);
+            bottom = Math.min(bottom, y[points]);
+            top = Math.max(top, y[points]);
+        }
+        points++;
+    }
+
+    /**
+     * @return the given angle in radians wrapped to [-PI, PI)
+     */
+    private static double remainder(double angle) {
+        angle = (angle + Math.PI) % (2 * Math.PI);
+        if (angle < 0) angle += 2 * Math.PI;
+        return angle - Math.PI;
+    }
+
+    private static LatLng toLatLng(double x, double y) {
+        return new LatLng(Math.toDegrees(Math.atan(Math.sinh(y))), Math.toDegrees(remainder(x)));
+    }
+
+    private void ensurePointCapacity(int capacity) {
+        if (capacity > x.length) {
+            int newCapacity = Math.max(capacity, x.length + (x.length >> 1));
+            x = Arrays.copyOf(x, newCapacity);
+            y = Arrays.copyOf(y, newCapacity);
+        }
+    }
+
+    private void ensureEdgeCapacity(int capacity) {
+        if (capacity > edgeEntries.length) {
+            int newCapacity = Math.max(capacity, edgeEntries.length + (edgeEntries.length >> 1));
+            edgeEntries = Arrays.copyOf(edgeEntries, newCapacity);
+            tested = Arrays.copyOf(tested, newCapacity);
+        }
+    }
+
+    private void ensureCrossingCapacity(int capacity) {
+        if (capacity > crossingEdge.length) {
+            int newCapacity = Math.max(capacity, crossingEdge.length + (crossingEdge.length >> 1));
+            crossingEdge = Arrays.copyOf(crossingEdge, newCapacity);
+            crossingX = Arrays.copyOf(crossingX, newCapacity);
+            crossingY = Arrays.copyOf(crossingY, newCapacity);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Provides shared traces to other apps without writing them to a file.
+ * <p/>
+ * share() keeps a snapshot of the trace in memory and returns a content Uri
+ * for it. When the receiving app opens the Uri, the trace is written in the
+ * chosen format, optionally gzip compressed, straight into a pipe while the
+ * other app reads from it. The last MAX_SHARES snapshots are kept, so a
+ * receiving app can read a Uri more than once - but not after the process of
+ * this app was killed.
+ */
+public class ShareProvider extends ContentProvider
+        implements ContentProvider.PipeDataWriter<ShareProvider.Share> {
+
+    final static String AUTHORITY = "de.j4velin.mapsmeasure.share";
+    private final static String GZIP_EXTENSION = ".gz";
+    private final static String GZIP_MIME_TYPE = "application/gzip";
+    private final static int MAX_SHARES = 4;
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    private final static LinkedHashMap<String, Share> shares =
+            new LinkedHashMap<String, Share>(MAX_SHARES + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Entry<String, Share> eldest) {
+                    return size() > MAX_SHARES;
+                }
+            };
+
+    /**
+     * A shared snapshot of a trace
+     */
+    static class Share {
+        private final Trace trace;
+        private final TraceFormat format;
+        private final boolean gzip;
+        private final String name;
+
+        private Share(final Trace trace, final TraceFormat format, boolean gzip) {
+            this.trace = trace;
+            this.format = format;
+            this.gzip = gzip;
+            this.name = "MapsMeasure" + format.extension + (gzip ? GZIP_EXTENSION : "");
+        }
+
+        private String getMimeType() {
+            return gzip ? GZIP_MIME_TYPE : format.mimeType;
+        }
+    }
+
+    /**
+     * Makes the given trace available to other apps
+     *
+     * @param snapshot the trace to share, must not be changed afterwards
+     * @param format   the format to provide the trace in, any text format
+     * @param gzip     true to compress the trace with gzip
+     * @return the content Uri of the trace
+     */
+    static Uri share(final Trace snapshot, final TraceFormat format, boolean gzip) {
+        String token = UUID.randomUUID().toString();
+        Share share = new Share(snapshot, format, gzip);
+        synchronized (shares) {
+            shares.put(token, share);
+        }
+        return new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT).authority(AUTHORITY)
+                .appendPath(token).appendPath(share.name).build();
+    }
+
+    /**
+     * @param uri a Uri returned by share()
+     * @return the share of the given Uri or null, if it is not (or no longer)
+     * available
+     */
+    private static Share getShare(final Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 2) return null;
+        synchronized (shares) {
+            return shares.get(segments.get(0));
+        }
+    }
+
+    /**
+     * @param uri a Uri returned by share()
+     * @return the MIME type of the shared trace, with gzip compression if
+     * that was chosen
+     */
+    static String getMimeType(final Uri uri) {
+        Share share = getShare(uri);
+        return share == null ? null : share.getMimeType();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public String getType(final Uri uri) {
+        return getMimeType(uri);
+    }
+
+    @Override
+    public Cursor query(final Uri uri, String[] projection, final String selection,
+                        final String[] selectionArgs, final String sortOrder) {
+        Share share = getShare(uri);
+        if (share == null) return null;
+        if (projection == null) {
+            projection = new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        Object[] row = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            // the size is unknown until the trace was written, so it stays null
+            if (OpenableColumns.DISPLAY_NAME.equals(projection[i])) row[i] = share.name;
+        }
+        cursor.addRow(row);
+        return cursor;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(final Uri uri, final String mode)
+            throws FileNotFoundException {
+        if (!"r".equals(mode)) throw new FileNotFoundException("Read only: " + uri);
+        Share share = getShare(uri);
+        if (share == null) throw new FileNotFoundException("No longer shared: " + uri);
+        return openPipeHelper(uri, share.getMimeType(), null, share, this);
+    }
+
+    @Override
+    public void writeDataToPipe(final ParcelFileDescriptor output, final Uri uri,
+                                final String mimeType, final Bundle opts, final Share share) {
+        try (OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(output)) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    share.gzip ? new GZIPOutputStream(out, BUFFER_SIZE) : out,
+                    StandardCharsets.UTF_8), BUFFER_SIZE);
+            TraceWriter.write(writer, share.trace, share.format, null);
+            // also writes the end of the gzip stream
+            writer.close();
+        } catch (IOException e) {
+            // for example if the receiving app closed the pipe before reading everything
+            if (BuildConfig.DEBUG) Logger.log(e);
+        }
+    }
+
+    @Override
+    public Uri insert(final Uri uri, final ContentValues values) {
+        throw new UnsupportedOperationException("Read only");
+    }
+
+    @Override
+    public int update(final Uri uri, final ContentValues values, final String selection,
+                      final String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read only");
+    }
+
+    @Override
+    public int delete(final Uri uri, final String selection, final String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read only");
+    }
+}
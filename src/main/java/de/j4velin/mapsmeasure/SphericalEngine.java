@@ -0,0 +1,43 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.mapsmeasure;
+
+import com.google.maps.android.SphericalUtil;
+
+/**
+ * Measures on a sphere with a fixed radius, using SphericalUtil.
+ * <p/>
+ * Compared to the WGS84 ellipsoid, distances are off by up to 0.5 % and areas
+ * by up to 1 %, depending on latitude and direction.
+ */
+class SphericalEngine implements MeasurementEngine {
+
+    @Override
+    public double computeDistance(double lat1, double lng1, double lat2, double lng2) {
+        return SphericalUtil.computeDistanceBetween(lat1, lng1, lat2, lng2);
+    }
+
+    @Override
+    public double computeSignedEdgeArea(double lat1, double lng1, double lat2, double lng2) {
+        return SphericalUtil.computeSignedEdgeArea(lat1, lng1, lat2, lng2);
+    }
+
+    @Override
+    public MeasurementEngine copy() {
+        // has no state
+        return this;
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * Copyright 2014 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.PolyUtil;
+import com.google.maps.android.SphericalUtil;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.EmptyStackException;
+import java.util.RandomAccess;
+
+/**
+ * The measured trace of points.
+ * <p/>
+ * Coordinates are stored in growable primitive arrays, so adding points does
+ * not create any objects. The trace can still be passed as a List&lt;LatLng&gt;
+ * (for example to SphericalUtil or PolyUtil), but every call to get() creates
+ * a new LatLng object - use getLatitude(int) and getLongitude(int) in loops
+ * over large traces.
+ * <p/>
+ * The length of every segment and its contribution to the enclosed area are
+ * kept in Fenwick trees, so the total length and area, the distance to any
+ * point and the position at any distance along the trace take O(log n) time
+ * and stay exact while points are added, moved and removed anywhere.
+ */
+class Trace extends AbstractList<LatLng> implements RandomAccess, Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final MeasurementEngine DEFAULT_ENGINE = new SphericalEngine();
+
+    private transient double[] lat;
+    private transient double[] lng;
+    // the length of the segment ending at point i, 0 for the first point
+    private transient FenwickTree lengths;
+    // the signed polar triangle area of the segment ending at point i, 0 for the first point
+    private transient FenwickTree areas;
+    private transient int size;
+    private transient MeasurementEngine engine = DEFAULT_ENGINE;
+
+    Trace() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the initial number of points this trace can hold without
+     *                 growing
+     */
+    Trace(int capacity) {
+        capacity = Math.max(capacity, 1);
+        lat = new double[capacity];
+        lng = new double[capacity];
+        lengths = new FenwickTree(capacity);
+        areas = new FenwickTree(capacity);
+    }
+
+    /**
+     * Adds a point to the end of the trace
+     *
+     * @param latitude  the latitude in degrees
+     * @param longitude the longitude in degrees
+     */
+    void push(double latitude, double longitude) {
+        ensureCapacity(size + 1);
+        lat[size] = latitude;
+        lng[size] = longitude;
+        size++;
+        lengths.add(segmentLength(size - 1));
+        areas.add(segmentArea(size - 1));
+    }
+
+    /**
+     * Adds a point to the end of the trace
+     *
+     * @param p the point to add
+     */
+    void push(final LatLng p) {
+        push(p.latitude, p.longitude);
+    }
+
+    /**
+     * Inserts a point at the given index, moving the point at that index and
+     * all following points back by one
+     *
+     * @param index     the index of the new point, between 0 and size()
+     * @param latitude  the latitude in degrees
+     * @param longitude the longitude in degrees
+     */
+    void insert(int index, double latitude, double longitude) {
+        if (index < 0 || index > size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        ensureCapacity(size + 1);
+        System.arraycopy(lat, index, lat, index + 1, size - index);
+        System.arraycopy(lng, index, lng, index + 1, size - index);
+        lat[index] = latitude;
+        lng[index] = longitude;
+        size++;
+        lengths.insert(index, segmentLength(index));
+        areas.insert(index, segmentArea(index));
+        updateSegment(index + 1);
+    }
+
+    /**
+     * Removes the point at the given index, moving all following points
+     * forward by one
+     *
+     * @param index the index of the point to remove
+     */
+    void removeAt(int index) {
+        checkIndex(index);
+        System.arraycopy(lat, index + 1, lat, index, size - index - 1);
+        System.arraycopy(lng, index + 1, lng, index, size - index - 1);
+        size--;
+        lengths.remove(index);
+        areas.remove(index);
+        updateSegment(index);
+    }
+
+    /**
+     * Moves the point at the given index
+     *
+     * @param index     the index of the point
+     * @param latitude  the new latitude in degrees
+     * @param longitude the new longitude in degrees
+     */
+    void set(int index, double latitude, double longitude) {
+        checkIndex(index);
+        lat[index] = latitude;
+        lng[index] = longitude;
+        updateSegment(index);
+        updateSegment(index + 1);
+    }
+
+    /**
+     * Removes the last point of the trace
+     *
+     * @throws EmptyStackException if the trace is empty
+     */
+    void removeLast() {
+        if (size == 0) throw new EmptyStackException();
+        size--;
+        lengths.removeLast();
+        areas.removeLast();
+    }
+
+    /**
+     * Removes and returns the last point of the trace
+     *
+     * @return the removed point
+     * @throws EmptyStackException if the trace is empty
+     */
+    LatLng pop() {
+        LatLng last = peek();
+        removeLast();
+        return last;
+    }
+
+    /**
+     * @return the last point of the trace
+     * @throws EmptyStackException if the trace is empty
+     */
+    LatLng peek() {
+        if (size == 0) throw new EmptyStackException();
+        return get(size - 1);
+    }
+
+    /**
+     * @param index the index of the point
+     * @return the latitude of the point at the given index in degrees
+     */
+    double getLatitude(int index) {
+        checkIndex(index);
+        return lat[index];
+    }
+
+    /**
+     * @param index the index of the point
+     * @return the longitude of the point at the given index in degrees
+     */
+    double getLongitude(int index) {
+        checkIndex(index);
+        return lng[index];
+    }
+
+    /**
+     * Returns the area of the trace, treated as a closed path.
+     * <p/>
+     * With the default engine, equals SphericalUtil.computeArea(trace), but
+     * runs in O(log n).
+     *
+     * @return the area in square meters
+     */
+    double getArea() {
+        if (size < 3) return 0;
+        return Math.abs(areas.sum(size) +
+                engine.computeSignedEdgeArea(lat[size - 1], lng[size - 1], lat[0], lng[0]));
+    }
+
+    /**
+     * Returns the length of the trace.
+     * <p/>
+     * With the default engine, equals SphericalUtil.computeLength(trace), but
+     * runs in O(log n).
+     *
+     * @return the length in meters
+     */
+    double getLength() {
+        return lengths.sum(size);
+    }
+
+    /**
+     * @param index the index of a point
+     * @return the distance along the trace from the first point to the point
+     * at the given index in meters
+     */
+    double getDistance(int index) {
+        checkIndex(index);
+        return lengths.sum(index + 1);
+    }
+
+    /**
+     * Returns the position at the given distance along the trace
+     *
+     * @param distance the distance from the first point in meters, is limited
+     *                 to the length of the trace
+     * @return the position
+     * @throws IndexOutOfBoundsException if the trace is empty
+     */
+    LatLng getPosition(double distance) {
+        int count = lengths.search(distance);
+        if (count <= 1) return get(0);
+        if (count > size) return get(size - 1);
+        // the position is on the segment ending at point count - 1
+        int end = count - 1;
+        double length = lengths.get(end);
+        double fraction = length > 0 ? (distance - lengths.sum(end)) / length : 0;
+        return SphericalUtil.interpolate(get(end - 1), get(end),
+                Math.max(0, Math.min(1, fraction)));
+    }
+
+    /**
+     * Returns a simplified copy of this trace with at most the given number of
+     * points, using the Visvalingam-Whyatt algorithm. The first and the last
+     * point are always kept.
+     *
+     * @param maxPoints the maximum number of points, at least 2
+     * @return the simplified trace, or this trace if it is small enough already
+     */
+    Trace simplify(int maxPoints) {
+        if (size <= maxPoints) return this;
+        double[] latRad = new double[size];
+        double[] lngRad = new double[size];
+        for (int i = 0; i < size; i++) {
+            latRad[i] = Math.toRadians(lat[i]);
+            lngRad[i] = Math.toRadians(lng[i]);
+        }
+        int[] kept = new int[size];
+        int count = PolyUtil.simplifyByArea(latRad, lngRad, size, 0, maxPoints, kept);
+        Trace result = new Trace(count);
+        for (int i = 0; i < count; i++) {
+            result.push(lat[kept[i]], lng[kept[i]]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a copy of this trace, which keeps all measurements without
+     * measuring any segment again. Used to hand a trace over to another
+     * thread, as the copy does not share its engine with this trace either.
+     *
+     * @return an independent copy of this trace
+     */
+    Trace copy() {
+        Trace copy = new Trace(size);
+        copy.copyFrom(this);
+        return copy;
+    }
+
+    /**
+     * Replaces all points of this trace with the points of the given trace,
+     * taking over its measurements and a copy of its engine
+     *
+     * @param other the trace to copy
+     */
+    void copyFrom(final Trace other) {
+        if (other == this) return;
+        ensureCapacity(other.size);
+        System.arraycopy(other.lat, 0, lat, 0, other.size);
+        System.arraycopy(other.lng, 0, lng, 0, other.size);
+        lengths.copyFrom(other.lengths);
+        areas.copyFrom(other.areas);
+        size = other.size;
+        engine = other.engine.copy();
+    }
+
+    /**
+     * @return the engine used to measure this trace
+     */
+    MeasurementEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Changes the engine used to measure this trace and measures all segments
+     * again. By default, the trace is measured with a SphericalEngine.
+     *
+     * @param engine the new engine
+     */
+    void setEngine(final MeasurementEngine engine) {
+        this.engine = engine;
+        lengths.clear();
+        areas.clear();
+        for (int i = 0; i < size; i++) {
+            lengths.add(segmentLength(i));
+            areas.add(segmentArea(i));
+        }
+    }
+
+    /**
+     * Makes sure the trace can hold at least the given number of points
+     * without growing its arrays again
+     *
+     * @param capacity the required capacity
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity > lat.length) {
+            int newCapacity = Math.max(capacity, lat.length + (lat.length >> 1));
+            lat = Arrays.copyOf(lat, newCapacity);
+            lng = Arrays.copyOf(lng, newCapacity);
+            lengths.ensureCapacity(newCapacity);
+            areas.ensureCapacity(newCapacity);
+        }
+    }
+
+    @Override
+    public LatLng get(int index) {
+        checkIndex(index);
+        return new LatLng(lat[index], lng[index]);
+    }
+
+    @Override
+    public boolean add(final LatLng p) {
+        push(p);
+        return true;
+    }
+
+    @Override
+    public void add(int index, final LatLng p) {
+        insert(index, p.latitude, p.longitude);
+    }
+
+    @Override
+    public LatLng remove(int index) {
+        LatLng removed = get(index);
+        removeAt(index);
+        return removed;
+    }
+
+    @Override
+    public LatLng set(int index, final LatLng p) {
+        LatLng previous = get(index);
+        set(index, p.latitude, p.longitude);
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+        lengths.clear();
+        areas.clear();
+    }
+
+    /**
+     * Updates the segment ending at the given point after one of its points
+     * was changed
+     */
+    private void updateSegment(int index) {
+        if (index < size) {
+            lengths.set(index, segmentLength(index));
+            areas.set(index, segmentArea(index));
+        }
+    }
+
+    private double segmentLength(int index) {
+        return index == 0 ? 0 : engine.computeDistance(lat[index - 1], lng[index - 1],
+                lat[index], lng[index]);
+    }
+
+    private double segmentArea(int index) {
+        return index == 0 ? 0 : engine.computeSignedEdgeArea(lat[index - 1], lng[index - 1],
+                lat[index], lng[index]);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeDouble(lat[i]);
+            out.writeDouble(lng[i]);
+        }
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        engine = DEFAULT_ENGINE;
+        int count = in.readInt();
+        lat = new double[Math.max(count, 1)];
+        lng = new double[Math.max(count, 1)];
+        lengths = new FenwickTree(count);
+        areas = new FenwickTree(count);
+        for (int i = 0; i < count; i++) {
+            push(in.readDouble(), in.readDouble());
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The file formats a trace can be read from and written to. The encoded
+ * polyline format can only be written.
+ */
+enum TraceFormat {
+
+    BINARY(BinaryTraceFormat.FILE_EXTENSION, "application/octet-stream"),
+    CSV(".csv", "text/comma-separated-values"),
+    GPX(".gpx", "application/gpx+xml"),
+    KML(".kml", "application/vnd.google-earth.kml+xml"),
+    GEOJSON(".geojson", "application/geo+json"),
+    POLYLINE(".txt", "text/plain");
+
+    // enough to skip an XML declaration and comments before the root element
+    private final static int DETECT_LENGTH = 1024;
+
+    final String extension;
+    final String mimeType;
+
+    TraceFormat(final String extension, final String mimeType) {
+        this.extension = extension;
+        this.mimeType = mimeType;
+    }
+
+    /**
+     * Creates a streaming parser for this format
+     *
+     * @param callback the callback to pass the points to
+     * @return the parser
+     * @throws IllegalStateException for the binary format, which is not text
+     *                               based, and the polyline format
+     */
+    TraceParser createParser(final PointCallback callback) {
+        switch (this) {
+            case CSV:
+                return new CsvTraceParser(callback);
+            case GPX:
+            case KML:
+                return new XmlTraceParser(callback);
+            case GEOJSON:
+                return new GeoJsonTraceParser(callback);
+            default:
+                throw new IllegalStateException(this + " has no text parser");
+        }
+    }
+
+    /**
+     * Detects the format of a file from its content, so that the file name and
+     * the MIME type of an intent do not matter.
+     *
+     * @param channel a file channel, its position is not changed
+     * @return the format of the file, CSV if it is none of the others
+     * @throws IOException
+     */
+    static TraceFormat detect(final FileChannel channel) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(DETECT_LENGTH);
+        long position = channel.position();
+        while (head.hasRemaining() && channel.read(head) >= 0) ;
+        channel.position(position);
+        head.flip();
+        return detect(head);
+    }
+
+    /**
+     * Detects the format of a stream from its content, without consuming any
+     * of it, so that streams which can not seek, like pipes, work as well.
+     *
+     * @param in a stream supporting mark and reset, like a BufferedInputStream
+     * @return the format of the stream, CSV if it is none of the others
+     * @throws IOException
+     */
+    static TraceFormat detect(final InputStream in) throws IOException {
+        byte[] head = new byte[DETECT_LENGTH];
+        int length = 0, read;
+        in.mark(DETECT_LENGTH);
+        try {
+            while (length < head.length &&
+                    (read = in.read(head, length, head.length - length)) >= 0) {
+                length += read;
+            }
+        } finally {
+            in.reset();
+        }
+        return detect(ByteBuffer.wrap(head, 0, length));
+    }
+
+    /**
+     * @param head the first bytes of a file
+     * @return the format of the file, CSV if it is none of the others
+     */
+    static TraceFormat detect(final ByteBuffer head) {
+        if (head.remaining() >= 4 && head.getInt(head.position()) == BinaryTraceFormat.MAGIC) {
+            return BINARY;
+        }
+        int i = head.position();
+        // skip a UTF-8 byte order mark and whitespace
+        if (head.remaining() >= 3 && (head.get(i) & 0xFF) == 0xEF) i += 3;
+        while (i < head.limit() && head.get(i) <= ' ' && head.get(i) >= 0) i++;
+        if (i == head.limit()) return CSV;
+        if (head.get(i) == '{') return GEOJSON;
+        if (head.get(i) != '<') return CSV;
+        for (; i + 4 <= head.limit(); i++) {
+            // the root element, possibly with a namespace prefix
+            if (head.get(i) == '<' || head.get(i) == ':') {
+                if (head.get(i + 1) == 'k' && head.get(i + 2) == 'm' && head.get(i + 3) == 'l') {
+                    return KML;
+                } else if (head.get(i + 1) == 'g' && head.get(i + 2) == 'p' &&
+                        head.get(i + 3) == 'x') {
+                    return GPX;
+                }
+            }
+        }
+        // the parser is the same anyway
+        return GPX;
+    }
+}
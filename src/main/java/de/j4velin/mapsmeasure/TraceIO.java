@@ -0,0 +1,449 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import android.app.Activity;
+import android.app.Application;
+import android.app.ProgressDialog;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.OpenableColumns;
+import android.widget.Toast;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Reads and writes trace files in all formats of TraceFormat. The format of
+ * a file to read is detected from its content.
+ * <p/>
+ * Files are always written to a temporary file in the same directory first,
+ * which then replaces the destination by renaming it - so a crash or a full
+ * disk never leaves a truncated trace behind.
+ * <p/>
+ * Long operations run through run(), which executes them in a background
+ * thread, shows a cancellable progress dialog if they take longer than
+ * PROGRESS_DELAY and hands the result back to the UI thread in one piece.
+ */
+abstract class TraceIO {
+
+    final static String TEMP_SUFFIX = ".tmp";
+    private final static long PROGRESS_DELAY = 300;
+    private final static long PROGRESS_INTERVAL = 100;
+    // number of points between two checks for cancellation while reading or writing
+    private final static int CHECK_INTERVAL = 1 << 14;
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The work to do in the background
+     */
+    interface Job<T> {
+        /**
+         * @param task the task to report the progress to and to check for
+         *             cancellation
+         * @return the result, which is passed to the Callback
+         */
+        T run(Task task) throws IOException;
+    }
+
+    /**
+     * Receives the result of a Job on the UI thread. Not called if the job
+     * failed or was cancelled.
+     */
+    interface Callback<T> {
+        void onDone(T result);
+    }
+
+    /**
+     * A running job, which can be cancelled
+     */
+    static class Task {
+        private volatile boolean cancelled, finished;
+        private volatile long progress, total;
+
+        /**
+         * Stops the job as soon as possible. Its callback is not called
+         * afterwards.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * @return true, if the result of the job was handled - passed to the
+         * callback, shown as an error or dropped
+         */
+        boolean isFinished() {
+            return finished;
+        }
+
+        /**
+         * @param progress the amount of work done so far
+         * @param total    the total amount of work, or 0 if unknown
+         * @throws CancellationException if the task was cancelled
+         */
+        void setProgress(long progress, long total) {
+            if (cancelled) throw new CancellationException();
+            this.progress = progress;
+            this.total = total;
+        }
+
+        /**
+         * @return the progress between 0 and 100, or -1 if unknown
+         */
+        int getPercent() {
+            long total = this.total;
+            return total > 0 ? (int) Math.min(100, progress * 100 / total) : -1;
+        }
+    }
+
+    /**
+     * Runs the given job in a background thread.
+     * <p/>
+     * If the activity is destroyed in the meantime, for example because it is
+     * recreated after a rotation, the progress dialog is dismissed and the
+     * result is dropped - the job itself keeps running unless it is cancelled.
+     *
+     * @param a        the activity to show the progress and errors in
+     * @param message  the message of the progress dialog
+     * @param job      the job to run
+     * @param callback receives the result on the UI thread
+     * @return the task, to cancel the job
+     */
+    static <T> Task run(final Activity a, int message, final Job<T> job,
+                        final Callback<T> callback) {
+        final Task task = new Task();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        final ProgressDialog progress = new ProgressDialog(a);
+        progress.setMessage(a.getString(message));
+        progress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        progress.setMax(100);
+        progress.setCanceledOnTouchOutside(false);
+        progress.setOnCancelListener(dialog -> task.cancel());
+        progress.setButton(ProgressDialog.BUTTON_NEGATIVE, a.getString(android.R.string.cancel),
+                (dialog, which) -> task.cancel());
+        final boolean[] finished = {false};
+        final Runnable updateProgress = new Runnable() {
+            @Override
+            public void run() {
+                if (finished[0] || task.isCancelled() || a.isFinishing() || a.isDestroyed())
+                    return;
+                int percent = task.getPercent();
+                progress.setIndeterminate(percent < 0);
+                if (percent >= 0) progress.setProgress(percent);
+                if (!progress.isShowing()) progress.show();
+                handler.postDelayed(this, PROGRESS_INTERVAL);
+            }
+        };
+        handler.postDelayed(updateProgress, PROGRESS_DELAY);
+        final Application.ActivityLifecycleCallbacks destroyed = new DestroyListener(a) {
+            @Override
+            void onDestroyed() {
+                // a dialog which is still showing would leak the activity's window
+                finished[0] = true;
+                handler.removeCallbacks(updateProgress);
+                progress.dismiss();
+            }
+        };
+        a.getApplication().registerActivityLifecycleCallbacks(destroyed);
+        new Thread(() -> {
+            T result = null;
+            Exception error = null;
+            try {
+                result = job.run(task);
+            } catch (CancellationException e) {
+                if (BuildConfig.DEBUG) Logger.log("trace io cancelled");
+            } catch (IOException | RuntimeException e) {
+                if (BuildConfig.DEBUG) Logger.log(e);
+                error = e;
+            }
+            final T r = result;
+            final Exception e = error;
+            handler.post(() -> {
+                a.getApplication().unregisterActivityLifecycleCallbacks(destroyed);
+                task.finished = true;
+                if (a.isDestroyed()) return;
+                finished[0] = true;
+                handler.removeCallbacks(updateProgress);
+                if (progress.isShowing()) progress.dismiss();
+                if (task.isCancelled() || a.isFinishing()) return;
+                if (e != null) {
+                    Toast.makeText(a, a.getString(R.string.error,
+                                    e.getClass().getSimpleName() + "\n" + e.getMessage()),
+                            Toast.LENGTH_LONG).show();
+                } else {
+                    callback.onDone(r);
+                }
+            });
+        }).start();
+        return task;
+    }
+
+    /**
+     * Reads a trace from the provided file, which can be in any of the
+     * formats of TraceFormat.
+     * <p/>
+     * Might take a while for large files and should therefore not be called
+     * on the UI thread.
+     *
+     * @param f    the file to read from
+     * @param c    the Context
+     * @param task the task to report the progress to, or null
+     * @return the trace read from the file
+     * @throws IOException
+     * @throws CancellationException if the task was cancelled
+     */
+    static Trace read(final Uri f, final Context c, final Task task) throws IOException {
+        if (ContentResolver.SCHEME_FILE.equals(f.getScheme()) && f.getPath() != null) {
+            try (MappedTraceReader reader = new MappedTraceReader(new File(f.getPath()))) {
+                final Trace trace = new Trace();
+                if (reader.isBinary()) trace.ensureCapacity(reader.count());
+                reader.forEach((latitude, longitude) -> {
+                    trace.push(latitude, longitude);
+                    if (task != null && trace.size() % CHECK_INTERVAL == 0) {
+                        task.setProgress(reader.getPosition(), reader.size());
+                    }
+                });
+                return trace;
+            }
+        }
+        // content Uris might be pipes, like the ones of our own ShareProvider,
+        // so they are read as a stream instead of mapping or seeking a file
+        InputStream stream = c.getContentResolver().openInputStream(f);
+        if (stream == null) throw new IOException("Can not open " + f);
+        try (InputStream in = new BufferedInputStream(stream, BUFFER_SIZE)) {
+            TraceFormat format = TraceFormat.detect(in);
+            InputStream source =
+                    task == null ? in : new ProgressInputStream(in, task, getSize(c, f));
+            if (format == TraceFormat.BINARY) {
+                return BinaryTraceFormat.read(Channels.newChannel(source));
+            }
+            final Trace trace = new Trace();
+            TraceParser parser = format.createParser(trace::push);
+            parser.parse(source);
+            if (BuildConfig.DEBUG && parser instanceof CsvTraceParser &&
+                    ((CsvTraceParser) parser).getMalformedLines() > 0)
+                Logger.log(((CsvTraceParser) parser).getMalformedLines() +
+                        " malformed lines in " + f);
+            return trace;
+        }
+    }
+
+    /**
+     * @param c the Context
+     * @param f a content Uri
+     * @return the size of the content in bytes, or -1 if it is unknown
+     */
+    private static long getSize(final Context c, final Uri f) {
+        try (Cursor cursor = c.getContentResolver()
+                .query(f, new String[]{OpenableColumns.SIZE}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+        } catch (RuntimeException e) {
+            // some providers do not support queries
+            if (BuildConfig.DEBUG) Logger.log(e);
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the given trace to the given file, replacing the file only once
+     * the trace was written completely
+     *
+     * @param f      the file to write to
+     * @param trace  the trace to write, must not be changed while writing
+     * @param format the format to write
+     * @param task   the task to report the progress to, or null
+     * @throws IOException
+     * @throws CancellationException if the task was cancelled
+     */
+    static void write(final File f, final Trace trace, final TraceFormat format,
+                      final Task task) throws IOException {
+        File tmp = new File(f.getPath() + TEMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            if (format == TraceFormat.BINARY) {
+                FileChannel channel = out.getChannel();
+                BinaryTraceFormat.write(task == null ? channel :
+                        new ProgressChannel(channel, task, BinaryTraceFormat.getSize(trace)), trace);
+            } else {
+                Writer writer = new BufferedWriter(
+                        new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+                TraceWriter.write(writer, trace, format, task);
+                writer.flush();
+            }
+            out.getFD().sync();
+        } catch (IOException | RuntimeException e) {
+            tmp.delete();
+            throw e;
+        }
+        replace(tmp, f);
+    }
+
+    private static void replace(final File tmp, final File f) throws IOException {
+        if (!tmp.renameTo(f)) {
+            tmp.delete();
+            throw new IOException("Can not write " + f);
+        }
+    }
+
+    /**
+     * Calls onDestroyed() once the given activity is destroyed
+     */
+    private abstract static class DestroyListener
+            implements Application.ActivityLifecycleCallbacks {
+        private final Activity activity;
+
+        private DestroyListener(final Activity activity) {
+            this.activity = activity;
+        }
+
+        abstract void onDestroyed();
+
+        @Override
+        public void onActivityDestroyed(final Activity a) {
+            if (a == activity) onDestroyed();
+        }
+
+        @Override
+        public void onActivityCreated(final Activity a, final Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityStarted(final Activity a) {
+        }
+
+        @Override
+        public void onActivityResumed(final Activity a) {
+        }
+
+        @Override
+        public void onActivityPaused(final Activity a) {
+        }
+
+        @Override
+        public void onActivityStopped(final Activity a) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(final Activity a, final Bundle outState) {
+        }
+    }
+
+    /**
+     * Passes all data through from another stream and reports the number of
+     * bytes read to a task - which also makes any read fail once the task was
+     * cancelled
+     */
+    private static class ProgressInputStream extends FilterInputStream {
+        private final Task task;
+        private final long total;
+        private long position;
+
+        private ProgressInputStream(final InputStream in, final Task task, long total) {
+            super(in);
+            this.task = task;
+            this.total = total;
+        }
+
+        @Override
+        public int read() throws IOException {
+            task.setProgress(position, total);
+            int read = super.read();
+            if (read >= 0) position++;
+            return read;
+        }
+
+        @Override
+        public int read(final byte[] b, int off, int len) throws IOException {
+            task.setProgress(position, total);
+            int read = super.read(b, off, len);
+            if (read > 0) position += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Passes all data through to another channel and reports the number of
+     * bytes written to a task - which also makes any write fail once the task
+     * was cancelled
+     */
+    private static class ProgressChannel implements WritableByteChannel {
+        private final FileChannel channel;
+        private final Task task;
+        private final long total;
+        private long position;
+
+        private ProgressChannel(final FileChannel channel, final Task task, long total) {
+            this.channel = channel;
+            this.task = task;
+            this.total = total;
+        }
+
+        @Override
+        public int write(final ByteBuffer src) throws IOException {
+            task.setProgress(position, total);
+            int written = channel.write(src);
+            position += written;
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
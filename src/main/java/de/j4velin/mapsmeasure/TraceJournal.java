@@ -0,0 +1,524 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Append-only journal of the edits to the trace of the map, so that the trace
+ * can be restored after the activity was recreated, the process was killed or
+ * crashed, or the app was left and started again, without putting all of its
+ * points into the saved instance state.
+ * <p/>
+ * Every journal consists of two files: a snapshot of the whole trace and the
+ * edits made since then (adding, inserting, moving and removing the last
+ * point), each as a small fixed size record. Replacing the whole trace - by
+ * clearing it or loading a file - writes a new snapshot instead, and so does
+ * a compaction once the journal has grown larger than the snapshot. Both
+ * files carry the generation of the snapshot, so an outdated journal is never
+ * replayed on a newer snapshot.
+ * <p/>
+ * All files are written in a single background thread, in the order the edits
+ * were made, and synced once that thread has caught up with the edits.
+ * Snapshots are written to a temporary file first and a torn record at the end
+ * of the journal is cut off when it is restored, so a crash at any time leaves
+ * a consistent trace behind.
+ * <p/>
+ * Only the instance which opened a journal last may write to its files: an
+ * instance of a destroyed activity can not overwrite the edits of the
+ * recreated one, even though both use the same id.
+ */
+class TraceJournal {
+
+    private final static String DIRECTORY = "journal";
+    private final static String SNAPSHOT_SUFFIX = ".snapshot";
+    private final static String JOURNAL_SUFFIX = ".journal";
+    private final static int SNAPSHOT_MAGIC = 0x4D4D5453; // "MMTS"
+    private final static int JOURNAL_MAGIC = 0x4D4D544A; // "MMTJ"
+    private final static byte VERSION = 1;
+    // magic, version and generation, followed by the number of points in a snapshot
+    private final static int HEADER_SIZE = 13;
+    private final static int POINT_SIZE = 16;
+
+    private final static byte ADD = 1;
+    private final static byte INSERT = 2;
+    private final static byte SET = 3;
+    private final static byte REMOVE_LAST = 4;
+    private final static int MAX_RECORD_SIZE = 1 + 4 + POINT_SIZE;
+
+    // never compact more often than every that many edits
+    private final static int MIN_COMPACT_RECORDS = 4096;
+    // journals not used for that long belong to activities which will never be restored
+    private final static long MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+    private final static int BUFFER_SIZE = 64 * 1024;
+    // the id of the journal of the last trace, to restore it when the app is started again
+    private final static String PREF_LAST_JOURNAL = "journal";
+
+    // shared by all journals, so that an activity which is recreated reads
+    // the journal only after its previous instance wrote all of its edits
+    private final static ExecutorService writer = Executors.newSingleThreadExecutor();
+    // the instance allowed to write the files of each id, only accessed in the writer thread
+    private final static HashMap<String, TraceJournal> owners = new HashMap<>();
+
+    private final String id;
+    private final File snapshotFile, journalFile;
+    // records not written yet, so that only the last one of a burst syncs the journal
+    private final AtomicInteger pending = new AtomicInteger();
+
+    // only accessed on the UI thread
+    private int records; // edits since the last snapshot
+    private boolean restoring, closed;
+    // edits made while restoring, applied to the restored trace afterwards
+    private Trace queuedSnapshot;
+    private ByteBuffer queued = ByteBuffer.allocate(16 * MAX_RECORD_SIZE);
+
+    // only accessed in the writer thread
+    private FileChannel journal;
+    private long generation;
+    private final ByteBuffer record = ByteBuffer.allocate(MAX_RECORD_SIZE);
+
+    /**
+     * Prepares the restored trace in the background, before it is passed to
+     * the UI thread
+     */
+    interface Preparation {
+        void prepare(Trace trace);
+    }
+
+    TraceJournal(final File dir, final String id) {
+        this.id = id;
+        snapshotFile = new File(dir, id + SNAPSHOT_SUFFIX);
+        journalFile = new File(dir, id + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Creates a new, empty journal and deletes all journals which have not
+     * been used for a long time
+     *
+     * @param c the Context
+     * @return the new journal
+     */
+    static TraceJournal create(final Context c) {
+        final TraceJournal j =
+                new TraceJournal(getDirectory(c), UUID.randomUUID().toString());
+        setLastId(c, j.id);
+        writer.execute(() -> {
+            owners.put(j.id, j);
+            File[] files = j.snapshotFile.getParentFile().listFiles();
+            if (files != null) {
+                long now = System.currentTimeMillis();
+                for (File f : files) {
+                    if (now - f.lastModified() > MAX_AGE) f.delete();
+                }
+            }
+            j.writeSnapshot(new Trace());
+        });
+        return j;
+    }
+
+    /**
+     * Opens an existing journal. Its trace has to be read with restore()
+     * before any further edits are recorded.
+     *
+     * @param c  the Context
+     * @param id the id of the journal, as returned by getId() or getLastId()
+     * @return the journal
+     */
+    static TraceJournal open(final Context c, final String id) {
+        setLastId(c, id);
+        return new TraceJournal(getDirectory(c), id);
+    }
+
+    /**
+     * @param c the Context
+     * @return the id of the journal created or opened last, or null if its
+     * files do not exist anymore
+     */
+    static String getLastId(final Context c) {
+        String id = c.getSharedPreferences("settings", Context.MODE_PRIVATE)
+                .getString(PREF_LAST_JOURNAL, null);
+        return id != null && new File(getDirectory(c), id + SNAPSHOT_SUFFIX).exists() ? id :
+                null;
+    }
+
+    private static void setLastId(final Context c, final String id) {
+        c.getSharedPreferences("settings", Context.MODE_PRIVATE).edit()
+                .putString(PREF_LAST_JOURNAL, id).apply();
+    }
+
+    private static File getDirectory(final Context c) {
+        return new File(c.getFilesDir(), DIRECTORY);
+    }
+
+    /**
+     * @return the id of this journal, to store in the saved instance state
+     */
+    String getId() {
+        return id;
+    }
+
+    /**
+     * Reads the snapshot and replays all edits since then in the background
+     * and passes the resulting trace to the callback on the UI thread. If the
+     * files are missing or invalid, the trace is empty.
+     * <p/>
+     * The restored trace replaces the trace shown until then. Edits recorded
+     * before the callback is called are applied to the restored trace first,
+     * as far as they fit it: points added are appended, but a point inserted
+     * or moved at an index the restored trace does not have is skipped.
+     *
+     * @param ui       the Executor of the UI thread
+     * @param prepare  called in the background with the restored trace
+     * @param callback the callback to receive the trace
+     */
+    void restore(final Executor ui, final Preparation prepare,
+                 final TraceIO.Callback<Trace> callback) {
+        restoring = true;
+        writer.execute(() -> {
+            owners.put(id, this);
+            Trace trace = new Trace();
+            int replayed = 0;
+            try {
+                generation = readSnapshot(trace);
+                replayed = replay(trace);
+            } catch (IOException e) {
+                if (BuildConfig.DEBUG) Logger.log(e);
+                trace.clear();
+                replayed = -1;
+            }
+            if (replayed < 0) {
+                // no usable journal for this snapshot
+                writeSnapshot(trace);
+                replayed = 0;
+            }
+            prepare.prepare(trace);
+            final Trace result = trace;
+            final int count = replayed;
+            ui.execute(() -> {
+                restoring = false;
+                records = count;
+                if (queuedSnapshot != null || queued.position() > 0) {
+                    if (queuedSnapshot != null) {
+                        result.clear();
+                        result.ensureCapacity(queuedSnapshot.size());
+                        for (int i = 0; i < queuedSnapshot.size(); i++) {
+                            result.push(queuedSnapshot.getLatitude(i),
+                                    queuedSnapshot.getLongitude(i));
+                        }
+                    }
+                    queued.flip();
+                    while (queued.hasRemaining()) {
+                        // the records are complete, so an invalid one is skipped entirely
+                        apply(result, queued);
+                    }
+                    replaced(result);
+                    queuedSnapshot = null;
+                    queued.clear();
+                }
+                callback.onDone(result);
+            });
+        });
+    }
+
+    /**
+     * Records that a point was added to the end of the trace
+     *
+     * @param trace the trace after the edit
+     */
+    void pointAdded(final Trace trace) {
+        int index = trace.size() - 1;
+        append(trace, ADD, -1, trace.getLatitude(index), trace.getLongitude(index));
+    }
+
+    /**
+     * Records that a point was inserted into the trace
+     *
+     * @param trace the trace after the edit
+     * @param index the index of the new point
+     */
+    void pointInserted(final Trace trace, int index) {
+        append(trace, INSERT, index, trace.getLatitude(index), trace.getLongitude(index));
+    }
+
+    /**
+     * Records that a point of the trace was moved
+     *
+     * @param trace the trace after the edit
+     * @param index the index of the moved point
+     */
+    void pointMoved(final Trace trace, int index) {
+        append(trace, SET, index, trace.getLatitude(index), trace.getLongitude(index));
+    }
+
+    /**
+     * Records that the last point of the trace was removed
+     *
+     * @param trace the trace after the edit
+     */
+    void pointRemoved(final Trace trace) {
+        append(trace, REMOVE_LAST, -1, 0, 0);
+    }
+
+    /**
+     * Records that the whole trace was replaced, for example because it was
+     * cleared or a file was loaded, by writing a new snapshot
+     *
+     * @param trace the trace after the edit
+     */
+    void replaced(final Trace trace) {
+        if (closed) return;
+        final Trace snapshot = trace.copy();
+        if (restoring) {
+            // replaces all edits queued before
+            queuedSnapshot = snapshot;
+            queued.clear();
+            return;
+        }
+        records = 0;
+        execute(() -> writeSnapshot(snapshot));
+    }
+
+    /**
+     * Closes the journal once all edits are written. Its files are kept, so
+     * that the trace can be restored when the app is started again. Edits
+     * recorded afterwards are ignored.
+     */
+    void close() {
+        if (closed) return;
+        closed = true;
+        execute(() -> {
+            closeJournal();
+            owners.remove(id);
+        });
+    }
+
+    private void append(final Trace trace, final byte op, final int index,
+                        final double latitude, final double longitude) {
+        if (closed) return;
+        if (restoring) {
+            if (queued.remaining() < MAX_RECORD_SIZE) {
+                ByteBuffer larger = ByteBuffer.allocate(queued.capacity() * 2);
+                queued.flip();
+                queued = larger.put(queued);
+            }
+            encode(queued, op, index, latitude, longitude);
+            return;
+        }
+        if (++records >= Math.max(MIN_COMPACT_RECORDS, trace.size())) {
+            // the journal is now larger than a snapshot would be
+            replaced(trace);
+            return;
+        }
+        pending.incrementAndGet();
+        execute(() -> {
+            boolean last = pending.decrementAndGet() == 0;
+            if (journal == null) return; // failed before, the next snapshot starts a new one
+            record.clear();
+            encode(record, op, index, latitude, longitude);
+            record.flip();
+            try {
+                while (record.hasRemaining()) {
+                    journal.write(record);
+                }
+                // no further edits are waiting, sync all records written since the last time
+                if (last) journal.force(false);
+            } catch (IOException e) {
+                if (BuildConfig.DEBUG) Logger.log(e);
+                closeJournal();
+            }
+        });
+    }
+
+    /**
+     * Runs the given task in the writer thread, unless another instance has
+     * opened the journal in the meantime
+     */
+    private void execute(final Runnable task) {
+        writer.execute(() -> {
+            if (owners.get(id) == this) task.run();
+        });
+    }
+
+    private static void encode(final ByteBuffer buffer, final byte op, final int index,
+                               final double latitude, final double longitude) {
+        buffer.put(op);
+        if (op == INSERT || op == SET) buffer.putInt(index);
+        if (op != REMOVE_LAST) buffer.putDouble(latitude).putDouble(longitude);
+    }
+
+    /**
+     * Writes a snapshot of the given trace with a new generation and starts
+     * an empty journal for it. Called in the writer thread.
+     */
+    private void writeSnapshot(final Trace trace) {
+        closeJournal();
+        long newGeneration = generation + 1;
+        File tmp = new File(snapshotFile.getPath() + TraceIO.TEMP_SUFFIX);
+        try {
+            snapshotFile.getParentFile().mkdirs();
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                FileChannel channel = out.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                buffer.putInt(SNAPSHOT_MAGIC).put(VERSION).putLong(newGeneration)
+                        .putInt(trace.size());
+                for (int i = 0; i < trace.size(); i++) {
+                    if (buffer.remaining() < POINT_SIZE) flush(channel, buffer);
+                    buffer.putDouble(trace.getLatitude(i)).putDouble(trace.getLongitude(i));
+                }
+                flush(channel, buffer);
+                out.getFD().sync();
+            }
+            if (!tmp.renameTo(snapshotFile)) throw new IOException("Can not write " + snapshotFile);
+            generation = newGeneration;
+            // an old journal left behind by a crash here does not match the new generation
+            journal = new RandomAccessFile(journalFile, "rw").getChannel();
+            journal.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(JOURNAL_MAGIC).put(VERSION).putLong(generation);
+            flush(journal, header);
+        } catch (IOException e) {
+            if (BuildConfig.DEBUG) Logger.log(e);
+            tmp.delete();
+            closeJournal();
+        }
+    }
+
+    /**
+     * Reads the snapshot into the given, empty trace
+     *
+     * @return the generation of the snapshot
+     */
+    private long readSnapshot(final Trace trace) throws IOException {
+        try (FileInputStream in = new FileInputStream(snapshotFile)) {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_SIZE + 4 || buffer.getInt() != SNAPSHOT_MAGIC ||
+                    buffer.get() != VERSION) throw new IOException("Invalid snapshot");
+            long snapshotGeneration = buffer.getLong();
+            int count = buffer.getInt();
+            if (count < 0 || (long) count * POINT_SIZE > buffer.remaining())
+                throw new IOException("Truncated snapshot");
+            trace.ensureCapacity(count);
+            for (int i = 0; i < count; i++) {
+                trace.push(buffer.getDouble(), buffer.getDouble());
+            }
+            return snapshotGeneration;
+        }
+    }
+
+    /**
+     * Applies all valid records of the journal to the given trace and opens
+     * the journal for appending, after cutting off anything invalid at its end
+     *
+     * @return the number of records applied, or -1 if the journal does not
+     * belong to the current snapshot
+     */
+    private int replay(final Trace trace) throws IOException {
+        if (!journalFile.exists()) return -1;
+        FileChannel channel = new RandomAccessFile(journalFile, "rw").getChannel();
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != JOURNAL_MAGIC ||
+                    buffer.get() != VERSION || buffer.getLong() != generation) {
+                channel.close();
+                return -1;
+            }
+            int count = 0;
+            int valid = buffer.position();
+            while (buffer.hasRemaining() && apply(trace, buffer)) {
+                valid = buffer.position();
+                count++;
+            }
+            // a record which was only partially written before a crash
+            channel.truncate(valid);
+            channel.position(valid);
+            journal = channel;
+            return count;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Applies the next record of the journal to the trace
+     *
+     * @return false, if the record is incomplete or invalid
+     */
+    private static boolean apply(final Trace trace, final ByteBuffer buffer) {
+        byte op = buffer.get();
+        int size = trace.size();
+        switch (op) {
+            case ADD:
+                if (buffer.remaining() < POINT_SIZE) return false;
+                trace.push(buffer.getDouble(), buffer.getDouble());
+                return true;
+            case INSERT:
+            case SET:
+                if (buffer.remaining() < 4 + POINT_SIZE) return false;
+                int index = buffer.getInt();
+                double latitude = buffer.getDouble(), longitude = buffer.getDouble();
+                if (op == INSERT && index >= 0 && index <= size) {
+                    trace.insert(index, latitude, longitude);
+                } else if (op == SET && index >= 0 && index < size) {
+                    trace.set(index, latitude, longitude);
+                } else {
+                    return false;
+                }
+                return true;
+            case REMOVE_LAST:
+                if (size == 0) return false;
+                trace.removeLast();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void closeJournal() {
+        if (journal == null) return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            if (BuildConfig.DEBUG) Logger.log(e);
+        }
+        journal = null;
+    }
+
+    private static void flush(final FileChannel out, final ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+}
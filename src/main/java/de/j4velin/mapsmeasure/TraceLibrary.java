@@ -0,0 +1,369 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Environment;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Index of all saved traces, so that the list of traces can be shown, sorted
+ * and filtered without reading the trace files.
+ * <p/>
+ * For every file, the index stores the number of points, the bounding box,
+ * the length, the area and the size and modification time of the file. It is
+ * updated whenever a trace is saved or deleted within the app. Files which
+ * were added, changed or removed otherwise are found by rescan(), which only
+ * reads the files whose size or modification time changed. It streams their
+ * points through a MappedTraceReader, so even very large traces are never
+ * held in memory.
+ * <p/>
+ * All methods access the database and should not be called on the UI thread.
+ */
+class TraceLibrary extends SQLiteOpenHelper {
+
+    final static int SORT_DATE = 0;
+    final static int SORT_NAME = 1;
+    final static int SORT_LENGTH = 2;
+    final static int SORT_AREA = 3;
+
+    private final static String DB_NAME = "traces.db";
+    private final static int DB_VERSION = 2;
+    private final static String TABLE = "traces";
+    private final static String[] ORDER =
+            {"modified DESC", "name COLLATE NOCASE ASC", "length DESC", "area DESC"};
+    // number of files written in one transaction by rescan()
+    private final static int BATCH_SIZE = 16;
+    private final static String[] COLUMNS =
+            {"path", "name", "modified", "points", "min_lat", "min_lng", "max_lat", "max_lng",
+                    "length", "area"};
+
+    private static TraceLibrary instance;
+
+    private final Context context;
+    private boolean scanned;
+
+    /**
+     * A saved trace
+     */
+    static class Entry {
+        final File file;
+        final String name;
+        final long modified;
+        final int points;
+        final double minLatitude, minLongitude, maxLatitude, maxLongitude;
+        final double length, area;
+
+        private Entry(final Cursor c) {
+            file = new File(c.getString(0));
+            name = c.getString(1);
+            modified = c.getLong(2);
+            points = c.getInt(3);
+            minLatitude = c.getDouble(4);
+            minLongitude = c.getDouble(5);
+            maxLatitude = c.getDouble(6);
+            maxLongitude = c.getDouble(7);
+            length = c.getDouble(8);
+            area = c.getDouble(9);
+        }
+    }
+
+    private TraceLibrary(final Context c) {
+        super(c, DB_NAME, null, DB_VERSION);
+        context = c;
+        // the list can be read while a rescan is writing
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * @param c the Context
+     * @return the library
+     */
+    static synchronized TraceLibrary getInstance(final Context c) {
+        if (instance == null) {
+            instance = new TraceLibrary(c.getApplicationContext());
+        }
+        return instance;
+    }
+
+    @Override
+    public void onCreate(final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " (path TEXT PRIMARY KEY, name TEXT, " +
+                "modified INTEGER, file_size INTEGER, points INTEGER, min_lat REAL, " +
+                "min_lng REAL, max_lat REAL, max_lng REAL, length REAL, area REAL)");
+        db.execSQL("CREATE INDEX traces_modified ON " + TABLE + " (modified)");
+        db.execSQL("CREATE INDEX traces_name ON " + TABLE + " (name COLLATE NOCASE)");
+        db.execSQL("CREATE INDEX traces_length ON " + TABLE + " (length)");
+        db.execSQL("CREATE INDEX traces_area ON " + TABLE + " (area)");
+    }
+
+    @Override
+    public void onUpgrade(final SQLiteDatabase db, int oldVersion, int newVersion) {
+        // the index can always be rebuilt from the files
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        onCreate(db);
+    }
+
+    /**
+     * @param c the Context
+     * @return the directories in which traces are saved, the external one
+     * only if it is available
+     */
+    static List<File> getDirectories(final Context c) {
+        List<File> dirs = new ArrayList<>(2);
+        dirs.add(c.getDir("traces", Context.MODE_PRIVATE));
+        if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            File ext = c.getExternalFilesDir(null);
+            // even though we checked the external storage state, ext is still sometimes null, accoring to Play Store crash reports
+            if (ext != null) dirs.add(ext);
+        }
+        return dirs;
+    }
+
+    /**
+     * Adds a trace to the index or updates its entry, must be called after
+     * the file was written
+     *
+     * @param f     the file of the trace
+     * @param trace the trace saved in the file
+     */
+    void put(final File f, final Trace trace) {
+        Summary summary = new Summary();
+        for (int i = 0; i < trace.size(); i++) {
+            summary.onPoint(trace.getLatitude(i), trace.getLongitude(i));
+        }
+        getWritableDatabase().insertWithOnConflict(TABLE, null, summary.toValues(f),
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Collects the values of the index for the points of a trace, as they
+     * are passed to it
+     */
+    private static class Summary implements PointCallback {
+        // always measured on the ellipsoid instead of with the engine of the
+        // trace, so that traces saved on the map and traces read by rescan()
+        // can be sorted by length and area
+        private final MeasurementEngine engine = new EllipsoidalEngine();
+        private int points;
+        private double minLat, minLng, maxLat, maxLng, length, area;
+        private double firstLat, firstLng, previousLat, previousLng;
+
+        @Override
+        public void onPoint(double lat, double lng) {
+            if (points == 0) {
+                minLat = maxLat = firstLat = lat;
+                minLng = maxLng = firstLng = lng;
+            } else {
+                if (lat < minLat) minLat = lat;
+                else if (lat > maxLat) maxLat = lat;
+                if (lng < minLng) minLng = lng;
+                else if (lng > maxLng) maxLng = lng;
+                length += engine.computeDistance(previousLat, previousLng, lat, lng);
+                area += engine.computeSignedEdgeArea(previousLat, previousLng, lat, lng);
+            }
+            previousLat = lat;
+            previousLng = lng;
+            points++;
+        }
+
+        /**
+         * @param f the file of the trace
+         * @return the row of the index for the trace
+         */
+        private ContentValues toValues(final File f) {
+            ContentValues values = new ContentValues(11);
+            values.put("path", f.getAbsolutePath());
+            values.put("name", getName(f));
+            values.put("modified", f.lastModified());
+            values.put("file_size", f.length());
+            values.put("points", points);
+            values.put("min_lat", minLat);
+            values.put("min_lng", minLng);
+            values.put("max_lat", maxLat);
+            values.put("max_lng", maxLng);
+            values.put("length", length);
+            values.put("area", points < 3 ? 0 : Math.abs(area + engine
+                    .computeSignedEdgeArea(previousLat, previousLng, firstLat, firstLng)));
+            return values;
+        }
+    }
+
+    /**
+     * Removes a trace from the index, must be called after the file was
+     * deleted
+     *
+     * @param f the file of the trace
+     */
+    void remove(final File f) {
+        getWritableDatabase().delete(TABLE, "path = ?", new String[]{f.getAbsolutePath()});
+    }
+
+    /**
+     * @param filter only count traces whose name contains this text, or null
+     * @return the number of traces
+     */
+    int count(final String filter) {
+        return (int) DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE,
+                filter == null ? null : "name LIKE ? ESCAPE '\\'", filterArgs(filter));
+    }
+
+    /**
+     * Returns one page of the traces
+     *
+     * @param filter only return traces whose name contains this text, or null
+     * @param sort   one of the SORT_ constants
+     * @param offset the number of traces to skip
+     * @param limit  the maximum number of traces to return
+     * @return the traces
+     */
+    List<Entry> query(final String filter, int sort, int offset, int limit) {
+        List<Entry> result = new ArrayList<>(limit);
+        try (Cursor c = getReadableDatabase()
+                .query(TABLE, COLUMNS, filter == null ? null : "name LIKE ? ESCAPE '\\'",
+                        filterArgs(filter), null, null, ORDER[sort] + ", path",
+                        offset + "," + limit)) {
+            while (c.moveToNext()) {
+                result.add(new Entry(c));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Brings the index up to date with the files in the trace directories.
+     * <p/>
+     * Only files which are new or whose size or modification time changed are
+     * read, so this is cheap if nothing changed. The files are read outside
+     * of any transaction and written in batches of BATCH_SIZE, so the list can
+     * still be updated while a rescan reads large files.
+     *
+     * @return true, if the index changed
+     */
+    synchronized boolean rescan() {
+        SQLiteDatabase db = getWritableDatabase();
+        // path -> modification time and size of all indexed files
+        HashMap<String, long[]> indexed = new HashMap<>();
+        try (Cursor c = db.query(TABLE, new String[]{"path", "modified", "file_size"}, null,
+                null, null, null, null)) {
+            while (c.moveToNext()) {
+                indexed.put(c.getString(0), new long[]{c.getLong(1), c.getLong(2)});
+            }
+        }
+        boolean changed = false;
+        List<ContentValues> batch = new ArrayList<>(BATCH_SIZE);
+        for (File dir : getDirectories(context)) {
+            File[] files = dir.listFiles();
+            if (files == null) continue;
+            for (File f : files) {
+                if (!f.isFile() || f.getName().endsWith(TraceIO.TEMP_SUFFIX)) continue;
+                long[] known = indexed.remove(f.getAbsolutePath());
+                if (known != null && known[0] == f.lastModified() && known[1] == f.length())
+                    continue;
+                batch.add(summarize(f).toValues(f));
+                if (batch.size() == BATCH_SIZE) write(db, batch);
+                changed = true;
+            }
+        }
+        write(db, batch);
+        // whatever is left was deleted
+        if (!indexed.isEmpty()) {
+            db.beginTransaction();
+            try {
+                for (String path : indexed.keySet()) {
+                    db.delete(TABLE, "path = ?", new String[]{path});
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            changed = true;
+        }
+        scanned = true;
+        if (BuildConfig.DEBUG) Logger.log("trace library rescan, changed: " + changed);
+        return changed;
+    }
+
+    /**
+     * Streams the points of the given file into a summary
+     *
+     * @param f the trace file
+     * @return the summary, empty if the file could not be read
+     */
+    private static Summary summarize(final File f) {
+        Summary summary = new Summary();
+        try (MappedTraceReader reader = new MappedTraceReader(f)) {
+            reader.forEach(summary);
+        } catch (IOException | RuntimeException e) {
+            if (BuildConfig.DEBUG) Logger.log(e);
+            // still list it, so that it can be deleted
+            return new Summary();
+        }
+        return summary;
+    }
+
+    /**
+     * Writes the given rows to the index in one transaction and empties the
+     * list
+     */
+    private static void write(final SQLiteDatabase db, final List<ContentValues> batch) {
+        if (batch.isEmpty()) return;
+        db.beginTransaction();
+        try {
+            for (ContentValues values : batch) {
+                db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        batch.clear();
+    }
+
+    /**
+     * @return true, if the index was compared to the files since the app
+     * was started
+     */
+    synchronized boolean isScanned() {
+        return scanned;
+    }
+
+    private static String[] filterArgs(final String filter) {
+        if (filter == null) return null;
+        return new String[]{"%" + filter.replace("\\", "\\\\").replace("%", "\\%")
+                .replace("_", "\\_") + "%"};
+    }
+
+    /**
+     * @return the file name without its extension
+     */
+    private static String getName(final File f) {
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Base class of the streaming parsers for the text based trace formats.
+ * <p/>
+ * The input is fed in chunks of any size and every point is passed to the
+ * callback as soon as it is complete. Parsers only keep the state of the
+ * current token, so files of any length are parsed in constant memory (apart
+ * from whatever the callback does with the points).
+ */
+abstract class TraceParser {
+
+    private final static int BUFFER_SIZE = 8192;
+    private final static byte[] BYTE_ORDER_MARK = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
+    final PointCallback callback;
+    int points;
+    // the bytes of a byte order mark at the start so far, -1 once past it
+    private int markBytes;
+
+    /**
+     * @param callback the callback to pass the points to
+     */
+    TraceParser(final PointCallback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * Parses the whole stream. Does not close the stream.
+     *
+     * @param in the stream to read from
+     * @throws IOException
+     */
+    void parse(final InputStream in) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            parse(buffer, 0, read);
+        }
+        finish();
+    }
+
+    /**
+     * Parses the next chunk of the input. Tokens may span multiple chunks.
+     * <p/>
+     * The input is read as single bytes, which is fine for UTF-8 and Latin-1
+     * as all characters relevant for the coordinates are ASCII.
+     *
+     * @param buffer the input
+     * @param offset the offset of the chunk in the buffer
+     * @param length the length of the chunk
+     */
+    void parse(final byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        // the byte order mark might be split between chunks
+        while (markBytes >= 0 && offset < end) {
+            if (buffer[offset] == BYTE_ORDER_MARK[markBytes]) {
+                offset++;
+                if (++markBytes == BYTE_ORDER_MARK.length) markBytes = -1;
+            } else {
+                // not a byte order mark after all, so the bytes held back are input
+                for (int i = 0; i < markBytes; i++) {
+                    accept((char) (BYTE_ORDER_MARK[i] & 0xFF));
+                }
+                markBytes = -1;
+            }
+        }
+        for (int i = offset; i < end; i++) {
+            accept((char) (buffer[i] & 0xFF));
+        }
+    }
+
+    /**
+     * Processes the last token, if the input ends in the middle of it. Must
+     * be called after all input has been passed to parse.
+     */
+    abstract void finish();
+
+    /**
+     * @return the number of points found so far
+     */
+    int getPoints() {
+        return points;
+    }
+
+    abstract void accept(char c);
+
+    /**
+     * Passes a point to the callback
+     */
+    void point(double latitude, double longitude) {
+        callback.onPoint(latitude, longitude);
+        points++;
+    }
+}
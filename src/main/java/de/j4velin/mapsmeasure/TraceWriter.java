@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import com.google.maps.android.PolyUtil;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes traces in the text based formats, one point at a time.
+ * <p/>
+ * Coordinates are written with up to 7 decimal places (about 1 cm, the same
+ * precision as the binary format) and formatted without creating any
+ * objects. Encoded polylines have a precision of 5 decimal places, as
+ * defined by the format.
+ */
+abstract class TraceWriter {
+
+    private final static long SCALE = 10000000L;
+    private final static double POLYLINE_SCALE = 1e5;
+    private final static int DECIMALS = 7;
+    // number of points between two progress reports
+    private final static int PROGRESS_INTERVAL = 1 << 14;
+    // sign, 3 integer digits, dot and 7 decimals, twice, and the markup around them
+    private final static int MAX_POINT_LENGTH = 64;
+
+    /**
+     * Writes the given trace to the given writer. Does not close the writer.
+     *
+     * @param out    the writer to write to, should be buffered
+     * @param trace  the trace to write
+     * @param format the format, must not be BINARY
+     * @param task   the task to report the progress to, or null
+     * @throws IOException
+     * @throws java.util.concurrent.CancellationException if the task was cancelled
+     */
+    static void write(final Writer out, final Trace trace, final TraceFormat format,
+                      final TraceIO.Task task) throws IOException {
+        int size = trace.size();
+        switch (format) {
+            case GPX:
+                out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                        "<gpx version=\"1.1\" creator=\"Maps Measure\" " +
+                        "xmlns=\"http://www.topografix.com/GPX/1/1\">\n" +
+                        "<trk><name>Maps Measure</name><trkseg>\n");
+                break;
+            case KML:
+                out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                        "<kml xmlns=\"http://www.opengis.net/kml/2.2\"><Document><Placemark>" +
+                        "<name>Maps Measure</name><LineString><coordinates>\n");
+                break;
+            case GEOJSON:
+                // a LineString needs at least two positions
+                out.write("{\"type\":\"Feature\",\"properties\":{},\"geometry\":{\"type\":" +
+                        (size == 1 ? "\"Point\",\"coordinates\":" :
+                                "\"LineString\",\"coordinates\":[\n"));
+                break;
+            case BINARY:
+                throw new IllegalArgumentException("Not a text format: " + format);
+        }
+        char[] line = new char[MAX_POINT_LENGTH];
+        long lastLat = 0, lastLng = 0; // for the differences in encoded polylines
+        for (int i = 0; i < size; i++) {
+            if (task != null && i % PROGRESS_INTERVAL == 0) task.setProgress(i, size);
+            double lat = trace.getLatitude(i), lng = trace.getLongitude(i);
+            int length = 0;
+            switch (format) {
+                case CSV:
+                    length = append(line, length, lat);
+                    line[length++] = ',';
+                    length = append(line, length, lng);
+                    break;
+                case GPX:
+                    length = append(line, length, "<trkpt lat=\"");
+                    length = append(line, length, lat);
+                    length = append(line, length, "\" lon=\"");
+                    length = append(line, length, lng);
+                    length = append(line, length, "\"/>");
+                    break;
+                case KML:
+                    length = append(line, length, lng);
+                    line[length++] = ',';
+                    length = append(line, length, lat);
+                    break;
+                case GEOJSON:
+                    line[length++] = '[';
+                    length = append(line, length, lng);
+                    line[length++] = ',';
+                    length = append(line, length, lat);
+                    line[length++] = ']';
+                    if (i < size - 1) line[length++] = ',';
+                    break;
+                case POLYLINE:
+                    long latE5 = Math.round(lat * POLYLINE_SCALE);
+                    long lngE5 = Math.round(lng * POLYLINE_SCALE);
+                    length = PolyUtil.encodeValue(latE5 - lastLat, line, length);
+                    length = PolyUtil.encodeValue(lngE5 - lastLng, line, length);
+                    lastLat = latE5;
+                    lastLng = lngE5;
+                    break;
+            }
+            // an encoded polyline is a single line
+            if (format != TraceFormat.POLYLINE && (format != TraceFormat.GEOJSON || size > 1)) {
+                line[length++] = '\n';
+            }
+            out.write(line, 0, length);
+        }
+        switch (format) {
+            case GPX:
+                out.write("</trkseg></trk>\n</gpx>\n");
+                break;
+            case KML:
+                out.write("</coordinates></LineString></Placemark></Document></kml>\n");
+                break;
+            case GEOJSON:
+                out.write(size == 1 ? "}}\n" : "]}}\n");
+                break;
+        }
+    }
+
+    private static int append(final char[] buffer, int offset, final String s) {
+        s.getChars(0, s.length(), buffer, offset);
+        return offset + s.length();
+    }
+
+    /**
+     * Appends a coordinate with up to 7 decimal places, without trailing zeros
+     *
+     * @return the offset after the coordinate
+     */
+    static int append(final char[] buffer, int offset, double coordinate) {
+        long fixed = Math.round(coordinate * SCALE);
+        if (fixed < 0) {
+            buffer[offset++] = '-';
+            fixed = -fixed;
+        }
+        long integer = fixed / SCALE;
+        long fraction = fixed % SCALE;
+        // integer digits, at most 3 for valid coordinates, but do not fail on others
+        int start = offset;
+        do {
+            buffer[offset++] = (char) ('0' + integer % 10);
+            integer /= 10;
+        } while (integer > 0);
+        for (int i = start, j = offset - 1; i < j; i++, j--) {
+            char c = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = c;
+        }
+        if (fraction > 0) {
+            int digits = DECIMALS;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                digits--;
+            }
+            buffer[offset++] = '.';
+            for (int i = digits - 1; i >= 0; i--) {
+                buffer[offset + i] = (char) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            offset += digits;
+        }
+        return offset;
+    }
+}
@@ -18,37 +18,23 @@ package de.j4velin.mapsmeasure;
 
 import android.content.Context;
 import android.net.ConnectivityManager;
-import android.net.Uri;
 import android.util.Pair;
 import android.util.TypedValue;
 
 import com.google.android.gms.maps.model.LatLng;
-import com.google.maps.android.PolyUtil;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Stack;
-import java.util.WeakHashMap;
 
 abstract class Util {
 
     public static float lastElevation;
-    private static final String TAG_OPEN = "<elevation>";
-    private static final String TAG_CLOSE = "</elevation>";
-    private static final String ERROR_OPEN = "<error_message>";
-    private static final String ERROR_CLOSE = "</error_message>";
-    private static final String STATUS_OVER_LIMIT = "OVER_QUERY_LIMIT";
-    private static final int ELEVATION_TRACE_SAMPLES = 20;
-
-    private final static WeakHashMap<LatLng, Float> CACHE = new WeakHashMap<>();
+    // the elevation data has a resolution of about 30 m, denser samples add no information
+    private static final double ELEVATION_SAMPLE_SPACING = 30;
+    // no point in having more samples than the graph can show
+    private static final int ELEVATION_PIXELS_PER_SAMPLE = 2;
 
     /**
      * Returns the height of the status bar
@@ -95,104 +81,50 @@ abstract class Util {
     }
 
     /**
-     * Writes the given trace of points to the given file in CSV format,
-     * separated by ";"
+     * Queries for a single elevation information
      *
-     * @param f     the file to write to
-     * @param trace the trace to write
-     * @throws IOException
+     * @param client the elevation client
+     * @param loc    the location
+     * @return a pair of 0's
      */
-    static void saveToFile(final File f, final Stack<LatLng> trace) throws IOException {
-        if (!f.exists()) f.createNewFile();
-        BufferedWriter out = new BufferedWriter(new FileWriter(f));
-        LatLng current;
-        for (int i = 0; i < trace.size(); i++) {
-            current = trace.get(i);
-            out.append(String.valueOf(current.latitude)).append(",")
-                    .append(String.valueOf(current.longitude)).append("\n");
-        }
-        out.close();
+    private static Pair<Float, Float> getSingleElevation(final ElevationClient client,
+                                                         final LatLng loc) throws IOException {
+        if (BuildConfig.DEBUG) Logger.log("get elevation for " + loc);
+        lastElevation = client.getElevations(Collections.singletonList(loc))[0];
+        return new Pair<>(0f, 0f);
     }
 
     /**
-     * Replaces the current points on the map with the one from the provided
-     * file
+     * Returns equally spaced points along the given path, including its first
+     * and last point
      *
-     * @param f the file to read from
-     * @param m the Map activity to add the new points to
-     * @throws IOException
+     * @param path    the path, must contain at least 2 points
+     * @param samples the number of points to return, at least 2
+     * @return the sample points
      */
-    static void loadFromFile(final Uri f, final Map m) throws IOException {
-        List<LatLng> list = new LinkedList<>();
-        BufferedReader in = new BufferedReader(
-                new InputStreamReader(m.getContentResolver().openInputStream(f)));
-        String line;
-        String[] data;
-        while ((line = in.readLine()) != null) {
-            data = line.split(",");
-            if (data.length != 2) data = line.split(";"); // try with semicolon instead
-            try {
-                list.add(new LatLng(Double.parseDouble(data[0]), Double.parseDouble(data[1])));
-            } catch (Exception nfe) {
-                nfe.printStackTrace();
-            }
-        }
-        in.close();
-        m.clear();
-        for (int i = 0; i < list.size(); i++) {
-            m.addPoint(list.get(i));
+    static List<LatLng> samplePath(final Trace path, int samples) {
+        double length = path.getLength();
+        List<LatLng> result = new ArrayList<>(samples);
+        for (int i = 0; i < samples; i++) {
+            result.add(path.getPosition(length * i / (samples - 1)));
         }
-        if (!list.isEmpty()) m.moveCamera(list.get(0));
+        return result;
     }
 
     /**
-     * Queries for a single elevation information
+     * Returns the number of elevation samples to take along a path: one every
+     * ELEVATION_SAMPLE_SPACING meters, but not more than the graph can display
+     * and not more than maxSamples
      *
-     * @param loc the location
-     * @return a pair of 0's
+     * @param length     the length of the path in meters
+     * @param width      the width of the elevation graph in pixels
+     * @param maxSamples the maximum number of samples
+     * @return the number of samples, at least 2
      */
-    private static Pair<Float, Float> getSingleElevation(final LatLng loc) throws IOException {
-        if (BuildConfig.DEBUG) Logger.log("get elevation for " + loc);
-        if (CACHE.containsKey(loc)) {
-            lastElevation = CACHE.get(loc);
-            if (BuildConfig.DEBUG) Logger.log("cache -> " + lastElevation);
-        } else {
-            HttpURLConnection urlConnection = null;
-            BufferedReader in = null;
-            try {
-                URL url = new URL("https://maps.googleapis.com/maps/api/elevation/xml?locations=" +
-                        loc.latitude + "," + loc.longitude + "&key=" + Map.ELEVATION_API_KEY);
-                urlConnection = (HttpURLConnection) url.openConnection();
-                in = new BufferedReader(new InputStreamReader(urlConnection.getInputStream()));
-                String line;
-                int subStringStart = TAG_OPEN.length();
-                while ((line = in.readLine()) != null) {
-                    if (line.trim().startsWith(ERROR_OPEN)) {
-                        String error =
-                                line.substring(ERROR_OPEN.length() + 1, line.indexOf(ERROR_CLOSE));
-                        if (BuildConfig.DEBUG) Logger.log("error: " + error);
-                        throw new IOException(error);
-                    } else if (line.trim().startsWith(TAG_OPEN)) {
-                        lastElevation = Float.parseFloat(
-                                line.substring(subStringStart + 2, line.indexOf(TAG_CLOSE)));
-                        CACHE.put(loc, lastElevation);
-                        if (BuildConfig.DEBUG)
-                            Logger.log("elevation read: " + line + " " + lastElevation);
-                        break;
-                    }
-                }
-            } finally {
-                if (in != null) {
-                    try {
-                        in.close();
-                    } catch (IOException e) {
-                        if (BuildConfig.DEBUG) Logger.log(e);
-                    }
-                }
-                if (urlConnection != null) urlConnection.disconnect();
-            }
-        }
-        return new Pair<>(0f, 0f);
+    static int getElevationSampleCount(double length, int width, int maxSamples) {
+        long samples = (long) Math.ceil(length / ELEVATION_SAMPLE_SPACING) + 1;
+        samples = Math.min(samples, Math.min(width / ELEVATION_PIXELS_PER_SAMPLE, maxSamples));
+        return (int) Math.max(2, samples);
     }
 
     /**
@@ -203,47 +135,22 @@ abstract class Util {
      * @return the aggregated up and down distances along the trace
      */
     static Pair<Float, Float> updateElevationView(final ElevationView view,
-                                                  final List<LatLng> trace) throws IOException {
+                                                  final Trace trace) throws IOException {
         if (BuildConfig.DEBUG) Logger.log("get elevation for trace " + trace);
         if (trace.isEmpty()) return new Pair<>(0f, 0f);
-        if (trace.size() == 1) return getSingleElevation(trace.get(0));
-        String encodedPath = PolyUtil.encode(trace);
-        float[] result = new float[ELEVATION_TRACE_SAMPLES];
-        HttpURLConnection urlConnection = null;
-        BufferedReader in = null;
-        try {
-            URL url = new URL("https://maps.googleapis.com/maps/api/elevation/xml?path=enc:" +
-                    encodedPath + "&samples=" + ELEVATION_TRACE_SAMPLES + "&key=" +
-                    Map.ELEVATION_API_KEY);
-            if (BuildConfig.DEBUG) Logger.log("url " + url);
-            urlConnection = (HttpURLConnection) url.openConnection();
-            in = new BufferedReader(new InputStreamReader(urlConnection.getInputStream()));
-            String line;
-            int pos = 0;
-            int subStringStart = TAG_OPEN.length();
-            while ((line = in.readLine()) != null) {
-                if (line.trim().startsWith(ERROR_OPEN)) {
-                    String error =
-                            line.substring(ERROR_OPEN.length() + 1, line.indexOf(ERROR_CLOSE));
-                    if (BuildConfig.DEBUG) Logger.log("error: " + error);
-                    throw new IOException(error);
-                } else if (line.trim().startsWith(TAG_OPEN)) {
-                    result[pos] = Float.parseFloat(
-                            line.substring(subStringStart + 2, line.indexOf(TAG_CLOSE)));
-                    if (BuildConfig.DEBUG) Logger.log("result[" + pos + "]=" + result[pos]);
-                    pos++;
-                }
-            }
-        } finally {
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (IOException e) {
-                    if (BuildConfig.DEBUG) Logger.log(e);
-                }
-            }
-            if (urlConnection != null) urlConnection.disconnect();
+        ElevationClient client =
+                new ElevationClient(ElevationCache.getInstance(view.getContext()),
+                        Map.ELEVATION_API_KEY);
+        if (trace.size() == 1) return getSingleElevation(client, trace.get(0));
+        int width = view.getWidth();
+        if (width == 0) { // not laid out yet
+            width = view.getResources().getDisplayMetrics().widthPixels;
         }
+        // not a setting: at most one round of parallel requests to the elevation API per trace
+        int samples =
+                getElevationSampleCount(trace.getLength(), width, client.getMaxLocations());
+        if (BuildConfig.DEBUG) Logger.log("elevation samples: " + samples);
+        float[] result = client.getElevations(samplePath(trace, samples));
         view.setElevationData(result);
         float up = 0, down = 0, difference;
         for (int i = 1; i < result.length; i++) {
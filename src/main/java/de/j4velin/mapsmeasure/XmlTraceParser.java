@@ -0,0 +1,324 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+/**
+ * Streaming parser for traces in GPX and KML files.
+ * <p/>
+ * Points are taken from the lat and lon attributes of GPX track and route
+ * points (trkpt and rtept, waypoints are ignored) and from the text of KML
+ * coordinates and gx:coord elements. All tracks, routes and geometries of a
+ * file are joined into one trace in the order they appear.
+ * <p/>
+ * This is not a complete XML parser: it only tokenizes tags, attributes,
+ * comments, CDATA sections and declarations as far as needed to find these
+ * elements, without creating any objects per tag, and ignores namespaces
+ * apart from stripping the prefix of a name.
+ */
+class XmlTraceParser extends TraceParser {
+
+    private final static int MAX_NAME_LENGTH = 16;
+
+    private final static int TEXT = 0;
+    private final static int TAG_START = 1; // after "<"
+    private final static int TAG_NAME = 2;
+    private final static int IN_TAG = 3; // between the attributes
+    private final static int ATTRIBUTE_NAME = 4;
+    private final static int ATTRIBUTE_EQUALS = 5;
+    private final static int ATTRIBUTE_VALUE = 6;
+    private final static int DECLARATION = 7; // after "<!"
+    private final static int COMMENT = 8;
+    private final static int CDATA = 9;
+    private final static int PROCESSING_INSTRUCTION = 10;
+
+    private final static String CDATA_START = "[CDATA[";
+
+    // what the text of the current element contains
+    private final static int NO_COORDINATES = 0;
+    private final static int KML_COORDINATES = 1; // "lng,lat[,alt] lng,lat[,alt] ..."
+    private final static int GX_COORD = 2; // "lng lat [alt]"
+
+    private int state = TEXT;
+    private final char[] name = new char[MAX_NAME_LENGTH];
+    private int nameLength;
+    private boolean closingTag, emptyTag;
+    // the expected start of a declaration and the number of its characters seen so far
+    private String prefix;
+    private int matched;
+    // the two characters before the current one, to find the end of comments and the like
+    private char previous, before;
+    private int bracketDepth; // inside the internal subset of a DOCTYPE
+    private char quote;
+
+    // state of the current GPX point
+    private boolean gpxPoint;
+    private int attribute; // 1: lat, 2: lon, 0: any other
+    private double pointLatitude, pointLongitude;
+    private boolean hasLatitude, hasLongitude, attributeError;
+
+    // state of the current KML coordinate tuple
+    private int coordinates = NO_COORDINATES;
+    private final double[] tuple = new double[2];
+    private int field;
+    private boolean tupleError, inField, fieldEnded;
+
+    private final DecimalParser number = new DecimalParser();
+
+    /**
+     * @param callback the callback to pass the points to
+     */
+    XmlTraceParser(final PointCallback callback) {
+        super(callback);
+    }
+
+    @Override
+    void finish() {
+        if (coordinates != NO_COORDINATES) endTuple();
+        coordinates = NO_COORDINATES;
+    }
+
+    @Override
+    void accept(char c) {
+        switch (state) {
+            case TEXT:
+                if (c == '<') {
+                    state = TAG_START;
+                } else if (coordinates != NO_COORDINATES) {
+                    coordinate(c);
+                }
+                break;
+            case TAG_START:
+                closingTag = emptyTag = false;
+                nameLength = 0;
+                matched = 0;
+                prefix = null;
+                if (c == '/') {
+                    closingTag = true;
+                    state = TAG_NAME;
+                } else if (c == '!') {
+                    state = DECLARATION;
+                } else if (c == '?') {
+                    state = PROCESSING_INSTRUCTION;
+                } else {
+                    state = TAG_NAME;
+                    appendName(c);
+                }
+                break;
+            case TAG_NAME:
+                if (isWhitespace(c) || c == '/' || c == '>') {
+                    startTag();
+                    state = IN_TAG;
+                    inTag(c);
+                } else {
+                    appendName(c);
+                }
+                break;
+            case IN_TAG:
+                inTag(c);
+                break;
+            case ATTRIBUTE_NAME:
+                if (c == '=' || isWhitespace(c)) {
+                    attribute = gpxPoint ? nameIs("lat") ? 1 : nameIs("lon") ? 2 : 0 : 0;
+                    state = ATTRIBUTE_EQUALS;
+                } else {
+                    appendName(c);
+                }
+                break;
+            case ATTRIBUTE_EQUALS:
+                if (c == '"' || c == '\'') {
+                    quote = c;
+                    number.reset();
+                    attributeError = false;
+                    state = ATTRIBUTE_VALUE;
+                } else if (c == '>') {
+                    // malformed, but do not get stuck in the tag
+                    state = IN_TAG;
+                    inTag(c);
+                }
+                break;
+            case ATTRIBUTE_VALUE:
+                if (c == quote) {
+                    endAttribute();
+                    state = IN_TAG;
+                } else if (attribute != 0 && !attributeError && !isWhitespace(c)) {
+                    if (!number.accept(c)) attributeError = true;
+                }
+                break;
+            case DECLARATION:
+                // "<!--", "<![CDATA[" or something like "<!DOCTYPE ...>"
+                if (prefix == null) prefix = c == '-' ? "--" : c == '[' ? CDATA_START : "";
+                if (matched < prefix.length()) {
+                    if (c == prefix.charAt(matched)) {
+                        if (++matched == prefix.length()) {
+                            state = prefix.length() == 2 ? COMMENT : CDATA;
+                            previous = before = 0;
+                        }
+                        break;
+                    }
+                    prefix = "";
+                }
+                if (c == '[') {
+                    bracketDepth++;
+                } else if (c == ']') {
+                    bracketDepth--;
+                } else if (c == '>' && bracketDepth <= 0) {
+                    bracketDepth = 0;
+                    state = TEXT;
+                }
+                break;
+            case COMMENT:
+                if (c == '>' && previous == '-' && before == '-') state = TEXT;
+                break;
+            case CDATA:
+                if (c == '>' && previous == ']' && before == ']') state = TEXT;
+                break;
+            case PROCESSING_INSTRUCTION:
+                if (c == '>' && previous == '?') state = TEXT;
+                break;
+        }
+        before = previous;
+        previous = c;
+    }
+
+    private void inTag(char c) {
+        if (c == '>') {
+            endTag();
+            state = TEXT;
+        } else if (c == '/') {
+            emptyTag = true;
+        } else if (!isWhitespace(c)) {
+            emptyTag = false;
+            nameLength = 0;
+            appendName(c);
+            state = ATTRIBUTE_NAME;
+        }
+    }
+
+    /**
+     * Called when the name of a start or end tag is complete
+     */
+    private void startTag() {
+        if (closingTag) {
+            if (coordinates != NO_COORDINATES && (nameIs("coordinates") || nameIs("coord"))) {
+                endTuple();
+                coordinates = NO_COORDINATES;
+            }
+        } else if (nameIs("trkpt") || nameIs("rtept")) {
+            gpxPoint = true;
+            hasLatitude = hasLongitude = false;
+        } else if (nameIs("coordinates")) {
+            coordinates = KML_COORDINATES;
+            startTuple();
+        } else if (nameIs("coord")) {
+            coordinates = GX_COORD;
+            startTuple();
+        }
+    }
+
+    /**
+     * Called at the end of a start or end tag
+     */
+    private void endTag() {
+        if (gpxPoint) {
+            if (hasLatitude && hasLongitude) point(pointLatitude, pointLongitude);
+            gpxPoint = false;
+        }
+        // an empty coordinates element has no text
+        if (emptyTag) coordinates = NO_COORDINATES;
+    }
+
+    private void endAttribute() {
+        if (attribute == 0 || attributeError || !number.isValid()) return;
+        if (attribute == 1) {
+            pointLatitude = number.value();
+            hasLatitude = true;
+        } else {
+            pointLongitude = number.value();
+            hasLongitude = true;
+        }
+    }
+
+    private void coordinate(char c) {
+        if (isWhitespace(c)) {
+            if (inField) {
+                endField();
+                fieldEnded = true;
+            }
+            return;
+        }
+        if (c == ',' && coordinates == KML_COORDINATES) {
+            // also allows whitespace after a number and before the comma
+            if (!fieldEnded) endField();
+            fieldEnded = false;
+            return;
+        }
+        // whitespace not followed by a comma separates the tuples
+        if (fieldEnded && coordinates == KML_COORDINATES) endTuple();
+        fieldEnded = false;
+        inField = true;
+        if (!number.accept(c)) tupleError = true;
+    }
+
+    private void endField() {
+        if (!number.isValid()) {
+            tupleError = true;
+        } else if (field < 2) {
+            tuple[field] = number.value();
+        }
+        field++;
+        inField = false;
+        number.reset();
+    }
+
+    private void startTuple() {
+        field = 0;
+        tupleError = inField = fieldEnded = false;
+        number.reset();
+    }
+
+    private void endTuple() {
+        if (inField) endField();
+        if (!tupleError && field >= 2 && field <= 3) {
+            point(tuple[1], tuple[0]);
+        }
+        startTuple();
+    }
+
+    private void appendName(char c) {
+        if (c == ':') {
+            // strip the namespace prefix
+            nameLength = 0;
+        } else if (nameLength < MAX_NAME_LENGTH) {
+            name[nameLength++] = c;
+        } else {
+            // longer than any name we are interested in
+            nameLength = MAX_NAME_LENGTH + 1;
+        }
+    }
+
+    private boolean nameIs(final String s) {
+        if (nameLength != s.length()) return false;
+        for (int i = 0; i < nameLength; i++) {
+            if (name[i] != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+}
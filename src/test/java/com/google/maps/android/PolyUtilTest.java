@@ -0,0 +1,482 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.maps.android;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Compares the optimized simplification and polyline encoding kernels of PolyUtil
+ * with straightforward implementations
+ */
+public class PolyUtilTest {
+
+    @Test
+    public void fastHavMatchesHav() {
+        Random random = new Random(0x5eed);
+        for (int i = 0; i < 100000; i++) {
+            // mostly small angles, where the Taylor series is used
+            double x = random.nextGaussian() * (i % 2 == 0 ? 0.01 : 1);
+            double expected = MathUtil.hav(x);
+            assertEquals("hav(" + x + ")", expected, PolyUtil.fastHav(x),
+                    2 * Math.ulp(expected));
+            assertEquals("cos(" + x + ")", Math.cos(x), PolyUtil.fastCos(x),
+                    2 * Math.ulp(1.0));
+        }
+        assertEquals(0, PolyUtil.fastHav(0), 0);
+        assertEquals(1, PolyUtil.fastCos(0), 0);
+    }
+
+    @Test
+    public void douglasPeuckerMatchesRecursiveDefinition() {
+        Random random = new Random(4711);
+        for (int run = 0; run < 100; run++) {
+            List<LatLng> line = randomLine(random, 2 + random.nextInt(300));
+            for (double tolerance : new double[]{0.5, 5, 50, 500, 5000}) {
+                int n = line.size();
+                double[] lat = new double[n], lng = new double[n];
+                for (int i = 0; i < n; i++) {
+                    lat[i] = Math.toRadians(line.get(i).latitude);
+                    lng[i] = Math.toRadians(line.get(i).longitude);
+                }
+                int[] kept = new int[n];
+                int count = PolyUtil.simplify(lat, lng, n, tolerance, kept);
+
+                boolean[] keep = new boolean[n];
+                keep[0] = keep[n - 1] = true;
+                douglasPeucker(line, 0, n - 1, tolerance, keep);
+                List<Integer> expected = new ArrayList<>();
+                for (int i = 0; i < n; i++) {
+                    if (keep[i]) expected.add(i);
+                }
+                int[] expectedArray = new int[expected.size()];
+                for (int i = 0; i < expectedArray.length; i++) {
+                    expectedArray[i] = expected.get(i);
+                }
+                int[] actual = new int[count];
+                System.arraycopy(kept, 0, actual, 0, count);
+                assertArrayEquals("tolerance " + tolerance, expectedArray, actual);
+
+                // only a part of the arrays
+                int from = random.nextInt(n);
+                int to = from + 1 + random.nextInt(n - from);
+                count = PolyUtil.simplify(lat, lng, from, to, tolerance, kept);
+                keep = new boolean[n];
+                keep[from] = keep[to - 1] = true;
+                douglasPeucker(line, from, to - 1, tolerance, keep);
+                int k = 0;
+                for (int i = from; i < to; i++) {
+                    if (keep[i]) assertEquals("tolerance " + tolerance, i, kept[k++]);
+                }
+                assertEquals(k, count);
+            }
+        }
+    }
+
+    @Test
+    public void douglasPeuckerEdgeCases() {
+        LatLng a = new LatLng(48, 11), b = new LatLng(48, 11.01), c = new LatLng(48.01, 11);
+        assertEquals(Arrays.asList(a), PolyUtil.simplify(Arrays.asList(a), 10));
+        assertEquals(Arrays.asList(a, b), PolyUtil.simplify(Arrays.asList(a, b), 10));
+        assertEquals(Arrays.asList(a, a), PolyUtil.simplify(Arrays.asList(a, a, a), 10));
+        // a closed ring is not collapsed, even though the first and last point are equal
+        List<LatLng> ring = Arrays.asList(a, b, c, a);
+        assertEquals(ring, PolyUtil.simplify(ring, 10));
+        // c is 1.1 km from a, b only 0.7 km
+        assertEquals(Arrays.asList(a, c, a), PolyUtil.simplify(ring, 1000));
+        // across the antimeridian, the middle point is 111 m away from the line
+        List<LatLng> line = Arrays.asList(new LatLng(0, 179.99), new LatLng(0.001, 180),
+                new LatLng(0, -179.99));
+        assertEquals(111.2, PolyUtil.distanceToLine(line.get(1), line.get(0), line.get(2)),
+                0.1);
+        assertEquals(3, PolyUtil.simplify(line, 100).size());
+        assertEquals(2, PolyUtil.simplify(line, 120).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void douglasPeuckerEmptyLine() {
+        PolyUtil.simplify(new ArrayList<LatLng>(), 10);
+    }
+
+    @Test
+    public void visvalingamWhyattMatchesQuadraticImplementation() {
+        Random random = new Random(31337);
+        for (int run = 0; run < 200; run++) {
+            List<LatLng> line = randomLine(random, 1 + random.nextInt(200));
+            int n = line.size();
+            double[] lat = new double[n], lng = new double[n];
+            for (int i = 0; i < n; i++) {
+                lat[i] = Math.toRadians(line.get(i).latitude);
+                lng[i] = Math.toRadians(line.get(i).longitude);
+            }
+            // also many equal areas, which have to be removed by index
+            if (run % 4 == 0) {
+                for (int i = 0; i < n; i++) {
+                    lat[i] = Math.toRadians((i % 3) * 1e-3);
+                    lng[i] = Math.toRadians(i * 1e-3);
+                }
+            }
+            double tolerance = run % 3 == 0 ? 0 : Math.pow(10, random.nextInt(8));
+            int maxPoints = run % 3 == 1 ? Integer.MAX_VALUE : 2 + random.nextInt(n + 1);
+            int[] kept = new int[n];
+            int count = PolyUtil.simplifyByArea(lat, lng, n, tolerance, maxPoints, kept);
+            int[] actual = new int[count];
+            System.arraycopy(kept, 0, actual, 0, count);
+            assertArrayEquals("tolerance " + tolerance + ", max " + maxPoints,
+                    visvalingamWhyatt(lat, lng, n, tolerance, maxPoints), actual);
+            if (tolerance == 0) assertEquals(Math.min(n, maxPoints), count);
+        }
+    }
+
+    @Test
+    public void visvalingamWhyattEdgeCases() {
+        LatLng a = new LatLng(48, 11), b = new LatLng(48, 11.01), c = new LatLng(48.01, 11);
+        assertEquals(Arrays.asList(a), PolyUtil.simplifyToSize(Arrays.asList(a), 2));
+        assertEquals(Arrays.asList(a, b), PolyUtil.simplifyByArea(Arrays.asList(a, b), 1));
+        // repeated points have no area
+        assertEquals(Arrays.asList(a, a), PolyUtil.simplifyByArea(Arrays.asList(a, a, a), 1));
+        // a closed ring keeps its first and last point
+        List<LatLng> ring = Arrays.asList(a, b, c, a);
+        assertEquals(ring, PolyUtil.simplifyByArea(ring, 1));
+        assertEquals(3, PolyUtil.simplifyToSize(ring, 3).size());
+        assertEquals(Arrays.asList(a, a), PolyUtil.simplifyToSize(ring, 2));
+        // across the antimeridian, the triangle is small: 0.02 degrees wide, 111 m high
+        List<LatLng> line = Arrays.asList(new LatLng(0, 179.99), new LatLng(0.001, 180),
+                new LatLng(0, -179.99));
+        assertEquals(3, PolyUtil.simplifyByArea(line, 1e5).size());
+        assertEquals(2, PolyUtil.simplifyByArea(line, 2e5).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void visvalingamWhyattEmptyLine() {
+        PolyUtil.simplifyToSize(new ArrayList<LatLng>(), 2);
+    }
+
+    @Test
+    public void encodeValueMatchesReferenceEncoder() {
+        Random random = new Random(0xc0ffee);
+        char[] out = new char[PolyUtil.MAX_ENCODED_POINT_LENGTH];
+        for (int i = 0; i < 100000; i++) {
+            // values of up to 40 bits, far beyond any difference of two coordinates
+            long v = random.nextLong() >> (24 + random.nextInt(40));
+            if (i < 64) v = i - 32;
+            int length = PolyUtil.encodeValue(v, out, 0);
+            assertEquals("value " + v, encodeValue(v), new String(out, 0, length));
+        }
+        // the largest difference of two longitudes fits
+        assertTrue(PolyUtil.encodeValue(-36000000, out, 0)
+                <= PolyUtil.MAX_ENCODED_POINT_LENGTH / 2);
+    }
+
+    @Test
+    public void encodeMatchesReferenceEncoder() throws IOException {
+        Random random = new Random(271828);
+        for (int run = 0; run < 100; run++) {
+            List<LatLng> path = randomLine(random, random.nextInt(run % 10 == 0 ? 5000 : 100));
+            if (run % 5 == 0) {
+                // jumps over the whole range of coordinates
+                path.add(new LatLng(90, 180));
+                path.add(new LatLng(-90, -180));
+            }
+            int n = path.size();
+            double[] lat = new double[n], lng = new double[n];
+            int[] latE5 = new int[n], lngE5 = new int[n];
+            for (int i = 0; i < n; i++) {
+                lat[i] = path.get(i).latitude;
+                lng[i] = path.get(i).longitude;
+                latE5[i] = (int) Math.round(lat[i] * 1e5);
+                lngE5[i] = (int) Math.round(lng[i] * 1e5);
+            }
+            String expected = encode(latE5, lngE5, n);
+            assertEquals(expected, PolyUtil.encode(path));
+            assertEquals(expected, PolyUtil.encode(lat, lng, n));
+
+            // every kind of sink, with paths longer than the internal buffer
+            StringWriter writer = new StringWriter();
+            PolyUtil.encode(lat, lng, n, writer);
+            assertEquals(expected, writer.toString());
+            CharBuffer buffer = CharBuffer.allocate(expected.length());
+            PolyUtil.encodeE5(latE5, lngE5, n, buffer);
+            buffer.flip();
+            assertEquals(expected, buffer.toString());
+            StringBuilder builder = new StringBuilder("prefix");
+            PolyUtil.encodeE5(latE5, lngE5, n, builder);
+            assertEquals("prefix" + expected, builder.toString());
+            char[] chars = new char[3 + n * PolyUtil.MAX_ENCODED_POINT_LENGTH];
+            int end = PolyUtil.encodeE5(latE5, lngE5, n, chars, 3);
+            assertEquals(expected, new String(chars, 3, end - 3));
+        }
+    }
+
+    @Test
+    public void decodeReversesEncode() {
+        Random random = new Random(314159);
+        for (int run = 0; run < 100; run++) {
+            int n = random.nextInt(1000);
+            int[] latE5 = new int[n], lngE5 = new int[n];
+            for (int i = 0; i < n; i++) {
+                latE5[i] = random.nextInt(18000001) - 9000000;
+                lngE5[i] = random.nextInt(36000001) - 18000000;
+            }
+            String encoded = encode(latE5, lngE5, n);
+            assertEquals(n, PolyUtil.countPoints(encoded));
+
+            int[] decodedLat = new int[n], decodedLng = new int[n];
+            assertEquals(n, PolyUtil.decodeE5(encoded, decodedLat, decodedLng));
+            assertArrayEquals(latE5, decodedLat);
+            assertArrayEquals(lngE5, decodedLng);
+
+            double[] lat = new double[n], lng = new double[n];
+            assertEquals(n, PolyUtil.decode(new StringBuilder(encoded), lat, lng));
+            List<LatLng> path = PolyUtil.decode(encoded);
+            assertEquals(n, path.size());
+            PolyUtil.PathDecoder decoder = new PolyUtil.PathDecoder(encoded);
+            for (int i = 0; i < n; i++) {
+                assertEquals(latE5[i] * 1e-5, lat[i], 0);
+                assertEquals(lngE5[i] * 1e-5, lng[i], 0);
+                // LatLng normalizes the coordinates
+                assertEquals(new LatLng(latE5[i] * 1e-5, lngE5[i] * 1e-5), path.get(i));
+                decoder.advance();
+                assertEquals(latE5[i], decoder.getLatE5());
+                assertEquals(lngE5[i], decoder.getLngE5());
+            }
+            assertFalse(decoder.hasNext());
+        }
+    }
+
+    @Test
+    public void truncatedPaths() {
+        Random random = new Random(1009);
+        int n = 50;
+        int[] latE5 = new int[n], lngE5 = new int[n];
+        for (int i = 0; i < n; i++) {
+            latE5[i] = random.nextInt(18000001) - 9000000;
+            lngE5[i] = random.nextInt(36000001) - 18000000;
+        }
+        String encoded = encode(latE5, lngE5, n);
+        // the end of every point in the encoded path
+        List<Integer> ends = new ArrayList<>();
+        for (int i = 1; i <= n; i++) {
+            ends.add(encode(latE5, lngE5, i).length());
+        }
+        int[] lat = new int[n], lng = new int[n];
+        for (int length = 0; length <= encoded.length(); length++) {
+            String prefix = encoded.substring(0, length);
+            int complete = 0;
+            while (complete < n && ends.get(complete) <= length) complete++;
+            // only complete points are counted
+            assertEquals("length " + length, complete, PolyUtil.countPoints(prefix));
+            if (complete == 0 && length == 0 || complete > 0 && ends.get(complete - 1) == length) {
+                assertEquals(complete, PolyUtil.decodeE5(prefix, lat, lng));
+            } else {
+                try {
+                    PolyUtil.decodeE5(prefix, lat, lng);
+                    fail("decoded a truncated path of length " + length);
+                } catch (IndexOutOfBoundsException e) {
+                    // expected, a point is incomplete
+                }
+            }
+        }
+    }
+
+    @Test
+    public void encodeEdgeCases() {
+        // the empty path
+        assertEquals("", PolyUtil.encode(new ArrayList<LatLng>()));
+        assertEquals("", PolyUtil.encode(new double[0], new double[0], 0));
+        assertEquals(0, PolyUtil.countPoints(""));
+        assertTrue(PolyUtil.decode("").isEmpty());
+        assertFalse(new PolyUtil.PathDecoder("").hasNext());
+
+        // the example of the documentation, a single point and then the whole path
+        assertEquals("_p~iF~ps|U", PolyUtil.encode(Arrays.asList(new LatLng(38.5, -120.2))));
+        List<LatLng> path = Arrays.asList(new LatLng(38.5, -120.2), new LatLng(40.7, -120.95),
+                new LatLng(43.252, -126.453));
+        assertEquals("_p~iF~ps|U_ulLnnqC_mqNvxq`@", PolyUtil.encode(path));
+
+        // a closed ring ends with the encoded difference of zero
+        List<LatLng> ring = new ArrayList<>(path);
+        ring.add(path.get(0));
+        String encoded = PolyUtil.encode(ring);
+        assertEquals(4, PolyUtil.countPoints(encoded));
+        assertEquals(ring.get(0), PolyUtil.decode(encoded).get(3));
+        assertTrue(encoded.startsWith(PolyUtil.encode(path)));
+
+        // across the antimeridian the difference is almost the whole range
+        double[] lat = {0, 0, 1e-5}, lng = {179.99999, -180, -179.99999};
+        encoded = PolyUtil.encode(lat, lng, 3);
+        int[] latE5 = new int[3], lngE5 = new int[3];
+        assertEquals(3, PolyUtil.decodeE5(encoded, latE5, lngE5));
+        assertArrayEquals(new int[]{0, 0, 1}, latE5);
+        assertArrayEquals(new int[]{17999999, -18000000, -17999999}, lngE5);
+    }
+
+    @Test
+    public void decodeMalformedPaths() {
+        int[] lat = new int[4], lng = new int[4];
+        // the last value has its continuation bit set
+        try {
+            PolyUtil.decodeE5("_p~iF~ps|U_", lat, lng);
+            fail("decoded a value without its end");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        // a latitude without its longitude
+        try {
+            PolyUtil.decodeE5("_p~iF", lat, lng);
+            fail("decoded a point without its longitude");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        assertEquals(0, PolyUtil.countPoints("_p~iF"));
+        PolyUtil.PathDecoder decoder = new PolyUtil.PathDecoder("_p~iF~ps|U");
+        decoder.advance();
+        try {
+            decoder.advance();
+            fail("advanced past the end");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+    }
+
+    /**
+     * The encoding algorithm as documented by Google, one character at a time
+     */
+    private static String encode(final int[] latE5, final int[] lngE5, int n) {
+        StringBuilder result = new StringBuilder();
+        int lastLat = 0, lastLng = 0;
+        for (int i = 0; i < n; i++) {
+            result.append(encodeValue(latE5[i] - lastLat));
+            result.append(encodeValue(lngE5[i] - lastLng));
+            lastLat = latE5[i];
+            lastLng = lngE5[i];
+        }
+        return result.toString();
+    }
+
+    private static String encodeValue(long v) {
+        // zigzag: the sign moves into the lowest bit
+        v = v < 0 ? -2 * v - 1 : 2 * v;
+        StringBuilder result = new StringBuilder();
+        do {
+            long chunk = v % 32;
+            v /= 32;
+            if (v > 0) chunk += 32;
+            result.append((char) (chunk + 63));
+        } while (v > 0);
+        return result.toString();
+    }
+
+    /**
+     * Visvalingam-Whyatt with a linear search for the smallest area, removing
+     * equal areas by index like the heap does
+     */
+    private static int[] visvalingamWhyatt(double[] lat, double[] lng, int n, double tolerance,
+                                           int maxPoints) {
+        List<Integer> points = new ArrayList<>();
+        List<Double> areas = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            points.add(i);
+            areas.add(i == 0 || i == n - 1 ? Double.NaN :
+                    PolyUtil.triangleArea(lat, lng, i - 1, i, i + 1));
+        }
+        while (points.size() > 2) {
+            int min = 1;
+            for (int i = 2; i < points.size() - 1; i++) {
+                if (areas.get(i) < areas.get(min)) min = i;
+            }
+            double removed = areas.get(min);
+            if (points.size() <= maxPoints && removed >= tolerance) break;
+            points.remove(min);
+            areas.remove(min);
+            if (min - 1 > 0) {
+                areas.set(min - 1, Math.max(removed, PolyUtil.triangleArea(lat, lng,
+                        points.get(min - 2), points.get(min - 1), points.get(min))));
+            }
+            if (min < points.size() - 1) {
+                areas.set(min, Math.max(removed, PolyUtil.triangleArea(lat, lng,
+                        points.get(min - 1), points.get(min), points.get(min + 1))));
+            }
+        }
+        int[] result = new int[points.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = points.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * The textbook recursion, measuring every distance in meters
+     */
+    private static void douglasPeucker(final List<LatLng> line, int first, int last,
+                                       double tolerance, final boolean[] keep) {
+        double max = 0;
+        int index = -1;
+        for (int i = first + 1; i < last; i++) {
+            double distance = PolyUtil.distanceToLine(line.get(i), line.get(first),
+                    line.get(last));
+            if (distance > max) {
+                max = distance;
+                index = i;
+            }
+        }
+        if (index >= 0 && max > tolerance) {
+            keep[index] = true;
+            douglasPeucker(line, first, index, tolerance, keep);
+            douglasPeucker(line, index, last, tolerance, keep);
+        }
+    }
+
+    /**
+     * @return a random walk, with some points repeated and some long jumps
+     */
+    static List<LatLng> randomLine(final Random random, int n) {
+        List<LatLng> line = new ArrayList<>(n);
+        double lat = random.nextDouble() * 120 - 60, lng = random.nextDouble() * 340 - 170;
+        for (int i = 0; i < n; i++) {
+            int kind = random.nextInt(20);
+            if (kind == 0 && i > 0) {
+                // the same point again
+            } else if (kind == 1) {
+                lat = Math.max(-80, Math.min(80, lat + random.nextGaussian()));
+                lng = Math.max(-179, Math.min(179, lng + random.nextGaussian()));
+            } else {
+                lat = Math.max(-80, Math.min(80, lat + random.nextGaussian() * 1e-3));
+                lng = Math.max(-179, Math.min(179, lng + random.nextGaussian() * 1e-3));
+            }
+            line.add(new LatLng(lat, lng));
+        }
+        return line;
+    }
+}
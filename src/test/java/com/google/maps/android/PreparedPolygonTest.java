@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.maps.android;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the bucket grids of PreparedPolygon with testing every edge in PolyUtil
+ */
+public class PreparedPolygonTest {
+
+    @Test
+    public void containsLocationMatchesPolyUtil() {
+        Random random = new Random(0x5eed);
+        for (int run = 0; run < 300; run++) {
+            List<LatLng> polygon = randomPolygon(random, run);
+            boolean geodesic = run % 2 == 0;
+            PreparedPolygon prepared = new PreparedPolygon(polygon, geodesic);
+            assertEquals(polygon.size(), prepared.size());
+            List<LatLng> points = randomPoints(random, polygon, 200);
+            boolean[] contained = prepared.containsLocations(points);
+            for (int i = 0; i < points.size(); i++) {
+                LatLng point = points.get(i);
+                boolean expected = PolyUtil.containsLocation(point, polygon, geodesic);
+                assertEquals("run " + run + ", " + point, expected,
+                        prepared.containsLocation(point));
+                assertEquals("run " + run + ", " + point, expected, contained[i]);
+            }
+        }
+    }
+
+    @Test
+    public void isLocationOnEdgeMatchesPolyUtil() {
+        Random random = new Random(8128);
+        for (int run = 0; run < 300; run++) {
+            List<LatLng> polygon = randomPolygon(random, run);
+            boolean geodesic = run % 2 == 1;
+            PreparedPolygon prepared = new PreparedPolygon(polygon, geodesic);
+            List<LatLng> points = randomPoints(random, polygon, 200);
+            for (double tolerance : new double[]{0.1, 100, 100000}) {
+                boolean[] onEdge = prepared.areLocationsOnEdge(points, tolerance);
+                for (int i = 0; i < points.size(); i++) {
+                    LatLng point = points.get(i);
+                    boolean expected =
+                            PolyUtil.isLocationOnEdge(point, polygon, geodesic, tolerance);
+                    assertEquals("run " + run + ", " + tolerance + ", " + point, expected,
+                            prepared.isLocationOnEdge(point, tolerance));
+                    assertEquals("run " + run + ", " + tolerance + ", " + point, expected,
+                            onEdge[i]);
+                }
+            }
+            LatLng point = points.get(0);
+            assertEquals(PolyUtil.isLocationOnEdge(point, polygon, geodesic),
+                    prepared.isLocationOnEdge(point));
+        }
+    }
+
+    @Test
+    public void acrossTheAntimeridian() {
+        List<LatLng> square = Arrays.asList(new LatLng(-1, 179), new LatLng(-1, -179),
+                new LatLng(1, -179), new LatLng(1, 179));
+        // a closed ring repeats the first point, which must not change anything
+        List<LatLng> ring = new ArrayList<>(square);
+        ring.add(square.get(0));
+        for (List<LatLng> polygon : Arrays.asList(square, ring)) {
+            for (boolean geodesic : new boolean[]{true, false}) {
+                PreparedPolygon prepared = new PreparedPolygon(polygon, geodesic);
+                assertTrue(prepared.containsLocation(new LatLng(0, 180)));
+                assertTrue(prepared.containsLocation(new LatLng(0.5, -179.5)));
+                assertFalse(prepared.containsLocation(new LatLng(0, 0)));
+                assertFalse(prepared.containsLocation(new LatLng(0, 178.9)));
+                // the great circle edge is 17 m closer to the equator than the rhumb line
+                assertTrue(prepared.isLocationOnEdge(new LatLng(-1, 180), 30));
+                assertTrue(prepared.isLocationOnEdge(new LatLng(0, 179), 1));
+                assertFalse(prepared.isLocationOnEdge(new LatLng(0, 180), 1000));
+            }
+        }
+    }
+
+    @Test
+    public void aroundThePole() {
+        List<LatLng> polygon = new ArrayList<>();
+        for (int lng = -180; lng < 180; lng += 10) {
+            polygon.add(new LatLng(80, lng));
+        }
+        PreparedPolygon prepared = new PreparedPolygon(polygon, true);
+        assertTrue(prepared.containsLocation(new LatLng(90, 0)));
+        assertTrue(prepared.containsLocation(new LatLng(85, 123)));
+        assertFalse(prepared.containsLocation(new LatLng(70, 5)));
+        assertFalse(prepared.containsLocation(new LatLng(-90, 0)));
+    }
+
+    @Test
+    public void degeneratePolygons() {
+        List<LatLng> polygon = new ArrayList<>();
+        LatLng point = new LatLng(1, 2);
+        for (int n = 0; n < 3; n++) {
+            PreparedPolygon prepared = new PreparedPolygon(polygon, true);
+            assertEquals(PolyUtil.containsLocation(point, polygon, true),
+                    prepared.containsLocation(point));
+            assertEquals(PolyUtil.isLocationOnEdge(point, polygon, true),
+                    prepared.isLocationOnEdge(point));
+            polygon.add(point);
+        }
+    }
+
+    /**
+     * @return a star shaped polygon, some of them crossing the antimeridian, containing a
+     * pole or covering all longitudes
+     */
+    private static List<LatLng> randomPolygon(final Random random, int run) {
+        int n = 3 + random.nextInt(run % 5 == 0 ? 2000 : 50);
+        double centerLat = random.nextDouble() * 160 - 80;
+        double centerLng = run % 3 == 0 ? 180 : random.nextDouble() * 360 - 180;
+        double radius = Math.pow(10, random.nextInt(5) - 3);
+        List<LatLng> polygon = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            double angle = 2 * Math.PI * i / n;
+            double r = radius * (0.2 + random.nextDouble());
+            if (run % 7 == 0) {
+                // around a pole, over all longitudes
+                polygon.add(new LatLng(80 + 9 * random.nextDouble(), 360.0 * i / n - 180));
+            } else {
+                polygon.add(new LatLng(
+                        Math.max(-89, Math.min(89, centerLat + r * Math.sin(angle))),
+                        centerLng + r * Math.cos(angle)));
+            }
+        }
+        return polygon;
+    }
+
+    /**
+     * @return random points around the polygon, including its vertices and points close
+     * to its edges
+     */
+    private static List<LatLng> randomPoints(final Random random, final List<LatLng> polygon,
+                                             int n) {
+        double minLat = 90, maxLat = -90, minLng = 180, maxLng = -180;
+        for (LatLng vertex : polygon) {
+            minLat = Math.min(minLat, vertex.latitude);
+            maxLat = Math.max(maxLat, vertex.latitude);
+            minLng = Math.min(minLng, vertex.longitude);
+            maxLng = Math.max(maxLng, vertex.longitude);
+        }
+        List<LatLng> points = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int kind = random.nextInt(4);
+            if (kind == 0) {
+                points.add(polygon.get(random.nextInt(polygon.size())));
+            } else if (kind == 1) {
+                // on or close to an edge
+                int k = random.nextInt(polygon.size());
+                LatLng a = polygon.get(k);
+                LatLng b = polygon.get((k + 1) % polygon.size());
+                double f = random.nextDouble();
+                points.add(new LatLng(a.latitude + f * (b.latitude - a.latitude),
+                        a.longitude + f * (b.longitude - a.longitude)));
+            } else {
+                double margin = (maxLat - minLat) * 0.2;
+                points.add(new LatLng(
+                        minLat - margin + random.nextDouble() * (maxLat - minLat + 2 * margin),
+                        minLng - margin + random.nextDouble() * (maxLng - minLng + 2 * margin)));
+            }
+        }
+        return points;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.j4velin.mapsmeasure;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips of the binary trace format and its behaviour on truncated or
+ * corrupt input
+ */
+public class BinaryTraceFormatTest {
+
+    @Test
+    public void roundTrip() throws IOException {
+        Random random = new Random(0x5eed);
+        Trace trace = new Trace();
+        double[][] extremes = {{0, 0}, {90, 180}, {-90, -180}, {-90, 180}, {90, -180}};
+        for (double[] p : extremes) {
+            trace.push(p[0], p[1]);
+        }
+        for (int i = 0; i < 5000; i++) {
+            if (random.nextBoolean()) {
+                trace.push(random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180);
+            } else {
+                trace.push(trace.getLatitude(i) + random.nextGaussian() * 1e-4,
+                        trace.getLongitude(i) + random.nextGaussian() * 1e-4);
+            }
+        }
+        byte[] data = write(trace);
+        assertEquals(data.length, BinaryTraceFormat.getSize(trace));
+        Trace read = read(data);
+        assertEquals(trace.size(), read.size());
+        for (int i = 0; i < trace.size(); i++) {
+            assertEquals(Math.round(trace.getLatitude(i) * 1e7) / 1e7, read.getLatitude(i), 0);
+            assertEquals(Math.round(trace.getLongitude(i) * 1e7) / 1e7, read.getLongitude(i), 0);
+        }
+    }
+
+    @Test
+    public void emptyTrace() throws IOException {
+        byte[] data = write(new Trace());
+        assertEquals(BinaryTraceFormat.HEADER_SIZE, data.length);
+        assertEquals(BinaryTraceFormat.HEADER_SIZE, BinaryTraceFormat.getSize(new Trace()));
+        assertEquals(0, read(data).size());
+    }
+
+    @Test
+    public void singlePoint() throws IOException {
+        Trace trace = new Trace();
+        trace.push(-33.8688197, 151.2092955);
+        Trace read = read(write(trace));
+        assertEquals(1, read.size());
+        assertEquals(-33.8688197, read.getLatitude(0), 0);
+        assertEquals(151.2092955, read.getLongitude(0), 0);
+    }
+
+    @Test
+    public void acrossTheAntimeridian() throws IOException {
+        // the longitude differences jump by almost 360 degrees
+        double[][] points = {{0, 179.9999999}, {0, -180}, {1e-7, -179.9999999}, {0, 180},
+                {-1e-7, 179.9999999}};
+        Trace trace = new Trace();
+        for (double[] p : points) {
+            trace.push(p[0], p[1]);
+        }
+        Trace read = read(write(trace));
+        assertEquals(points.length, read.size());
+        for (int i = 0; i < points.length; i++) {
+            assertEquals(points[i][0], read.getLatitude(i), 0);
+            assertEquals(points[i][1], read.getLongitude(i), 0);
+        }
+    }
+
+    @Test
+    public void varLongsAgainstReference() throws IOException {
+        Random random = new Random(99);
+        long[] values = new long[1000];
+        values[0] = Long.MIN_VALUE;
+        values[1] = Long.MAX_VALUE;
+        values[2] = -1;
+        for (int i = 3; i < values.length; i++) {
+            values[i] = random.nextLong() >> random.nextInt(64);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 10);
+        for (long v : values) {
+            putReferenceVarLong(buffer, v);
+        }
+        buffer.flip();
+        for (long v : values) {
+            assertEquals(v, BinaryTraceFormat.getVarLong(buffer));
+        }
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    public void truncatedVarLong() {
+        // a continuation bit on the last byte
+        assertCorrupt(ByteBuffer.wrap(new byte[]{(byte) 0x81, (byte) 0x82}));
+        // more than 10 bytes
+        byte[] overlong = new byte[11];
+        Arrays.fill(overlong, (byte) 0x80);
+        assertCorrupt(ByteBuffer.wrap(overlong));
+    }
+
+    @Test
+    public void truncatedTrace() throws IOException {
+        Random random = new Random(2015);
+        Trace trace = new Trace();
+        for (int i = 0; i < 300; i++) {
+            trace.push(random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180);
+        }
+        byte[] data = write(trace);
+        for (int length = 0; length < data.length; length++) {
+            try {
+                read(Arrays.copyOf(data, length));
+                fail("read a trace truncated to " + length + " of " + data.length + " bytes");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void notABinaryTrace() throws IOException {
+        read("lat,lng\n1,2\n".getBytes("UTF-8"));
+    }
+
+    private static void assertCorrupt(final ByteBuffer buffer) {
+        try {
+            BinaryTraceFormat.getVarLong(buffer);
+            fail("decoded a corrupt value");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * Zig-zag and base 128 encoding as described by the Protocol Buffers documentation
+     */
+    private static void putReferenceVarLong(final ByteBuffer buffer, long v) {
+        long zigzag = v >= 0 ? 2 * v : -2 * (v + 1) + 1;
+        do {
+            byte b = (byte) (zigzag & 0x7F);
+            zigzag >>>= 7;
+            buffer.put(zigzag != 0 ? (byte) (b | 0x80) : b);
+        } while (zigzag != 0);
+    }
+
+    private static byte[] write(final Trace trace) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryTraceFormat.write(Channels.newChannel(out), trace);
+        return out.toByteArray();
+    }
+
+    private static Trace read(final byte[] data) throws IOException {
+        return BinaryTraceFormat.read(Channels.newChannel(new ByteArrayInputStream(data)));
+    }
+}
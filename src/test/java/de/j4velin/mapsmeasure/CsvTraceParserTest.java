@@ -0,0 +1,172 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.j4velin.mapsmeasure;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static de.j4velin.mapsmeasure.TestData.NUMBER;
+import static de.j4velin.mapsmeasure.TestData.parse;
+import static de.j4velin.mapsmeasure.TestData.randomNumber;
+import static de.j4velin.mapsmeasure.TestData.space;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the streaming CSV parser with a simple String based parser on
+ * random input, fed in random chunks
+ */
+public class CsvTraceParserTest {
+
+    private final static String[] NOISE = {"", " ", "\t", "\r", ",", ";", "x", ".", "-", "e",
+            "1e", "--1", "1..2", "1 2", "NaN", "0x10", "1f"};
+
+    @Test
+    public void randomInput() throws IOException {
+        Random random = new Random(0x5eed);
+        for (int run = 0; run < 200; run++) {
+            StringBuilder input = new StringBuilder();
+            if (random.nextInt(4) == 0) input.append('\uFEFF');
+            int lines = random.nextInt(50);
+            for (int i = 0; i < lines; i++) {
+                input.append(randomLine(random));
+                if (i < lines - 1 || random.nextBoolean()) {
+                    input.append(random.nextBoolean() ? "\n" : "\r\n");
+                }
+            }
+            assertParsedLikeBaseline(input.toString(), random);
+        }
+    }
+
+    @Test
+    public void preciseValues() throws IOException {
+        Random random = new Random(1234);
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            input.append(randomNumber(random)).append(',').append(randomNumber(random))
+                    .append('\n');
+        }
+        // more digits than a long can hold, which uses the fallback
+        input.append("0.12345678901234567890123456789,-179.99999999999999999999\n");
+        input.append("1e-30,12345678901234567890e-18\n");
+        assertParsedLikeBaseline(input.toString(), random);
+    }
+
+    @Test
+    public void edgeCases() throws IOException {
+        assertParsed("", 0);
+        assertParsed("\uFEFF", 0);
+        assertParsed("\n\r\n \t\n", 0);
+        // a single point, without a line break at the end
+        assertParsed("48.1,11.5", 0, 48.1, 11.5);
+        assertParsed("\uFEFF48.1;11.5\r\n", 0, 48.1, 11.5);
+        // a closed ring repeats the first point
+        assertParsed("1,2\n3,4\n5,2\n1,2\n", 0, 1, 2, 3, 4, 5, 2, 1, 2);
+        // across the antimeridian, the coordinates are taken as they are
+        assertParsed("0,179.9\n0,-179.9\n", 0, 0, 179.9, 0, -179.9);
+        // malformed records are counted and skipped
+        assertParsed("lat,lng\n1,2\n3\n4,5,6\n7,x\n8,,9\n-,1\n1e,2\n10,11", 7, 1, 2,
+                10, 11);
+    }
+
+    /**
+     * Asserts that parsing the input gives the expected malformed lines and
+     * points, given as latitude, longitude pairs
+     */
+    private static void assertParsed(final String input, int malformed, double... points)
+            throws IOException {
+        final List<Double> parsed = new ArrayList<>();
+        CsvTraceParser parser = new CsvTraceParser((latitude, longitude) -> {
+            parsed.add(latitude);
+            parsed.add(longitude);
+        });
+        parse(parser, input, new Random(input.hashCode()));
+        assertEquals(input, points.length, parsed.size());
+        for (int i = 0; i < points.length; i++) {
+            assertEquals(input, points[i], parsed.get(i), 0);
+        }
+        assertEquals(input, malformed, parser.getMalformedLines());
+    }
+
+    private static void assertParsedLikeBaseline(final String input, final Random random)
+            throws IOException {
+        List<double[]> expected = new ArrayList<>();
+        int expectedMalformed = parseBaseline(input, expected);
+
+        final List<double[]> parsed = new ArrayList<>();
+        CsvTraceParser parser =
+                new CsvTraceParser((latitude, longitude) -> parsed.add(new double[]{latitude,
+                        longitude}));
+        parse(parser, input, random);
+
+        assertEquals(input, expected.size(), parsed.size());
+        assertEquals(input, expected.size(), parser.getPoints());
+        assertEquals(input, expectedMalformed, parser.getMalformedLines());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(input, expected.get(i)[0], parsed.get(i)[0], 0);
+            assertEquals(input, expected.get(i)[1], parsed.get(i)[1], 0);
+        }
+    }
+
+    /**
+     * @return the number of malformed lines
+     */
+    private static int parseBaseline(String input, final List<double[]> points) {
+        if (input.startsWith("\uFEFF")) input = input.substring(1);
+        int malformed = 0;
+        for (String line : input.split("\n", -1)) {
+            String trimmed = line.replaceAll("^[ \t\r]+|[ \t\r]+$", "");
+            if (trimmed.isEmpty()) continue;
+            String[] fields = line.split("[,;]", -1);
+            if (fields.length == 2) {
+                String latitude = fields[0].replaceAll("^[ \t\r]+|[ \t\r]+$", "");
+                String longitude = fields[1].replaceAll("^[ \t\r]+|[ \t\r]+$", "");
+                if (NUMBER.matcher(latitude).matches() && NUMBER.matcher(longitude).matches()) {
+                    points.add(new double[]{Double.parseDouble(latitude),
+                            Double.parseDouble(longitude)});
+                    continue;
+                }
+            }
+            malformed++;
+        }
+        return malformed;
+    }
+
+    private static String randomLine(final Random random) {
+        switch (random.nextInt(6)) {
+            case 0:
+                return "";
+            case 1:
+                StringBuilder noise = new StringBuilder();
+                for (int i = random.nextInt(4); i >= 0; i--) {
+                    noise.append(NOISE[random.nextInt(NOISE.length)]);
+                }
+                return noise.toString();
+            case 2:
+                return randomNumber(random) + NOISE[random.nextInt(NOISE.length)] +
+                        randomNumber(random);
+            default:
+                return space(random) + randomNumber(random) + space(random) +
+                        (random.nextBoolean() ? "," : ";") + space(random) +
+                        randomNumber(random) + space(random);
+        }
+    }
+}
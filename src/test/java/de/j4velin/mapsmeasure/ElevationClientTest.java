@@ -0,0 +1,237 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.PolyUtil;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the ElevationClient against a local server which answers with
+ * responses in the format recorded from the elevation API
+ */
+public class ElevationClientTest {
+
+    private final static String RESPONSE_HEADER =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<ElevationResponse>\n <status>OK</status>\n";
+    private final static String RESULT = " <result>\n  <location>\n   <lat>%.7f</lat>\n" +
+            "   <lng>%.7f</lng>\n  </location>\n  <elevation>%.7f</elevation>\n" +
+            "  <resolution>4.7719760</resolution>\n </result>\n";
+    private final static String RESPONSE_FOOTER = "</ElevationResponse>\n";
+    private final static String OVER_QUERY_LIMIT =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<ElevationResponse>\n" +
+                    " <status>OVER_QUERY_LIMIT</status>\n" +
+                    " <error_message>You have exceeded your rate-limit for this API.</error_message>\n" +
+                    "</ElevationResponse>\n";
+    private final static String REQUEST_DENIED =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<ElevationResponse>\n" +
+                    " <status>REQUEST_DENIED</status>\n" +
+                    " <error_message>The provided API key is invalid.</error_message>\n" +
+                    "</ElevationResponse>\n";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private ElevationCache cache;
+    private ElevationClient client;
+    // number of locations in every request received, in the order of arrival
+    private final List<Integer> requests = Collections.synchronizedList(new ArrayList<>());
+    // responses to send instead of the elevations, one per request
+    private final LinkedList<String> scripted = new LinkedList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/xml", this::respond);
+        server.start();
+        cache = new ElevationCache(new File(folder.getRoot(), "elevation.cache"));
+        client = new ElevationClient(cache, "key",
+                "http://127.0.0.1:" + server.getAddress().getPort() + "/xml");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private void respond(final HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        String encoded = query.substring("locations=enc:".length(), query.indexOf("&key="));
+        List<LatLng> locations = PolyUtil.decode(URLDecoder.decode(encoded, "UTF-8"));
+        requests.add(locations.size());
+        String response;
+        synchronized (scripted) {
+            response = scripted.poll();
+        }
+        if (response == null) {
+            StringBuilder sb = new StringBuilder(RESPONSE_HEADER);
+            for (LatLng loc : locations) {
+                sb.append(String.format(Locale.US, RESULT, loc.latitude, loc.longitude,
+                        elevation(loc)));
+            }
+            response = sb.append(RESPONSE_FOOTER).toString();
+        }
+        byte[] body = response.getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static float elevation(final LatLng loc) {
+        return (float) (loc.latitude * 1000 + loc.longitude);
+    }
+
+    private static void assertElevations(final List<LatLng> locations, final float[] elevations) {
+        assertEquals(locations.size(), elevations.length);
+        for (int i = 0; i < elevations.length; i++) {
+            // the polyline encoding rounds to 1e-5 degrees
+            assertEquals(elevation(locations.get(i)), elevations[i], 0.02);
+        }
+    }
+
+    private static List<LatLng> line(int count) {
+        List<LatLng> locations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            locations.add(new LatLng(47.0 + i * 1e-3, 11.0 - i * 7e-4));
+        }
+        return locations;
+    }
+
+    @Test
+    public void batches() throws IOException {
+        List<LatLng> locations = line(1000);
+        assertElevations(locations, client.getElevations(locations));
+        assertTrue(requests.size() > 1);
+        int max = Collections.max(requests), sum = 0, full = 0;
+        for (int size : requests) {
+            sum += size;
+            if (size == max) full++;
+        }
+        assertEquals(1000, sum);
+        // all batches are full except for the last one
+        assertTrue(full >= requests.size() - 1);
+        assertEquals((1000 + max - 1) / max, requests.size());
+    }
+
+    @Test
+    public void maxLocations() throws IOException {
+        List<LatLng> locations = line(client.getMaxLocations());
+        assertElevations(locations, client.getElevations(locations));
+        // several requests, all of them full
+        assertTrue(requests.size() > 1);
+        assertEquals(1, new HashSet<>(requests).size());
+    }
+
+    @Test
+    public void deduplicatesByCell() throws IOException {
+        LatLng a = new LatLng(47.26543, 11.39354);
+        // less than half a cell away from a
+        LatLng nearA = new LatLng(47.26541, 11.39352);
+        LatLng b = new LatLng(47.26843, 11.39354);
+        float[] elevations = client.getElevations(Arrays.asList(a, nearA, b, a));
+        assertEquals(Collections.singletonList(2), requests);
+        assertEquals(elevations[0], elevations[1], 0);
+        assertEquals(elevations[0], elevations[3], 0);
+        assertElevations(Arrays.asList(a, a, b, a), elevations);
+
+        // everything is cached now
+        assertElevations(Arrays.asList(b, a), client.getElevations(Arrays.asList(b, nearA)));
+        assertEquals(1, requests.size());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void emptyRequest() throws IOException {
+        assertEquals(0, client.getElevations(Collections.<LatLng>emptyList()).length);
+        assertTrue(requests.isEmpty());
+    }
+
+    @Test
+    public void retriesOverQueryLimit() throws IOException {
+        scripted.add(OVER_QUERY_LIMIT);
+        List<LatLng> locations = line(10);
+        assertElevations(locations, client.getElevations(locations));
+        assertEquals(Arrays.asList(10, 10), requests);
+    }
+
+    @Test
+    public void givesUpOverQueryLimit() {
+        scripted.addAll(Arrays.asList(OVER_QUERY_LIMIT, OVER_QUERY_LIMIT, OVER_QUERY_LIMIT));
+        try {
+            client.getElevations(line(10));
+            fail();
+        } catch (IOException e) {
+            assertEquals("OVER_QUERY_LIMIT", e.getMessage());
+        }
+        assertEquals(3, requests.size());
+    }
+
+    @Test
+    public void partialFailure() {
+        // one of the parallel batches fails, the others succeed
+        scripted.add(REQUEST_DENIED);
+        List<LatLng> locations = line(1000);
+        try {
+            client.getElevations(locations);
+            fail();
+        } catch (IOException e) {
+            assertEquals("The provided API key is invalid.", e.getMessage());
+        }
+        // nothing of the failed lookup ends up in the cache
+        for (LatLng loc : locations) {
+            assertEquals(null, cache.get(loc.latitude, loc.longitude));
+        }
+    }
+
+    @Test
+    public void truncatedResponse() {
+        scripted.add(RESPONSE_HEADER + String.format(Locale.US, RESULT, 47.0, 11.0, 1.0) +
+                RESPONSE_FOOTER);
+        try {
+            client.getElevations(line(3));
+            fail();
+        } catch (IOException e) {
+            assertEquals("Expected 3 elevations, but received only 1", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Compares FenwickTree with summing a plain list for every query
+ */
+public class FenwickTreeTest {
+
+    @Test
+    public void randomOperationsMatchList() {
+        Random random = new Random(0x5eed);
+        FenwickTree tree = new FenwickTree(0);
+        FenwickTree copy = new FenwickTree(4);
+        List<Double> list = new ArrayList<>();
+        for (int operation = 0; operation < 20000; operation++) {
+            // small integers (and zeros) so that every sum is exact
+            double value = random.nextInt(4) == 0 ? 0 : random.nextInt(100);
+            int kind = random.nextInt(list.isEmpty() ? 2 : 7);
+            if (kind < 2) {
+                tree.add(value);
+                list.add(value);
+            } else if (kind == 2) {
+                tree.removeLast();
+                list.remove(list.size() - 1);
+            } else if (kind == 3) {
+                int index = random.nextInt(list.size());
+                tree.set(index, value);
+                list.set(index, value);
+            } else if (kind == 4) {
+                int index = random.nextInt(list.size() + 1);
+                tree.insert(index, value);
+                list.add(index, value);
+            } else if (kind == 5) {
+                int index = random.nextInt(list.size());
+                tree.remove(index);
+                list.remove(index);
+            } else if (operation % 100 < 5) {
+                copy.copyFrom(tree);
+                assertMatches(copy, list, random);
+            } else if (operation % 1000 == 6) {
+                tree.clear();
+                list.clear();
+            }
+            assertMatches(tree, list, random);
+        }
+    }
+
+    @Test
+    public void searchBeyondTotal() {
+        FenwickTree tree = new FenwickTree(1);
+        assertEquals(0, tree.search(0));
+        assertEquals(1, tree.search(1));
+        tree.add(1.5);
+        tree.add(2.5);
+        assertEquals(0, tree.search(-1));
+        assertEquals(1, tree.search(1.5));
+        assertEquals(2, tree.search(1.6));
+        assertEquals(2, tree.search(4));
+        assertEquals(3, tree.search(4.1));
+    }
+
+    @Test
+    public void emptyAndSingleValue() {
+        FenwickTree tree = new FenwickTree(0);
+        assertEquals(0, tree.size());
+        assertEquals(0, tree.sum(0), 0);
+        assertOutOfBounds(tree, 0);
+
+        tree.insert(0, 2.5);
+        assertEquals(1, tree.size());
+        assertEquals(2.5, tree.get(0), 0);
+        assertEquals(2.5, tree.sum(1), 0);
+        assertEquals(1, tree.search(2.5));
+        assertOutOfBounds(tree, 1);
+
+        tree.set(0, 0);
+        assertEquals(0, tree.sum(1), 0);
+        assertEquals(0, tree.search(0));
+        tree.remove(0);
+        assertEquals(0, tree.size());
+        assertOutOfBounds(tree, 0);
+
+        // a cleared tree is empty but keeps working
+        tree.add(1);
+        tree.clear();
+        assertEquals(0, tree.sum(0), 0);
+        tree.add(3);
+        assertEquals(3, tree.sum(1), 0);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void sumBeyondSize() {
+        FenwickTree tree = new FenwickTree(10);
+        tree.add(1);
+        tree.sum(2);
+    }
+
+    private static void assertOutOfBounds(final FenwickTree tree, int index) {
+        try {
+            tree.get(index);
+            fail("get(" + index + ") with size " + tree.size());
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            tree.remove(index);
+            fail("remove(" + index + ") with size " + tree.size());
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        if (tree.size() == 0) {
+            try {
+                tree.removeLast();
+                fail("removeLast() of an empty tree");
+            } catch (IndexOutOfBoundsException e) {
+                // expected
+            }
+        }
+    }
+
+    private static void assertMatches(final FenwickTree tree, final List<Double> list,
+                                      final Random random) {
+        assertEquals(list.size(), tree.size());
+        double[] prefix = new double[list.size() + 1];
+        for (int i = 0; i < list.size(); i++) {
+            assertEquals(list.get(i), tree.get(i), 0);
+            prefix[i + 1] = prefix[i] + list.get(i);
+        }
+        for (int count = 0; count <= list.size(); count++) {
+            assertEquals("sum(" + count + ")", prefix[count], tree.sum(count), 0);
+        }
+        for (int i = 0; i < 10; i++) {
+            double target = random.nextInt((int) prefix[list.size()] + 10) - 5;
+            if (i % 2 == 0) target += random.nextDouble();
+            int expected = 0;
+            while (expected <= list.size() && prefix[expected] < target) expected++;
+            assertEquals("search(" + target + ")", expected, tree.search(target));
+        }
+    }
+}
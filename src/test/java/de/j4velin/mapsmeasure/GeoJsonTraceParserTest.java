@@ -0,0 +1,342 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static de.j4velin.mapsmeasure.TestData.randomJsonNumber;
+import static de.j4velin.mapsmeasure.TestData.space;
+import static de.j4velin.mapsmeasure.TestData.whitespace;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the streaming GeoJSON parser with reading the positions from a
+ * fully parsed tree of random documents, fed in random chunks
+ */
+public class GeoJsonTraceParserTest {
+
+    private final static String[] GEOMETRIES = {"Point", "LineString", "Polygon",
+            "MultiPolygon"};
+
+    @Test
+    public void randomDocuments() throws IOException {
+        Random random = new Random(0x5eed);
+        for (int run = 0; run < 300; run++) {
+            StringBuilder document = new StringBuilder();
+            appendFeatureCollection(document, random);
+            String json = document.toString();
+            List<String> expected = new ArrayList<>();
+            addPositions(new JsonReader(json).read(), expected);
+            assertEquals(json, expected, parse(json, random));
+        }
+    }
+
+    @Test
+    public void writtenTraces() throws IOException {
+        Random random = new Random(1904);
+        for (int run = 0; run < 20; run++) {
+            Trace trace = new Trace();
+            List<String> expected = new ArrayList<>();
+            // also a single point, which is written as a Point
+            for (int i = run == 0 ? 1 : random.nextInt(100); i > 0; i--) {
+                double latitude = random.nextDouble() * 180 - 90;
+                double longitude = random.nextDouble() * 360 - 180;
+                trace.push(latitude, longitude);
+                // the writer rounds to 7 decimals
+                expected.add(point(rounded(latitude), rounded(longitude)));
+            }
+            StringWriter out = new StringWriter();
+            TraceWriter.write(out, trace, TraceFormat.GEOJSON, null);
+            assertEquals(out.toString(), expected, parse(out.toString(), random));
+        }
+    }
+
+    @Test
+    public void edgeCases() throws IOException {
+        // empty and pointless documents
+        assertParsed("");
+        assertParsed("\uFEFF{}");
+        assertParsed("{\"type\":\"FeatureCollection\",\"features\":[]}");
+        assertParsed("{\"type\":\"LineString\",\"coordinates\":[]}");
+        // a single point
+        assertParsed("{\"type\":\"Point\",\"coordinates\":[11.5,48.1]}", 48.1, 11.5);
+        // a closed ring keeps its repeated first position
+        assertParsed("{\"type\":\"Polygon\",\"coordinates\":[[[11,48],[12,48],[12,49]," +
+                "[11,48]]]}", 48, 11, 48, 12, 49, 12, 48, 11);
+        // across the antimeridian
+        assertParsed("{\"type\":\"LineString\",\"coordinates\":[[179.9,-16.5],[-180,-16.6]," +
+                "[180,-16.7]]}", -16.5, 179.9, -16.6, -180, -16.7, 180);
+        // malformed positions are skipped
+        assertParsed("{\"type\":\"LineString\",\"coordinates\":[[1],[\"2\",3],[null,4]," +
+                "[true,5],[6,7]]}", 7, 6);
+        // a truncated document keeps the positions before the cut
+        assertParsed("{\"type\":\"LineString\",\"coordinates\":[[4,3],[6,", 3, 4);
+        assertParsed("{\"type\":\"LineString\",\"coordinates\":[[4,3],[6,5", 3, 4);
+    }
+
+    private static void assertParsed(final String json, final double... points)
+            throws IOException {
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < points.length; i += 2) {
+            expected.add(point(points[i], points[i + 1]));
+        }
+        Random random = new Random(json.hashCode());
+        for (int run = 0; run < 10; run++) {
+            assertEquals(json, expected, parse(json, random));
+        }
+    }
+
+    private static double rounded(double coordinate) {
+        return BigDecimal.valueOf(Math.round(coordinate * 1e7), 7).doubleValue();
+    }
+
+    private static List<String> parse(final String json, final Random random)
+            throws IOException {
+        final List<String> points = new ArrayList<>();
+        GeoJsonTraceParser parser = new GeoJsonTraceParser(
+                (latitude, longitude) -> points.add(point(latitude, longitude)));
+        TestData.parse(parser, json, random);
+        assertEquals(points.size(), parser.getPoints());
+        return points;
+    }
+
+    private static String point(double latitude, double longitude) {
+        return latitude + "," + longitude;
+    }
+
+    /**
+     * Adds the positions of all "coordinates" members in the tree
+     */
+    private static void addPositions(final Object value, final List<String> points) {
+        if (value instanceof Map) {
+            for (Map.Entry<?, ?> member : ((Map<?, ?>) value).entrySet()) {
+                if (member.getKey().equals("coordinates")) {
+                    addCoordinates(member.getValue(), points);
+                } else {
+                    addPositions(member.getValue(), points);
+                }
+            }
+        } else if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                addPositions(element, points);
+            }
+        }
+    }
+
+    private static void addCoordinates(final Object value, final List<String> points) {
+        if (!(value instanceof List)) return;
+        List<?> array = (List<?>) value;
+        boolean position = array.size() >= 2;
+        for (Object element : array) {
+            if (!(element instanceof Double)) position = false;
+        }
+        if (position) {
+            points.add(point((Double) array.get(1), (Double) array.get(0)));
+        } else {
+            for (Object element : array) {
+                addCoordinates(element, points);
+            }
+        }
+    }
+
+    private static void appendFeatureCollection(final StringBuilder json, final Random random) {
+        json.append("{\"type\":\"FeatureCollection\",").append(space(random))
+                .append("\"features\":").append(space(random)).append('[');
+        for (int i = random.nextInt(5); i >= 0; i--) {
+            json.append(space(random)).append("{\"type\":\"Feature\",\"properties\":");
+            appendProperties(json, random);
+            json.append(",").append(space(random)).append("\"geometry\":").append(space(random));
+            if (random.nextInt(8) == 0) {
+                json.append("null");
+            } else if (random.nextInt(6) == 0) {
+                json.append("{\"type\":\"GeometryCollection\",\"geometries\":[");
+                for (int j = random.nextInt(3); j >= 0; j--) {
+                    appendGeometry(json, random);
+                    if (j > 0) json.append(',');
+                }
+                json.append("]}");
+            } else {
+                appendGeometry(json, random);
+            }
+            json.append(space(random)).append('}');
+            if (i > 0) json.append(',').append(whitespace(random));
+        }
+        json.append(space(random)).append("]}");
+    }
+
+    private static void appendGeometry(final StringBuilder json, final Random random) {
+        int type = random.nextInt(GEOMETRIES.length);
+        json.append("{\"type\":\"").append(GEOMETRIES[type]).append("\",")
+                .append(space(random)).append("\"coordinates\"").append(space(random))
+                .append(':').append(space(random));
+        if (random.nextInt(20) == 0) {
+            // not an array at all
+            json.append(random.nextBoolean() ? "null" : "42");
+        } else {
+            appendCoordinates(json, random, type);
+        }
+        if (random.nextBoolean()) json.append(",\"bbox\":[1,2,3,4]");
+        json.append('}');
+    }
+
+    /**
+     * @param depth 0 for a position, 1 for an array of positions and so on
+     */
+    private static void appendCoordinates(final StringBuilder json, final Random random,
+                                          int depth) {
+        json.append('[').append(space(random));
+        if (depth == 0) {
+            // usually 2 or 3 components, but also invalid positions
+            int components = random.nextInt(10) == 0 ? random.nextInt(5) :
+                    2 + random.nextInt(2);
+            for (int i = 0; i < components; i++) {
+                if (i > 0) json.append(space(random)).append(',').append(space(random));
+                json.append(randomJsonNumber(random));
+            }
+        } else {
+            for (int i = random.nextInt(depth == 1 ? 8 : 3); i > 0; i--) {
+                appendCoordinates(json, random, depth - 1);
+                if (i > 1) json.append(',').append(whitespace(random));
+            }
+        }
+        json.append(space(random)).append(']');
+    }
+
+    /**
+     * Appends properties, which also contain numbers, arrays and strings that
+     * might look like coordinates
+     */
+    private static void appendProperties(final StringBuilder json, final Random random) {
+        switch (random.nextInt(5)) {
+            case 0:
+                json.append("{}");
+                break;
+            case 1:
+                json.append("null");
+                break;
+            case 2:
+                json.append("{\"name\":\"Z\\u00fcrich \\\"coordinates\\\": [1,2] \u2713\"," +
+                        "\"coordinates_\":[1,2],\"coordinate\":[3,4],\"valid\":true}");
+                break;
+            case 3:
+                json.append("{\"list\":[\"coordinates\",[5,6],-7.5e-1,false],").append(
+                        "\"nested\":{\"coordinates\":[8,9]}}");
+                break;
+            default:
+                json.append("{\"coordin\\u0061tes\":[10,11],\"coordinates\\\"\":[12,13]," +
+                        "\"\\\\\":\"coordinates\"}");
+                break;
+        }
+    }
+
+    /**
+     * A recursive descent JSON parser into maps, lists, doubles, booleans,
+     * null and strings. Member names are kept as written, with their escapes.
+     */
+    private static class JsonReader {
+        private final String json;
+        private int index;
+
+        private JsonReader(final String json) {
+            this.json = json;
+        }
+
+        private Object read() {
+            skipWhitespace();
+            char c = json.charAt(index);
+            if (c == '{') {
+                Map<String, Object> object = new LinkedHashMap<>();
+                index++;
+                skipWhitespace();
+                if (json.charAt(index) == '}') {
+                    index++;
+                    return object;
+                }
+                do {
+                    skipWhitespace();
+                    String name = readString();
+                    skipWhitespace();
+                    expect(':');
+                    object.put(name, read());
+                    skipWhitespace();
+                } while (json.charAt(index++) == ',');
+                return object;
+            } else if (c == '[') {
+                List<Object> array = new ArrayList<>();
+                index++;
+                skipWhitespace();
+                if (json.charAt(index) == ']') {
+                    index++;
+                    return array;
+                }
+                do {
+                    array.add(read());
+                    skipWhitespace();
+                } while (json.charAt(index++) == ',');
+                return array;
+            } else if (c == '"') {
+                return readString();
+            } else if (json.startsWith("true", index)) {
+                index += 4;
+                return true;
+            } else if (json.startsWith("false", index)) {
+                index += 5;
+                return false;
+            } else if (json.startsWith("null", index)) {
+                index += 4;
+                return null;
+            } else {
+                int start = index;
+                while (index < json.length() &&
+                        "+-.eE0123456789".indexOf(json.charAt(index)) >= 0) {
+                    index++;
+                }
+                return Double.parseDouble(json.substring(start, index));
+            }
+        }
+
+        private String readString() {
+            expect('"');
+            int start = index;
+            while (json.charAt(index) != '"') {
+                index += json.charAt(index) == '\\' ? 2 : 1;
+            }
+            return json.substring(start, index++);
+        }
+
+        private void expect(char c) {
+            if (json.charAt(index++) != c) {
+                throw new IllegalArgumentException("Expected " + c + " at " + (index - 1));
+            }
+        }
+
+        private void skipWhitespace() {
+            while (index < json.length() && Character.isWhitespace(json.charAt(index))) {
+                index++;
+            }
+        }
+    }
+}
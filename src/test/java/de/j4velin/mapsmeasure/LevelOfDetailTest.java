@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.PolyUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the levels stay valid simplifications while the trace is
+ * changed and that only the changed part is simplified again
+ */
+public class LevelOfDetailTest {
+
+    private final static float ZOOM = 12.5f;
+    private final static double METERS_PER_PIXEL_AT_ZOOM = 156543.03392 / (1 << 12);
+
+    private final Random random = new Random(0x10d);
+    private final Trace trace = new Trace();
+    private final LevelOfDetail levelOfDetail = new LevelOfDetail(trace);
+
+    @Before
+    public void setUp() {
+        trace.push(47.0, 11.0);
+        for (int i = 1; i < 2000; i++) {
+            addPoint();
+        }
+    }
+
+    private void addPoint() {
+        int last = trace.size() - 1;
+        trace.push(trace.getLatitude(last) + random.nextGaussian() * 1e-4,
+                trace.getLongitude(last) + random.nextGaussian() * 1e-4);
+    }
+
+    /**
+     * Checks that the indices are a valid simplification of the whole trace:
+     * every dropped point is within one pixel of the line between the kept
+     * points around it
+     */
+    private void assertSimplified(final int[] indices) {
+        int n = trace.size();
+        assertEquals(0, indices[0]);
+        assertEquals(n - 1, indices[indices.length - 1]);
+        assertTrue(indices.length < n);
+        double maxLat = 0;
+        for (int i = 0; i < n; i++) {
+            maxLat = Math.max(maxLat, Math.abs(trace.getLatitude(i)));
+        }
+        double tolerance = METERS_PER_PIXEL_AT_ZOOM * Math.cos(Math.toRadians(maxLat));
+        for (int k = 1; k < indices.length; k++) {
+            assertTrue(indices[k - 1] < indices[k]);
+            LatLng start = trace.get(indices[k - 1]), end = trace.get(indices[k]);
+            for (int i = indices[k - 1] + 1; i < indices[k]; i++) {
+                assertTrue(PolyUtil.distanceToLine(trace.get(i), start, end) <= tolerance * 1.0001);
+            }
+        }
+    }
+
+    /**
+     * @return the number of indices at the start of both arrays which are equal
+     */
+    private static int commonPrefix(final int[] a, final int[] b) {
+        int i = 0;
+        while (i < a.length && i < b.length && a[i] == b[i]) i++;
+        return i;
+    }
+
+    @Test
+    public void unchanged() {
+        int[] indices = levelOfDetail.getIndices(ZOOM);
+        assertSimplified(indices);
+        assertSame(indices, levelOfDetail.getIndices(ZOOM + 0.4f));
+    }
+
+    @Test
+    public void smallTrace() {
+        Trace small = new Trace();
+        for (int i = 0; i < LevelOfDetail.MIN_POINTS - 1; i++) {
+            small.push(47.0, 11.0 + i * 1e-6);
+        }
+        int[] indices = new LevelOfDetail(small).getIndices(ZOOM);
+        assertEquals(small.size(), indices.length);
+        assertEquals(small.size() - 1, indices[indices.length - 1]);
+    }
+
+    @Test
+    public void append() {
+        int[] before = levelOfDetail.getIndices(ZOOM);
+        for (int i = 0; i < 200; i++) {
+            addPoint();
+            levelOfDetail.pointChanged(trace.size() - 1);
+            int[] after = levelOfDetail.getIndices(ZOOM);
+            assertSimplified(after);
+            // everything but the last segment is kept
+            assertTrue(commonPrefix(before, after) >= before.length - 2);
+            before = after;
+        }
+    }
+
+    @Test
+    public void removeLast() {
+        int[] before = levelOfDetail.getIndices(ZOOM);
+        for (int i = 0; i < 200; i++) {
+            trace.removeLast();
+            levelOfDetail.pointChanged(trace.size());
+            int[] after = levelOfDetail.getIndices(ZOOM);
+            assertSimplified(after);
+            assertTrue(commonPrefix(before, after) >= before.length - 2);
+            before = after;
+        }
+    }
+
+    @Test
+    public void insertAndMove() {
+        int[] before = levelOfDetail.getIndices(ZOOM);
+        int index = trace.size() / 2;
+        trace.insert(index, trace.getLatitude(index) + 0.01, trace.getLongitude(index));
+        levelOfDetail.pointChanged(index);
+        int[] after = levelOfDetail.getIndices(ZOOM);
+        assertSimplified(after);
+        // the part before the inserted point is kept
+        int pos = Arrays.binarySearch(before, index);
+        int keptBefore = pos >= 0 ? pos : -pos - 1;
+        assertTrue(commonPrefix(before, after) >= keptBefore - 1);
+        assertTrue(Arrays.binarySearch(after, index) >= 0);
+
+        trace.set(index, trace.getLatitude(index - 1), trace.getLongitude(index - 1));
+        levelOfDetail.pointChanged(index);
+        assertSimplified(levelOfDetail.getIndices(ZOOM));
+
+        trace.set(0, 47.05, 11.05);
+        levelOfDetail.pointChanged(0);
+        assertSimplified(levelOfDetail.getIndices(ZOOM));
+    }
+
+    @Test
+    public void drag() {
+        int[] before = levelOfDetail.getIndices(ZOOM);
+        int index = before[before.length / 2];
+        for (int i = 0; i < 10; i++) {
+            trace.set(index, trace.getLatitude(index) + 1e-4, trace.getLongitude(index));
+            levelOfDetail.pointMoved(index);
+            // the level contains the dragged point, so it is not simplified again
+            assertSame(before, levelOfDetail.getIndices(ZOOM));
+        }
+        levelOfDetail.pointChanged(index);
+        assertSimplified(levelOfDetail.getIndices(ZOOM));
+    }
+
+    @Test
+    public void invalidate() {
+        levelOfDetail.getIndices(ZOOM);
+        trace.clear();
+        trace.push(-33.0, 151.0);
+        for (int i = 1; i < 1000; i++) {
+            addPoint();
+        }
+        levelOfDetail.invalidate();
+        assertSimplified(levelOfDetail.getIndices(ZOOM));
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.SphericalUtil;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the measurement engines with known geodesic distances, numerically
+ * integrated meridian arcs and with each other
+ */
+public class MeasurementEngineTest {
+
+    private final static double A = 6378137;
+    private final static double F = 1 / 298.257223563;
+    private final static double E2 = F * (2 - F);
+
+    @Test
+    public void ellipsoidalDistances() {
+        EllipsoidalEngine engine = new EllipsoidalEngine();
+        // Vincenty's example from Flinders Peak to Buninyong
+        assertEquals(54972.271, engine.computeDistance(
+                -(37 + 57 / 60.0 + 3.7203 / 3600), 144 + 25 / 60.0 + 29.5244 / 3600,
+                -(37 + 39 / 60.0 + 10.1561 / 3600), 143 + 55 / 60.0 + 35.3839 / 3600), 0.001);
+        // a quarter of the equator and of a meridian
+        assertEquals(A * Math.PI / 2, engine.computeDistance(0, 0, 0, 90), 0.001);
+        assertEquals(10001965.729, engine.computeDistance(0, 0, 90, 0), 0.001);
+        assertEquals(10001965.729, engine.computeDistance(90, 0, 0, 45), 0.001);
+        assertEquals(0, engine.computeDistance(12, 34, 12, 34), 0);
+        assertEquals(0, engine.computeDistance(90, 0, 90, 120), 0);
+    }
+
+    @Test
+    public void ellipsoidalMatchesMeridianArcs() {
+        EllipsoidalEngine engine = new EllipsoidalEngine();
+        Random random = new Random(0x5eed);
+        for (int i = 0; i < 1000; i++) {
+            double lat1 = random.nextDouble() * 178 - 89;
+            // short segments use the flat approximation, longer ones Vincenty
+            double lat2 = Math.min(90, lat1 + (i % 2 == 0 ? 0.0099 : 1) * random.nextDouble());
+            double lng = random.nextDouble() * 360 - 180;
+            double expected = meridianArc(lat1, lat2);
+            // 0.1 mm per km
+            assertEquals(lat1 + " to " + lat2, expected,
+                    engine.computeDistance(lat1, lng, lat2, lng), 1e-7 * expected + 1e-9);
+            assertEquals(lat2 + " to " + lat1, expected,
+                    engine.computeDistance(lat2, lng, lat1, lng), 1e-7 * expected + 1e-9);
+        }
+    }
+
+    @Test
+    public void ellipsoidalNearlyAntipodal() {
+        EllipsoidalEngine engine = new EllipsoidalEngine();
+        // Vincenty's iteration does not converge for these points
+        assertDistance(19936288.579, engine.computeDistance(0, 0, 0.5, 179.5), 0.001);
+        assertDistance(19944127.421, engine.computeDistance(0, 0, 0.5, 179.7), 0.001);
+        Random random = new Random(8848);
+        for (int i = 0; i < 10000; i++) {
+            double lat = random.nextDouble() * 2 - 1, lng = random.nextDouble() * 360 - 180;
+            double lat2 = -lat + random.nextGaussian();
+            double lng2 = lng + 180 + random.nextGaussian();
+            double distance = engine.computeDistance(lat, lng, lat2,
+                    lng2 > 180 ? lng2 - 360 : lng2);
+            assertTrue(distance + " at " + lat + ", " + lng, !Double.isNaN(distance) &&
+                    distance > 19.5e6 && distance <= Math.PI * A);
+        }
+    }
+
+    @Test
+    public void planarMatchesEllipsoidalInRange() {
+        EllipsoidalEngine ellipsoidal = new EllipsoidalEngine();
+        Random random = new Random(6371);
+        for (int run = 0; run < 1000; run++) {
+            double lat0 = random.nextDouble() * 160 - 80;
+            double lng0 = run % 10 == 0 ? 180 : random.nextDouble() * 360 - 180;
+            PlanarEngine planar = new PlanarEngine(lat0, lng0);
+            List<LatLng> polygon = new ArrayList<>();
+            int n = 3 + random.nextInt(20);
+            double radius = PlanarEngine.MAX_DISTANCE * (0.01 + 0.98 * random.nextDouble());
+            for (int i = 0; i < n; i++) {
+                double heading = 2 * Math.PI * i / n;
+                double r = radius * (0.5 + 0.49 * random.nextDouble()) / 111320;
+                // roughly r degrees of latitude away
+                LatLng point = new LatLng(lat0 + r * Math.cos(heading),
+                        lng0 + r * Math.sin(heading) / Math.cos(Math.toRadians(lat0)));
+                assertTrue(planar.isInRange(point.latitude, point.longitude));
+                polygon.add(point);
+            }
+            double planarArea = 0, ellipsoidalArea = 0;
+            for (int i = 0; i < n; i++) {
+                LatLng p1 = polygon.get(i), p2 = polygon.get((i + 1) % n);
+                double expected = ellipsoidal.computeDistance(p1.latitude, p1.longitude,
+                        p2.latitude, p2.longitude);
+                assertEquals(expected, planar.computeDistance(p1.latitude, p1.longitude,
+                        p2.latitude, p2.longitude), expected * 0.001);
+                planarArea += planar.computeSignedEdgeArea(p1.latitude, p1.longitude,
+                        p2.latitude, p2.longitude);
+                ellipsoidalArea += ellipsoidal.computeSignedEdgeArea(p1.latitude,
+                        p1.longitude, p2.latitude, p2.longitude);
+            }
+            // the gnomonic projection only enlarges areas slightly
+            assertEquals(ellipsoidalArea, planarArea, Math.abs(ellipsoidalArea) * 1e-5);
+        }
+    }
+
+    @Test
+    public void sphericalMatchesSphericalUtil() {
+        SphericalEngine engine = new SphericalEngine();
+        Random random = new Random(40075);
+        List<LatLng> polygon = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            polygon.add(new LatLng(random.nextDouble() * 180 - 90,
+                    random.nextDouble() * 360 - 180));
+        }
+        double length = 0, area = 0;
+        for (int i = 0; i < polygon.size(); i++) {
+            LatLng p1 = polygon.get(i), p2 = polygon.get((i + 1) % polygon.size());
+            if (i + 1 < polygon.size()) {
+                length += engine.computeDistance(p1.latitude, p1.longitude, p2.latitude,
+                        p2.longitude);
+            }
+            area += engine.computeSignedEdgeArea(p1.latitude, p1.longitude, p2.latitude,
+                    p2.longitude);
+        }
+        assertEquals(SphericalUtil.computeLength(polygon), length, 1e-9 * length);
+        assertEquals(SphericalUtil.computeArea(polygon), Math.abs(area), 1e-9 * Math.abs(area));
+    }
+
+    @Test
+    public void acrossTheAntimeridian() {
+        MeasurementEngine[] engines = {new EllipsoidalEngine(), new PlanarEngine(0, 180),
+                new SphericalEngine()};
+        for (MeasurementEngine engine : engines) {
+            String name = engine.getClass().getSimpleName();
+            // the same segment, once crossing the antimeridian and once the prime meridian
+            double expected = engine.computeDistance(0.5, -0.1, 0.6, 0.1);
+            assertEquals(name, expected, engine.computeDistance(0.5, 179.9, 0.6, -179.9),
+                    expected * 1e-9);
+            assertEquals(name, expected, engine.computeDistance(0.6, -179.9, 0.5, 179.9),
+                    expected * 1e-9);
+            assertEquals(name, 0, engine.computeDistance(0, 180, 0, -180), 1e-6);
+        }
+    }
+
+    @Test
+    public void closedRings() {
+        // a square of 0.1 degrees, once open and once with the first point repeated
+        double[][] square = {{0.5, 179.95}, {0.5, -179.95}, {0.6, -179.95}, {0.6, 179.95}};
+        MeasurementEngine[] engines = {new EllipsoidalEngine(), new PlanarEngine(0.5, 180),
+                new SphericalEngine()};
+        // the same engines for the square moved to the prime meridian
+        MeasurementEngine[] primeEngines = {new EllipsoidalEngine(), new PlanarEngine(0.5, 0),
+                new SphericalEngine()};
+        for (int e = 0; e < engines.length; e++) {
+            MeasurementEngine engine = engines[e];
+            String name = engine.getClass().getSimpleName();
+            double open = 0, closed = 0, prime = 0;
+            for (int i = 0; i < square.length; i++) {
+                double[] p1 = square[i], p2 = square[(i + 1) % square.length];
+                open += engine.computeSignedEdgeArea(p1[0], p1[1], p2[0], p2[1]);
+                closed += engine.computeSignedEdgeArea(p1[0], p1[1], p2[0], p2[1]);
+                prime += primeEngines[e].computeSignedEdgeArea(p1[0],
+                        p1[1] - 180 * Math.signum(p1[1]), p2[0], p2[1] - 180 * Math.signum(p2[1]));
+            }
+            // the closing edge of a closed ring has no length and adds nothing
+            closed += engine.computeSignedEdgeArea(square[0][0], square[0][1], square[0][0],
+                    square[0][1]);
+            assertEquals(name, open, closed, 0);
+            // roughly 11.1 km by 11.1 km, counterclockwise
+            assertEquals(name, 1.23e8, Math.abs(open), 0.01e8);
+            assertEquals(name, prime, open, Math.abs(prime) * 1e-6);
+        }
+    }
+
+    @Test
+    public void copiesMeasureTheSame() {
+        MeasurementEngine[] engines = {new EllipsoidalEngine(), new PlanarEngine(47, 11),
+                new SphericalEngine()};
+        for (MeasurementEngine engine : engines) {
+            MeasurementEngine copy = engine.copy();
+            assertEquals(engine.computeDistance(47, 11, 47.01, 11.02),
+                    copy.computeDistance(47, 11, 47.01, 11.02), 0);
+            assertEquals(engine.computeSignedEdgeArea(47, 11, 47.01, 11.02),
+                    copy.computeSignedEdgeArea(47, 11, 47.01, 11.02), 0);
+        }
+    }
+
+    /**
+     * Asserts the given distance within the given relative error
+     */
+    private static void assertDistance(double expected, double actual, double error) {
+        assertEquals(expected, actual, expected * error);
+    }
+
+    /**
+     * @return the length of the meridian arc between the two latitudes, by
+     * integrating the meridian radius of curvature with Simpson's rule
+     */
+    private static double meridianArc(double lat1, double lat2) {
+        double phi1 = Math.toRadians(Math.min(lat1, lat2));
+        double phi2 = Math.toRadians(Math.max(lat1, lat2));
+        int steps = 1000;
+        double h = (phi2 - phi1) / steps, sum = 0;
+        for (int i = 0; i <= steps; i++) {
+            double weight = i == 0 || i == steps ? 1 : i % 2 == 1 ? 4 : 2;
+            sum += weight * meridianRadius(phi1 + i * h);
+        }
+        return sum * h / 3;
+    }
+
+    private static double meridianRadius(double phi) {
+        double sin = Math.sin(phi);
+        double w2 = 1 - E2 * sin * sin;
+        return A * (1 - E2) / (w2 * Math.sqrt(w2));
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the crossings found with the grid against testing every pair of
+ * edges, while points are added and removed
+ */
+public class SelfIntersectionsTest {
+
+    /**
+     * @return the number of proper crossings of the polygon, tested pair by
+     * pair in the Mercator projection
+     */
+    private static int bruteForce(final Trace trace) {
+        int n = trace.size();
+        double[] x = new double[n], y = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = Math.toRadians(trace.getLongitude(i));
+            double sin = Math.sin(Math.toRadians(trace.getLatitude(i)));
+            y[i] = 0.5 * Math.log((1 + sin) / (1 - sin));
+        }
+        int count = 0;
+        for (int a = 0; a < n - 1; a++) {
+            for (int b = a + 2; b < n - 1; b++) {
+                if (crosses(x[a], y[a], x[a + 1], y[a + 1], x[b], y[b], x[b + 1], y[b + 1]))
+                    count++;
+            }
+        }
+        if (n >= 4) {
+            for (int b = 1; b < n - 2; b++) {
+                if (crosses(x[n - 1], y[n - 1], x[0], y[0], x[b], y[b], x[b + 1], y[b + 1]))
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean crosses(double x1, double y1, double x2, double y2, double x3,
+                                   double y3, double x4, double y4) {
+        double d1 = side(x3, y3, x4, y4, x1, y1), d2 = side(x3, y3, x4, y4, x2, y2);
+        double d3 = side(x1, y1, x2, y2, x3, y3), d4 = side(x1, y1, x2, y2, x4, y4);
+        return d1 * d2 < 0 && d3 * d4 < 0;
+    }
+
+    private static double side(double ax, double ay, double bx, double by, double cx,
+                               double cy) {
+        return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+    }
+
+    private static void assertSameCrossings(final Trace trace, final SelfIntersections s) {
+        assertEquals(bruteForce(trace), s.size());
+        SelfIntersections full = new SelfIntersections(trace);
+        full.update();
+        assertEquals(s.size(), full.size());
+    }
+
+    @Test
+    public void randomEdits() {
+        Random random = new Random(0x1a7);
+        Trace trace = new Trace();
+        SelfIntersections s = new SelfIntersections(trace);
+        for (int step = 0; step < 600; step++) {
+            if (trace.size() > 3 && random.nextInt(4) == 0) {
+                trace.removeLast();
+                s.pointRemoved();
+            } else {
+                trace.push(48 + random.nextDouble() * 0.1, 11 + random.nextDouble() * 0.1);
+                s.pointAdded();
+            }
+            if (step % 20 == 0) assertSameCrossings(trace, s);
+        }
+        assertSameCrossings(trace, s);
+    }
+
+    @Test
+    public void northToSouth() {
+        // a long and thin trace, which zigzags over itself from north to south
+        Random random = new Random(0x5011);
+        Trace trace = new Trace();
+        SelfIntersections s = new SelfIntersections(trace);
+        for (int i = 0; i < 2000; i++) {
+            trace.push(60 - i * 0.01 + random.nextDouble() * 0.03, 11 + random.nextDouble() * 1e-3);
+            s.pointAdded();
+        }
+        assertSameCrossings(trace, s);
+    }
+
+    @Test
+    public void growingFarAway() {
+        // every point is much farther away than the previous ones, so the grid
+        // has to be built again with larger cells
+        Trace trace = new Trace();
+        SelfIntersections s = new SelfIntersections(trace);
+        double distance = 1e-6;
+        for (int i = 0; i < 40; i++) {
+            double angle = i * 2.4;
+            trace.push(Math.sin(angle) * distance, Math.cos(angle) * distance);
+            s.pointAdded();
+            assertEquals(bruteForce(trace), s.size());
+            distance = Math.min(80, distance * 1.5);
+        }
+        assertSameCrossings(trace, s);
+    }
+
+    @Test
+    public void degenerate() {
+        Trace trace = new Trace();
+        SelfIntersections s = new SelfIntersections(trace);
+        s.update();
+        assertEquals(0, s.size());
+        for (int i = 0; i < 10; i++) {
+            trace.push(48, 11);
+            s.pointAdded();
+        }
+        assertEquals(0, s.size());
+        while (!trace.isEmpty()) {
+            trace.removeLast();
+            s.pointRemoved();
+        }
+        assertEquals(0, s.size());
+    }
+
+    @Test
+    public void crossingPosition() {
+        // a bow tie: the closing edge crosses the second edge at (1, 1)
+        Trace trace = new Trace();
+        trace.push(0, 0);
+        trace.push(0, 2);
+        trace.push(2, 0);
+        trace.push(2, 2);
+        SelfIntersections s = new SelfIntersections(trace);
+        s.update();
+        assertEquals(1, s.size());
+        assertEquals(1, s.get(0).longitude, 1e-9);
+        // the same Mercator y as the point between 0 and 2 degrees
+        assertEquals(1, s.get(0).latitude, 1e-3);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Generators for random trace files, shared by the parser tests
+ */
+class TestData {
+
+    // a number as accepted by the parsers, to check the input with a regular expression
+    final static Pattern NUMBER =
+            Pattern.compile("[+-]?(\\d+\\.?\\d*|\\.\\d+)([eE][+-]?\\d+)?");
+    private final static String[] WHITESPACE = {" ", "\t", "\n", "\r\n", "  \n  "};
+
+    private TestData() {
+    }
+
+    /**
+     * @return some spaces or tabs, or nothing
+     */
+    static String space(final Random random) {
+        return random.nextInt(3) == 0 ? (random.nextBoolean() ? " " : "\t ") : "";
+    }
+
+    /**
+     * @return some whitespace, which might include line breaks
+     */
+    static String whitespace(final Random random) {
+        return WHITESPACE[random.nextInt(WHITESPACE.length)];
+    }
+
+    /**
+     * @return a number in one of the notations found in trace files, all of
+     * them valid for Double.parseDouble
+     */
+    static String randomNumber(final Random random) {
+        switch (random.nextInt(7)) {
+            case 0:
+                return (random.nextBoolean() ? "+" : "") + (random.nextInt(361) - 180);
+            case 1:
+                return String.format("%.7f", random.nextDouble() * 180 - 90).replace(',', '.');
+            case 2:
+                return (random.nextBoolean() ? "-" : "") + "." + random.nextInt(100000);
+            case 3:
+                return random.nextInt(100) + (random.nextBoolean() ? "." : ".5");
+            default:
+                return randomJsonNumber(random);
+        }
+    }
+
+    /**
+     * @return a number in one of the notations allowed by JSON
+     */
+    static String randomJsonNumber(final Random random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return Integer.toString(random.nextInt(361) - 180);
+            case 1:
+                return Double.toString(random.nextDouble() * 360 - 180);
+            case 2:
+                return (random.nextBoolean() ? "-" : "") + "0." + random.nextInt(100000);
+            default:
+                return random.nextInt(1000) + (random.nextBoolean() ? "e" : "E") +
+                        (random.nextBoolean() ? "-" : "+") + random.nextInt(5);
+        }
+    }
+
+    /**
+     * Passes the input to the parser, either as a stream or in chunks of
+     * random size, so tokens are split between chunks
+     */
+    static void parse(final TraceParser parser, final String input, final Random random)
+            throws IOException {
+        byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+        if (random.nextBoolean()) {
+            parser.parse(new ByteArrayInputStream(bytes));
+        } else {
+            for (int offset = 0; offset < bytes.length; ) {
+                int length = Math.min(bytes.length - offset, 1 + random.nextInt(16));
+                parser.parse(bytes, offset, length);
+                offset += length;
+            }
+            parser.finish();
+        }
+    }
+}
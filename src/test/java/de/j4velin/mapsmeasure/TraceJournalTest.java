@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.j4velin.mapsmeasure;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Restoring traces from journals, after a crash, with edits made while
+ * restoring and with several instances of the same journal
+ */
+public class TraceJournalTest {
+
+    // the size of a record which moves a point
+    private final static int SET_RECORD_SIZE = 1 + 4 + 16;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    // runs the callbacks of restore() on the test thread, as if it was the UI thread
+    private final LinkedBlockingQueue<Runnable> ui = new LinkedBlockingQueue<>();
+
+    @Test
+    public void restoresTruncatedRecord() throws Exception {
+        TraceJournal journal = new TraceJournal(folder.getRoot(), "truncated");
+        Trace trace = restore(journal);
+        assertEquals(0, trace.size());
+        for (int i = 0; i < 3; i++) {
+            trace.push(47 + i, 11 + i);
+            journal.pointAdded(trace);
+        }
+        trace.set(1, 50, 20);
+        journal.pointMoved(trace, 1);
+        journal.close();
+
+        // a crash while the last record was written
+        File file = new File(folder.getRoot(), "truncated.journal");
+        restore(new TraceJournal(folder.getRoot(), "truncated"));
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(f.length() - SET_RECORD_SIZE / 2);
+        }
+
+        journal = new TraceJournal(folder.getRoot(), "truncated");
+        trace = restore(journal);
+        assertPoints(trace, 47, 11, 48, 12, 49, 13);
+        // appended after the valid records, not after the cut off part
+        trace.push(40, 10);
+        journal.pointAdded(trace);
+        journal.close();
+
+        trace = restore(new TraceJournal(folder.getRoot(), "truncated"));
+        assertPoints(trace, 47, 11, 48, 12, 49, 13, 40, 10);
+    }
+
+    @Test
+    public void queuesEditsWhileRestoring() throws Exception {
+        TraceJournal journal = new TraceJournal(folder.getRoot(), "queued");
+        Trace trace = restore(journal);
+        trace.push(1, 1);
+        journal.pointAdded(trace);
+        trace.push(2, 2);
+        journal.pointAdded(trace);
+        journal.close();
+
+        journal = new TraceJournal(folder.getRoot(), "queued");
+        final Trace[] restored = new Trace[1];
+        journal.restore(ui::add, t -> {
+        }, t -> restored[0] = t);
+        // the trace shown until the restored one replaces it
+        Trace shown = new Trace();
+        shown.push(3, 3);
+        journal.pointAdded(shown);
+        shown.set(0, 4, 4);
+        journal.pointMoved(shown, 0);
+        // an index the restored trace does not have
+        for (int i = 0; i < 4; i++) {
+            shown.push(5, 5);
+        }
+        journal.pointInserted(shown, 4);
+        ui.take().run();
+        assertPoints(restored[0], 4, 4, 2, 2, 3, 3);
+        journal.close();
+
+        assertPoints(restore(new TraceJournal(folder.getRoot(), "queued")), 4, 4, 2, 2, 3, 3);
+    }
+
+    @Test
+    public void queuesReplacementWhileRestoring() throws Exception {
+        TraceJournal journal = new TraceJournal(folder.getRoot(), "replaced");
+        Trace trace = restore(journal);
+        trace.push(1, 1);
+        journal.pointAdded(trace);
+        journal.close();
+
+        journal = new TraceJournal(folder.getRoot(), "replaced");
+        final Trace[] restored = new Trace[1];
+        journal.restore(ui::add, t -> {
+        }, t -> restored[0] = t);
+        Trace loaded = new Trace();
+        loaded.push(7, 7);
+        loaded.push(8, 8);
+        journal.replaced(loaded);
+        loaded.removeLast();
+        journal.pointRemoved(loaded);
+        ui.take().run();
+        assertPoints(restored[0], 7, 7);
+        journal.close();
+
+        assertPoints(restore(new TraceJournal(folder.getRoot(), "replaced")), 7, 7);
+    }
+
+    @Test
+    public void ignoresOldInstances() throws Exception {
+        TraceJournal old = new TraceJournal(folder.getRoot(), "recreated");
+        Trace trace = restore(old);
+        trace.push(1, 1);
+        old.pointAdded(trace);
+
+        TraceJournal recreated = new TraceJournal(folder.getRoot(), "recreated");
+        Trace restored = restore(recreated);
+        assertPoints(restored, 1, 1);
+        // the old instance neither overwrites nor closes the files of the new one
+        trace.clear();
+        old.replaced(trace);
+        old.close();
+        restored.push(2, 2);
+        recreated.pointAdded(restored);
+        recreated.close();
+        // ignored after closing
+        restored.push(3, 3);
+        recreated.pointAdded(restored);
+
+        assertPoints(restore(new TraceJournal(folder.getRoot(), "recreated")), 1, 1, 2, 2);
+    }
+
+    private Trace restore(final TraceJournal journal) throws InterruptedException {
+        final Trace[] restored = new Trace[1];
+        journal.restore(ui::add, t -> {
+        }, t -> restored[0] = t);
+        ui.take().run();
+        return restored[0];
+    }
+
+    private static void assertPoints(final Trace trace, final double... coordinates) {
+        assertEquals(coordinates.length / 2, trace.size());
+        for (int i = 0; i < trace.size(); i++) {
+            assertEquals(coordinates[2 * i], trace.getLatitude(i), 0);
+            assertEquals(coordinates[2 * i + 1], trace.getLongitude(i), 0);
+        }
+    }
+}
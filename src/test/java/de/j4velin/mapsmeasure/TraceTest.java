@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.j4velin.mapsmeasure;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.SphericalUtil;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the incrementally maintained length and area of a trace with the
+ * values SphericalUtil computes from all points, after random edits
+ */
+public class TraceTest {
+
+    private final static double TOLERANCE = 1e-9;
+
+    @Test
+    public void areaAndLengthAfterRandomEdits() {
+        Random random = new Random(0x5eed);
+        Trace trace = new Trace();
+        List<LatLng> expected = new ArrayList<>();
+        for (int step = 0; step < 2000; step++) {
+            LatLng p = new LatLng(48 + random.nextDouble(), 11 + random.nextDouble());
+            int operation = expected.size() < 3 ? 0 : random.nextInt(5);
+            int index = expected.isEmpty() ? 0 : random.nextInt(expected.size());
+            switch (operation) {
+                case 0:
+                case 1:
+                    trace.push(p);
+                    expected.add(p);
+                    break;
+                case 2:
+                    trace.insert(index, p.latitude, p.longitude);
+                    expected.add(index, p);
+                    break;
+                case 3:
+                    trace.set(index, p.latitude, p.longitude);
+                    expected.set(index, p);
+                    break;
+                default:
+                    if (random.nextBoolean()) {
+                        trace.removeLast();
+                        expected.remove(expected.size() - 1);
+                    } else {
+                        trace.removeAt(index);
+                        expected.remove(index);
+                    }
+            }
+            assertMeasures(expected, trace);
+        }
+    }
+
+    @Test
+    public void areaAcrossTheAntimeridian() {
+        Trace trace = new Trace();
+        List<LatLng> expected = new ArrayList<>();
+        double[][] points = {{10, 179}, {10, -179}, {12, -179}, {12, 179.5}, {11, 178}};
+        for (double[] p : points) {
+            trace.push(p[0], p[1]);
+            expected.add(new LatLng(p[0], p[1]));
+            assertMeasures(expected, trace);
+        }
+    }
+
+    @Test
+    public void closedRing() {
+        Trace trace = new Trace();
+        List<LatLng> expected = new ArrayList<>();
+        double[][] points = {{48, 11}, {48, 12}, {49, 12}, {49, 11}, {48, 11}};
+        for (double[] p : points) {
+            trace.push(p[0], p[1]);
+            expected.add(new LatLng(p[0], p[1]));
+        }
+        assertMeasures(expected, trace);
+        // repeating the first point adds a segment, but no area
+        assertEquals(SphericalUtil.computeArea(expected.subList(0, 4)), trace.getArea(),
+                1e-6);
+    }
+
+    @Test
+    public void emptyAndShortTraces() {
+        Trace trace = new Trace();
+        assertEquals(0, trace.getArea(), 0);
+        assertEquals(0, trace.getLength(), 0);
+        trace.push(1, 2);
+        assertEquals(0, trace.getLength(), 0);
+        assertEquals(0, trace.getArea(), 0);
+        trace.push(3, 4);
+        assertEquals(0, trace.getArea(), 0);
+        trace.removeLast();
+        trace.removeLast();
+        assertEquals(0, trace.getLength(), 0);
+    }
+
+    private static void assertMeasures(final List<LatLng> expected, final Trace trace) {
+        assertEquals(expected.size(), trace.size());
+        double area = expected.size() < 3 ? 0 : SphericalUtil.computeArea(expected);
+        double length = SphericalUtil.computeLength(expected);
+        assertEquals(area, trace.getArea(), Math.max(1e-6, area * TOLERANCE));
+        assertEquals(length, trace.getLength(), Math.max(1e-6, length * TOLERANCE));
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2015 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.j4velin.mapsmeasure;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import static de.j4velin.mapsmeasure.TestData.NUMBER;
+import static de.j4velin.mapsmeasure.TestData.randomNumber;
+import static de.j4velin.mapsmeasure.TestData.space;
+import static de.j4velin.mapsmeasure.TestData.whitespace;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the streaming GPX and KML parser with reading the points from a
+ * DOM of random documents, fed in random chunks
+ */
+public class XmlTraceParserTest {
+
+    private final static String[] INVALID_NUMBERS = {"", "x", "1..2", "--1", "1e", "0x10"};
+
+    @Test
+    public void randomDocuments() throws Exception {
+        Random random = new Random(0x5eed);
+        for (int run = 0; run < 300; run++) {
+            String document = randomDocument(random);
+            assertEquals(document, parseDom(document), parse(document, random));
+        }
+    }
+
+    @Test
+    public void writtenTraces() throws IOException {
+        Random random = new Random(1911);
+        for (TraceFormat format : new TraceFormat[]{TraceFormat.GPX, TraceFormat.KML}) {
+            for (int run = 0; run < 20; run++) {
+                Trace trace = new Trace();
+                List<String> expected = new ArrayList<>();
+                for (int i = random.nextInt(100); i > 0; i--) {
+                    double latitude = random.nextDouble() * 180 - 90;
+                    double longitude = random.nextDouble() * 360 - 180;
+                    trace.push(latitude, longitude);
+                    // the writer rounds to 7 decimals
+                    expected.add(point(rounded(latitude), rounded(longitude)));
+                }
+                StringWriter out = new StringWriter();
+                TraceWriter.write(out, trace, format, null);
+                assertEquals(out.toString(), expected, parse(out.toString(), random));
+            }
+        }
+    }
+
+    @Test
+    public void edgeCases() throws IOException {
+        // empty and pointless documents
+        assertParsed("");
+        assertParsed("\uFEFF<?xml version=\"1.0\"?><gpx/>");
+        assertParsed("<kml><Placemark><LineString><coordinates> </coordinates></LineString>" +
+                "</Placemark></kml>");
+        // a single point
+        assertParsed("<gpx><trk><trkseg><trkpt lat=\"48.1\" lon=\"11.5\"/></trkseg></trk></gpx>",
+                48.1, 11.5);
+        assertParsed("<kml><coordinates>11.5,48.1,520</coordinates></kml>", 48.1, 11.5);
+        // a closed ring keeps its repeated first point
+        assertParsed("<kml><Polygon><outerBoundaryIs><LinearRing><coordinates>" +
+                        "11,48 12,48 12,49 11,48</coordinates></LinearRing></outerBoundaryIs>" +
+                        "</Polygon></kml>",
+                48, 11, 48, 12, 49, 12, 48, 11);
+        // across the antimeridian
+        assertParsed("<gpx><trkpt lat=\"-16.5\" lon=\"179.9\"/><trkpt lat=\"-16.6\"" +
+                        " lon=\"-180\"/><trkpt lat=\"-16.7\" lon=\"180\"/></gpx>",
+                -16.5, 179.9, -16.6, -180, -16.7, 180);
+        // malformed points are skipped
+        assertParsed("<gpx><trkpt lat=\"1\"/><trkpt lon=\"2\"/><trkpt lat=\"x\" lon=\"2\"/>" +
+                        "<trkpt lat=\"1e\" lon=\"2\"/><trkpt lat=\"3\" lon=\"4\"/></gpx>",
+                3, 4);
+        assertParsed("<kml><coordinates>1 1,2,3,4 x,5 6,7</coordinates></kml>", 7, 6);
+        // a truncated document keeps the points before the cut
+        assertParsed("<gpx><trkpt lat=\"3\" lon=\"4\"/><trkpt lat=\"5\" lo", 3, 4);
+        assertParsed("<kml><coordinates>4,3 6,", 3, 4);
+    }
+
+    private static void assertParsed(final String document, final double... points)
+            throws IOException {
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < points.length; i += 2) {
+            expected.add(point(points[i], points[i + 1]));
+        }
+        Random random = new Random(document.hashCode());
+        for (int run = 0; run < 10; run++) {
+            assertEquals(document, expected, parse(document, random));
+        }
+    }
+
+    private static double rounded(double coordinate) {
+        return BigDecimal.valueOf(Math.round(coordinate * 1e7), 7).doubleValue();
+    }
+
+    /**
+     * @return the points as "latitude,longitude" strings, which makes failures
+     * readable
+     */
+    private static List<String> parse(final String document, final Random random)
+            throws IOException {
+        final List<String> points = new ArrayList<>();
+        XmlTraceParser parser =
+                new XmlTraceParser((latitude, longitude) -> points.add(point(latitude, longitude)));
+        TestData.parse(parser, document, random);
+        assertEquals(points.size(), parser.getPoints());
+        return points;
+    }
+
+    private static String point(double latitude, double longitude) {
+        return latitude + "," + longitude;
+    }
+
+    /**
+     * Reads the points of all GPX track and route points and all KML
+     * coordinates from a DOM of the document
+     */
+    private static List<String> parseDom(final String document) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document dom = factory.newDocumentBuilder()
+                .parse(new InputSource(new StringReader(document)));
+        List<String> points = new ArrayList<>();
+        addPoints(dom.getDocumentElement(), points);
+        return points;
+    }
+
+    private static void addPoints(final Element element, final List<String> points) {
+        String name = element.getLocalName();
+        if (name.equals("trkpt") || name.equals("rtept")) {
+            String latitude = element.getAttribute("lat").trim();
+            String longitude = element.getAttribute("lon").trim();
+            if (NUMBER.matcher(latitude).matches() && NUMBER.matcher(longitude).matches()) {
+                points.add(point(Double.parseDouble(latitude), Double.parseDouble(longitude)));
+            }
+        } else if (name.equals("coordinates")) {
+            // whitespace around the commas does not separate tuples
+            String text = element.getTextContent().trim().replaceAll("\\s*,\\s*", ",");
+            for (String tuple : text.split("\\s+")) {
+                addTuple(tuple.split(",", -1), points);
+            }
+        } else if (name.equals("coord")) {
+            addTuple(element.getTextContent().trim().split("\\s+"), points);
+        }
+        for (Node child = element.getFirstChild(); child != null;
+             child = child.getNextSibling()) {
+            if (child instanceof Element) addPoints((Element) child, points);
+        }
+    }
+
+    private static void addTuple(final String[] fields, final List<String> points) {
+        if (fields.length < 2 || fields.length > 3) return;
+        for (String field : fields) {
+            if (!NUMBER.matcher(field).matches()) return;
+        }
+        points.add(point(Double.parseDouble(fields[1]), Double.parseDouble(fields[0])));
+    }
+
+    private static String randomDocument(final Random random) {
+        StringBuilder document = new StringBuilder();
+        if (random.nextBoolean()) {
+            document.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        }
+        if (random.nextInt(4) == 0) {
+            document.append("<!DOCTYPE gpx [\n<!ELEMENT trkpt ANY>\n" +
+                    "<!ENTITY decoy \"x > <trkpt lat='12' lon='13'/>\">\n<!-- ] > -->\n]>\n");
+        }
+        String root = random.nextBoolean() ? "gpx" : "kml:kml";
+        document.append('<').append(root).append(" xmlns=\"http://www.topografix.com/GPX/1/1\"" +
+                " xmlns:kml=\"http://www.opengis.net/kml/2.2\"" +
+                " xmlns:gx=\"http://www.google.com/kml/ext/2.2\">");
+        for (int i = random.nextInt(30); i > 0; i--) {
+            document.append(space(random));
+            switch (random.nextInt(9)) {
+                case 0:
+                case 1:
+                case 2:
+                    appendGpxPoint(document, random);
+                    break;
+                case 3:
+                case 4:
+                    String coordinates = random.nextBoolean() ? "coordinates" : "kml:coordinates";
+                    document.append('<').append(coordinates).append(space(random)).append('>');
+                    for (int j = random.nextInt(5); j >= 0; j--) {
+                        document.append(whitespace(random)).append(randomNumber(random));
+                        int fields = random.nextInt(10) == 0 ? 1 + random.nextInt(4) :
+                                2 + random.nextInt(2);
+                        for (int k = 1; k < fields; k++) {
+                            document.append(space(random)).append(',').append(space(random))
+                                    .append(randomNumber(random));
+                        }
+                    }
+                    document.append(whitespace(random));
+                    document.append("</").append(coordinates).append('>');
+                    break;
+                case 5:
+                    document.append("<gx:coord>").append(whitespace(random))
+                            .append(randomNumber(random)).append(' ')
+                            .append(randomNumber(random));
+                    if (random.nextBoolean()) document.append(' ').append(randomNumber(random));
+                    document.append(whitespace(random)).append("</gx:coord>");
+                    break;
+                case 6:
+                    document.append(random.nextBoolean() ? "<coordinates/>" :
+                            "<kml:LineString><kml:coordinates></kml:coordinates></kml:LineString>");
+                    break;
+                default:
+                    appendNoise(document, random);
+                    break;
+            }
+        }
+        document.append("</").append(root).append('>');
+        return document.toString();
+    }
+
+    private static void appendGpxPoint(final StringBuilder document, final Random random) {
+        String name = new String[]{"trkpt", "rtept", "wpt", "gpx:trkpt"}[random.nextInt(4)];
+        document.append('<').append(name);
+        if (name.startsWith("gpx:")) {
+            document.append(" xmlns:gpx=\"http://www.topografix.com/GPX/1/1\"");
+        }
+        List<String> attributes = new ArrayList<>();
+        if (random.nextInt(8) != 0) attributes.add("lat");
+        if (random.nextInt(8) != 0) attributes.add("lon");
+        if (random.nextBoolean()) attributes.add("ele");
+        if (random.nextInt(4) == 0) attributes.add("latitude");
+        Collections.shuffle(attributes, random);
+        for (String attribute : attributes) {
+            char quote = random.nextBoolean() ? '"' : '\'';
+            document.append(whitespace(random)).append(attribute).append(space(random))
+                    .append('=').append(space(random)).append(quote).append(space(random))
+                    .append(random.nextInt(10) == 0 ?
+                            INVALID_NUMBERS[random.nextInt(INVALID_NUMBERS.length)] :
+                            randomNumber(random))
+                    .append(space(random)).append(quote);
+        }
+        document.append(space(random));
+        if (random.nextBoolean()) {
+            document.append("/>");
+        } else {
+            document.append('>');
+            if (random.nextBoolean()) document.append("<ele>").append(randomNumber(random))
+                    .append("</ele>");
+            if (random.nextBoolean()) appendNoise(document, random);
+            document.append("</").append(name).append('>');
+        }
+    }
+
+    /**
+     * Appends markup which does not contain any points, but might look like it
+     */
+    private static void appendNoise(final StringBuilder document, final Random random) {
+        switch (random.nextInt(6)) {
+            case 0:
+                document.append("<!-- <trkpt lat=\"1\" lon=\"2\"/> - -> -->");
+                break;
+            case 1:
+                document.append("<desc><![CDATA[a > b <trkpt lat=\"3\" lon=\"4\"/>]>]]></desc>");
+                break;
+            case 2:
+                document.append("<?processing <trkpt lat=\"5\" lon=\"6\"/> ?>");
+                break;
+            case 3:
+                document.append("<name>Z\u00fcrich &amp; \u2713 &lt;coordinates&gt;1,2</name>");
+                break;
+            case 4:
+                document.append("<extensionsWithAVeryLongName><trkpt_coordinates lat=\"7\"" +
+                        " lon=\"8\">9,10</trkpt_coordinates></extensionsWithAVeryLongName>");
+                break;
+            default:
+                document.append("<time>2015-06-01T12:00:00Z</time>");
+                break;
+        }
+    }
+}